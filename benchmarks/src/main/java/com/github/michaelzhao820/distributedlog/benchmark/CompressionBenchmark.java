@@ -0,0 +1,107 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Segment;
+import com.github.michaelzhao820.distributedlog.internal.log.Store;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads from a sealed segment of JSON-like records, plain ({@code NONE}) against
+ * compressed with each block size. The store size on disk and the time taken to
+ * compress are printed at setup, since JMH only reports read time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"NONE", "DEFLATE"})
+    public Config.Compression compression;
+
+    @Param({"16384", "65536"})
+    public int blockBytes;
+
+    @Param({"100"})
+    public int batchSize;
+
+    private File dir;
+    private Segment segment;
+    private long count;
+    private long next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("compression-bench").toFile();
+        Config config = new Config();
+        config.segment.maxStoreBytes = 64L << 20;
+        config.segment.maxIndexBytes = 16L << 20;
+        config.segment.compression = compression;
+        config.segment.compressionBlockBytes = blockBytes;
+
+        segment = new Segment(dir.getAbsolutePath(), 0, config);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (!segment.isMaxed()) {
+            String json = String.format("{\"user\":\"user-%d\",\"event\":\"page_view\",\"path\":\"/items/%d\",\"ms\":%d}",
+                    random.nextInt(10_000), random.nextInt(1_000), random.nextInt(500));
+            segment.append(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8(json)).build());
+        }
+        count = segment.getNextOffset();
+        segment.seal();
+
+        long plainBytes = new File(dir, "0.store").length();
+        if (compression != Config.Compression.NONE) {
+            long start = System.nanoTime();
+            segment.compress();
+            long took = System.nanoTime() - start;
+            Store plain = segment.useCompressed();
+            plain.close();
+            new File(plain.name()).delete();
+            long zBytes = new File(dir, "0.zstore").length();
+            System.out.printf("%n%d records, store %d -> %d bytes (%.2fx) in %d ms%n",
+                    count, plainBytes, zBytes, (double) plainBytes / zBytes, took / 1_000_000);
+        } else {
+            System.out.printf("%n%d records, store %d bytes%n", count, plainBytes);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        segment.remove();
+        for (File f : Objects.requireNonNull(dir.listFiles())) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public LogProto.Record randomRead() throws IOException {
+        return segment.read(ThreadLocalRandom.current().nextLong(count));
+    }
+
+    // a tailing consumer reading the segment front to back
+    @Benchmark
+    public List<ByteBuffer> sequentialRead() throws IOException {
+        List<ByteBuffer> frames = new ArrayList<>(batchSize);
+        segment.readFrames(next, batchSize, Long.MAX_VALUE, frames);
+        next += frames.size();
+        if (next >= count) {
+            next = 0;
+        }
+        return frames;
+    }
+}
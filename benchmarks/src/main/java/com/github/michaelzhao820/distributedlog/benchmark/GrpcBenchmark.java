@@ -0,0 +1,183 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogGrpc;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.*;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.Record;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Log;
+import com.github.michaelzhao820.distributedlog.internal.server.LogServerImpl;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through {@link LogServerImpl} over an in-process transport, so the
+ * numbers cover protobuf and gRPC framing overhead without network latency.
+ * Streaming benchmarks move {@code streamRecords} records per invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GrpcBenchmark {
+
+    private static final int STREAM_RECORDS = 1000;
+    private static final int PRELOADED = 10_000;
+
+    @Param({"64", "1024"})
+    public int recordSize;
+
+    @Param({"1048576"})
+    public long maxStoreBytes;
+
+    @Param({"true", "false"})
+    public boolean zeroCopy;
+
+    private Log log;
+    private Server server;
+    private ManagedChannel channel;
+    private LogGrpc.LogBlockingStub blockingStub;
+    private LogGrpc.LogStub asyncStub;
+    private ProduceRequest produceRequest;
+    private ProduceBatchRequest batchRequest;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Config c = new Config();
+        c.segment.maxStoreBytes = maxStoreBytes;
+        c.segment.maxIndexBytes = 1 << 20;
+        c.segment.readMode = Config.ReadMode.MMAP;
+        log = new Log(Files.createTempDirectory("grpc-bench").toString(), c);
+
+        byte[] value = new byte[recordSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        Record record = Record.newBuilder().setValue(ByteString.copyFrom(value)).build();
+        produceRequest = ProduceRequest.newBuilder().setRecord(record).build();
+        ProduceBatchRequest.Builder batch = ProduceBatchRequest.newBuilder();
+        for (int i = 0; i < 100; i++) {
+            batch.addRecords(record);
+        }
+        batchRequest = batch.build();
+        for (int i = 0; i < PRELOADED; i++) {
+            log.append(record);
+        }
+
+        String name = InProcessServerBuilder.generateName();
+        LogServerImpl service = new LogServerImpl(log);
+        InProcessServerBuilder builder = InProcessServerBuilder.forName(name);
+        if (zeroCopy) {
+            builder.addService(service.bindZeroCopyService());
+        } else {
+            builder.addService(service);
+        }
+        server = builder.build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        blockingStub = LogGrpc.newBlockingStub(channel);
+        asyncStub = LogGrpc.newStub(channel);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        log.remove();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ProduceResponse produce() {
+        return blockingStub.produce(produceRequest);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ConsumeResponse consume() {
+        long offset = ThreadLocalRandom.current().nextLong(PRELOADED);
+        return blockingStub.consume(ConsumeRequest.newBuilder().setOffset(offset).build());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public ProduceBatchResponse produceBatch() {
+        return blockingStub.produceBatch(batchRequest);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM_RECORDS)
+    public long produceStream() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long[] last = new long[1];
+        StreamObserver<ProduceRequest> requests = asyncStub.produceStream(new StreamObserver<>() {
+            @Override
+            public void onNext(ProduceResponse value) {
+                last[0] = value.getLastOffset();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        });
+        for (int i = 0; i < STREAM_RECORDS; i++) {
+            requests.onNext(produceRequest);
+        }
+        requests.onCompleted();
+        done.await();
+        return last[0];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM_RECORDS)
+    public long consumeStream() {
+        long start = ThreadLocalRandom.current().nextLong(PRELOADED - STREAM_RECORDS);
+        LogGrpc.LogBlockingStub stub = blockingStub.withDeadlineAfter(10, TimeUnit.SECONDS);
+        io.grpc.Context.CancellableContext ctx = io.grpc.Context.current().withCancellation();
+        try {
+            return ctx.call(() -> {
+                Iterator<ConsumeResponse> it = stub.consumeStream(
+                        ConsumeRequest.newBuilder().setOffset(start).build());
+                long last = 0;
+                for (int i = 0; i < STREAM_RECORDS; i++) {
+                    last = it.next().getRecord().getOffset();
+                }
+                return last;
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            ctx.cancel(null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM_RECORDS)
+    public long consumeRange() {
+        long offset = ThreadLocalRandom.current().nextLong(PRELOADED - STREAM_RECORDS);
+        long end = offset + STREAM_RECORDS;
+        while (offset < end) {
+            offset = blockingStub.consumeRange(ConsumeRangeRequest.newBuilder()
+                    .setOffset(offset)
+                    .setMaxRecords((int) (end - offset))
+                    .build()).getNextOffset();
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Index;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Index} entry writes and random lookups. {@code maxIndexBytes} is the
+ * segment's index size; a full index is replaced inside the write benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBenchmark {
+
+    @Param({"12288", "12582912"})
+    public long maxIndexBytes;
+
+    private Config config;
+    private File writeFile;
+    private Index writeIndex;
+    private File readFile;
+    private Index readIndex;
+    private long entries;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        config = new Config();
+        config.segment.maxIndexBytes = maxIndexBytes;
+
+        readFile = Files.createTempFile("index-read-bench", ".index").toFile();
+        readIndex = new Index(readFile, config);
+        entries = maxIndexBytes / Index.ENT_WIDTH;
+        for (int i = 0; i < entries; i++) {
+            readIndex.write(i, i * 100L);
+        }
+
+        writeFile = Files.createTempFile("index-write-bench", ".index").toFile();
+        writeIndex = new Index(writeFile, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        readIndex.close();
+        writeIndex.close();
+        readFile.delete();
+        writeFile.delete();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        long size = writeIndex.getSize();
+        if (size + Index.ENT_WIDTH > maxIndexBytes) {
+            writeIndex.close();
+            writeFile.delete();
+            writeIndex = new Index(writeFile, config);
+            size = 0;
+        }
+        writeIndex.write((int) (size / Index.ENT_WIDTH), size);
+        return size;
+    }
+
+    @Benchmark
+    public Index.IndexEntry read() throws EOFException {
+        return readIndex.read(ThreadLocalRandom.current().nextLong(entries));
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Log;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Log} under mixed load: the {@code readWrite} group runs readers against
+ * writers on one log (change the split with {@code -tg readers,writers}), the
+ * {@code append} benchmark scales writers with {@code -t}, and {@code fullScan}
+ * reads the whole log through {@link Log#reader()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogBenchmark {
+
+    @Param({"64", "1024"})
+    public int recordSize;
+
+    @Param({"65536", "16777216"})
+    public long maxStoreBytes;
+
+    @Param({"OS", "PER_RECORD"})
+    public Config.SyncPolicy syncPolicy;
+
+    @Param({"MMAP"})
+    public Config.ReadMode readMode;
+
+    private static final int PRELOADED = 10_000;
+
+    private Log log;
+    private LogProto.Record record;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Config c = new Config();
+        c.segment.maxStoreBytes = maxStoreBytes;
+        c.segment.maxIndexBytes = 1 << 20;
+        c.segment.readMode = readMode;
+        c.segment.syncPolicy = syncPolicy;
+        log = new Log(Files.createTempDirectory("log-bench").toString(), c);
+
+        byte[] value = new byte[recordSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        record = LogProto.Record.newBuilder().setValue(ByteString.copyFrom(value)).build();
+        for (int i = 0; i < PRELOADED; i++) {
+            log.append(record);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.remove();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long append() throws IOException {
+        return log.append(record);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public LogProto.Record read() throws IOException {
+        return log.read(ThreadLocalRandom.current().nextLong(PRELOADED));
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public long write() throws IOException {
+        return log.append(record);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long fullScan(Blackhole bh) throws IOException {
+        byte[] chunk = new byte[64 << 10];
+        long total = 0;
+        try (InputStream in = log.reader()) {
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                bh.consume(chunk);
+                total += n;
+            }
+        }
+        return total;
+    }
+}
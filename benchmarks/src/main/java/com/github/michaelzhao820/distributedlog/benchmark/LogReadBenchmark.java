@@ -0,0 +1,67 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Log;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random {@link Log#read(long)} latency as the number of segments grows. Each
+ * segment holds {@code recordsPerSegment} records; large segment counts need a
+ * raised open-file limit since every segment keeps its files open.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogReadBenchmark {
+
+    @Param({"10", "100", "1000", "4000"})
+    public int segmentCount;
+
+    @Param({"4"})
+    public int recordsPerSegment;
+
+    @Param({"MMAP"})
+    public Config.ReadMode readMode;
+
+    private Log log;
+    private long records;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        LogProto.Record record = LogProto.Record.newBuilder()
+                .setValue(ByteString.copyFrom(new byte[64]))
+                .build();
+        int frame = 8 + record.toBuilder().setOffset(Long.MAX_VALUE).build().getSerializedSize();
+
+        Config c = new Config();
+        c.segment.maxStoreBytes = (long) frame * recordsPerSegment;
+        c.segment.maxIndexBytes = 1024;
+        c.segment.readMode = readMode;
+        log = new Log(Files.createTempDirectory("log-read-bench").toString(), c);
+
+        records = (long) segmentCount * recordsPerSegment;
+        for (long i = 0; i < records; i++) {
+            log.append(record);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.remove();
+    }
+
+    @Benchmark
+    public LogProto.Record randomRead() throws IOException {
+        return log.read(ThreadLocalRandom.current().nextLong(records));
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.raft.RaftNode;
+import com.github.michaelzhao820.distributedlog.internal.server.RaftServerImpl;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends from several threads to the leader of a one member group, where a record
+ * commits as soon as it is in the log, and of a three member group in one JVM, where
+ * it waits for a follower to acknowledge it over in-process gRPC. Enough threads
+ * append that followers receive entries in batches rather than one at a time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RaftBenchmark {
+
+    @Param({"1", "3"})
+    public int members;
+
+    @Param({"256"})
+    public int recordSize;
+
+    private final List<RaftNode> nodes = new ArrayList<>();
+    private final List<Server> servers = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private RaftNode leader;
+    private LogProto.Record record;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Config c = new Config();
+        c.segment.maxStoreBytes = 16L << 20;
+        c.segment.maxIndexBytes = 1 << 20;
+        c.raft.electionTimeoutMs = 200;
+        String prefix = InProcessServerBuilder.generateName();
+        for (int i = 0; i < members; i++) {
+            Map<String, ManagedChannel> peers = new LinkedHashMap<>();
+            for (int j = 0; j < members; j++) {
+                if (j != i) {
+                    ManagedChannel channel = InProcessChannelBuilder.forName(prefix + j).build();
+                    channels.add(channel);
+                    peers.put("node-" + j, channel);
+                }
+            }
+            RaftNode node = new RaftNode("node-" + i, Files.createTempDirectory("raft-bench").toString(), c, peers);
+            servers.add(InProcessServerBuilder.forName(prefix + i)
+                    .addService(new RaftServerImpl(node))
+                    .build()
+                    .start());
+            nodes.add(node.start());
+        }
+        while (leader == null) {
+            Thread.sleep(10);
+            for (RaftNode node : nodes) {
+                if (node.isLeader()) {
+                    leader = node;
+                }
+            }
+        }
+
+        byte[] value = new byte[recordSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        record = LogProto.Record.newBuilder().setValue(ByteString.copyFrom(value)).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Server s : servers) {
+            s.shutdownNow();
+        }
+        for (ManagedChannel c : channels) {
+            c.shutdownNow();
+        }
+        for (RaftNode node : nodes) {
+            node.close();
+            node.log().remove();
+        }
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long append() throws IOException {
+        return leader.append(record);
+    }
+}
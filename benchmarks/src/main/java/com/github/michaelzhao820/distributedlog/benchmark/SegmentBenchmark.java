@@ -0,0 +1,96 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Segment;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Segment} append and random read. A maxed segment is removed and replaced
+ * inside the append benchmark, so {@code maxStoreBytes} controls how often that
+ * rollover cost is paid. {@code checksums} shows the cost of CRC32C framing and
+ * verification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentBenchmark {
+
+    @Param({"64", "1024"})
+    public int recordSize;
+
+    @Param({"1048576", "67108864"})
+    public long maxStoreBytes;
+
+    @Param({"FILE", "MMAP"})
+    public Config.ReadMode readMode;
+
+    @Param({"false", "true"})
+    public boolean checksums;
+
+    private File dir;
+    private Config config;
+    private LogProto.Record record;
+    private Segment appendSegment;
+    private Segment readSegment;
+    private long readBase;
+    private long readCount;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("segment-bench").toFile();
+        config = new Config();
+        config.segment.maxStoreBytes = maxStoreBytes;
+        config.segment.maxIndexBytes = 64L << 20;
+        config.segment.readMode = readMode;
+        config.segment.checksums = checksums;
+
+        byte[] value = new byte[recordSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        record = LogProto.Record.newBuilder().setValue(ByteString.copyFrom(value)).build();
+
+        readBase = 1L << 40;
+        readSegment = new Segment(dir.getAbsolutePath(), readBase, config);
+        while (!readSegment.isMaxed()) {
+            readSegment.append(record);
+        }
+        readCount = readSegment.getNextOffset() - readBase;
+
+        appendSegment = new Segment(dir.getAbsolutePath(), 0, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        appendSegment.remove();
+        readSegment.remove();
+        for (File f : Objects.requireNonNull(dir.listFiles())) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        if (appendSegment.isMaxed()) {
+            appendSegment.remove();
+            appendSegment = new Segment(dir.getAbsolutePath(), 0, config);
+        }
+        return appendSegment.append(record);
+    }
+
+    @Benchmark
+    public LogProto.Record read() throws IOException {
+        return readSegment.read(readBase + ThreadLocalRandom.current().nextLong(readCount));
+    }
+}
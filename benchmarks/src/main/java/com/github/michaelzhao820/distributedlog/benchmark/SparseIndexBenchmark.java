@@ -0,0 +1,82 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Segment;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random reads from a full segment with a dense index ({@code indexIntervalRecords}
+ * 0) against sparse indexes that keep one entry per N records. The index file size
+ * of each configuration is printed at setup, since JMH only reports time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SparseIndexBenchmark {
+
+    @Param({"0", "8", "64", "512"})
+    public long indexIntervalRecords;
+
+    @Param({"64"})
+    public int recordSize;
+
+    @Param({"FILE", "MMAP"})
+    public Config.ReadMode readMode;
+
+    private File dir;
+    private Segment segment;
+    private long count;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("sparse-index-bench").toFile();
+        Config config = new Config();
+        config.segment.maxStoreBytes = 64L << 20;
+        config.segment.maxIndexBytes = 64L << 20;
+        config.segment.readMode = readMode;
+        config.segment.indexIntervalRecords = indexIntervalRecords;
+
+        byte[] value = new byte[recordSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        LogProto.Record record = LogProto.Record.newBuilder().setValue(ByteString.copyFrom(value)).build();
+
+        segment = new Segment(dir.getAbsolutePath(), 0, config);
+        while (!segment.isMaxed()) {
+            segment.append(record);
+        }
+        count = segment.getNextOffset();
+
+        // closing trims the index file to its used size
+        segment.close();
+        long indexBytes = new File(dir, "0.index").length();
+        System.out.printf("%n%d records, index %d bytes (%.2f bytes/record)%n",
+                count, indexBytes, (double) indexBytes / count);
+        segment = new Segment(dir.getAbsolutePath(), 0, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        segment.remove();
+        for (File f : Objects.requireNonNull(dir.listFiles())) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public LogProto.Record read() throws IOException {
+        return segment.read(ThreadLocalRandom.current().nextLong(count));
+    }
+}
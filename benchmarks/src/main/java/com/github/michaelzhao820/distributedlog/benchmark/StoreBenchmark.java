@@ -0,0 +1,89 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Store;
+import com.google.protobuf.CodedOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Store} append and append-batch throughput. Read paths are compared in
+ * {@link StoreReadBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int recordSize;
+
+    @Param({"32"})
+    public int batchSize;
+
+    private File file;
+    private Store store;
+    private byte[] payload;
+    private Store.FrameEncoder frame;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        file = Files.createTempFile("store-bench", ".store").toFile();
+        store = new Store(file, new Config());
+        payload = new byte[recordSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        frame = new Store.FrameEncoder() {
+            @Override
+            public int encodedSize() {
+                return payload.length;
+            }
+
+            @Override
+            public void encode(CodedOutputStream out) throws IOException {
+                out.writeRawBytes(payload);
+            }
+        };
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        store.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public Store.AppendResult append() {
+        return store.append(payload);
+    }
+
+    @Benchmark
+    public long appendFrame() {
+        return store.append(frame);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(32)
+    public int appendBatch() {
+        return store.appendBatch(new Store.FrameSource() {
+            private int n;
+
+            @Override
+            public Store.FrameEncoder next(long pos) {
+                return n < batchSize ? frame : null;
+            }
+
+            @Override
+            public void appended(long pos) {
+                n++;
+            }
+        });
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Store;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Store#read(long)} through the RandomAccessFile path against the
+ * memory-mapped path, on a sealed store and with a concurrent appender.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreReadBenchmark {
+
+    @Param({"FILE", "MMAP"})
+    public Config.ReadMode readMode;
+
+    @Param({"128", "4096"})
+    public int recordSize;
+
+    @Param({"10000"})
+    public int records;
+
+    private File file;
+    private Store store;
+    private long[] positions;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("store-read-bench", ".store").toFile();
+        Config c = new Config();
+        c.segment.readMode = readMode;
+        store = new Store(file, c);
+
+        payload = new byte[recordSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        positions = new long[records];
+        for (int i = 0; i < records; i++) {
+            positions[i] = store.append(payload).pos();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] readSingleThread() {
+        return store.read(positions[ThreadLocalRandom.current().nextInt(records)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] readFourThreads() {
+        return store.read(positions[ThreadLocalRandom.current().nextInt(records)]);
+    }
+
+    @Benchmark
+    @Group("appendAndRead")
+    @GroupThreads(3)
+    public byte[] readWhileAppending() {
+        return store.read(positions[ThreadLocalRandom.current().nextInt(records)]);
+    }
+
+    @Benchmark
+    @Group("appendAndRead")
+    @GroupThreads(1)
+    public Store.AppendResult appendWhileReading() {
+        return store.append(payload);
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.michaelzhao820.distributedlog.benchmark;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Topics;
+import com.github.michaelzhao820.distributedlog.internal.server.TopicRouter;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends from several threads to a topic with one partition against one with a
+ * partition per thread, routed round-robin as unkeyed produce requests are. With
+ * one partition every append queues on the same log lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicBenchmark {
+
+    @Param({"1", "4"})
+    public int partitions;
+
+    @Param({"256"})
+    public int recordSize;
+
+    private Topics topics;
+    private LogProto.Record record;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Config c = new Config();
+        c.segment.maxStoreBytes = 16L << 20;
+        c.segment.maxIndexBytes = 1 << 20;
+        c.topics.defaultPartitions = partitions;
+        topics = new Topics(Files.createTempDirectory("topic-bench").toString(), c);
+        topics.create("bench", partitions);
+
+        byte[] value = new byte[recordSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        record = LogProto.Record.newBuilder().setValue(ByteString.copyFrom(value)).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        topics.remove();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long append() throws IOException {
+        int p = topics.route("bench", TopicRouter.ANY_PARTITION, ByteString.EMPTY);
+        return topics.partition("bench", p).append(record);
+    }
+}
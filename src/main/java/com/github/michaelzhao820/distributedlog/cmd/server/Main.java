@@ -1,13 +1,30 @@
 package com.github.michaelzhao820.distributedlog.cmd.server;
-import com.github.michaelzhao820.distributedlog.internal.server.Log;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Log;
 import com.github.michaelzhao820.distributedlog.internal.server.LogHttpServer;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class Main {
+    private static final Logger logger = Logger.getLogger(Main.class.getName());
+
     public static void main(String[] args) throws Exception {
-        var log = new Log();
-        var server = new LogHttpServer(log, "localhost", 8080);
+        String dir = args.length > 0 ? args[0] : "data";
+        var config = new Config();
+        config.segment.maxStoreBytes = 64L << 20;
+        config.segment.maxIndexBytes = 10L << 20;
+        var log = new Log(dir, config);
+        var server = new LogHttpServer(log, "localhost", 8080, null, LogHttpServer.Codec.STREAMING);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            try {
+                log.close();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Failed to close the log in " + dir, e);
+            }
+        }));
         server.start();
-        System.out.println("Server started on http://localhost:8080");
+        System.out.println("Server started on http://localhost:8080, log in " + dir);
     }
 }
@@ -0,0 +1,128 @@
+package com.github.michaelzhao820.distributedlog.internal.discovery;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogGrpc;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.GetServersRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.GetServersResponse;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ServerInfo;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.server.ServerList;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A static list of the servers in a cluster, each health checked with a GetServers
+ * call every {@link Config.Discovery#healthCheckIntervalMs}. A peer is listed once
+ * it answers and left out from its first missed check until it answers again.
+ * Every server only knows whether it leads itself, so a peer's leader flag is
+ * taken from its own entry in the answer.
+ */
+public class Membership implements ServerList {
+
+    private static final Logger logger = Logger.getLogger(Membership.class.getName());
+
+    private final String id;
+    private final String rpcAddr;
+    private final BooleanSupplier leader;
+    private final Config.Discovery config;
+    private final Map<String, String> peers;
+    private final Map<String, ManagedChannel> channels = new LinkedHashMap<>();
+    // peers that answered their last check, by id
+    private final Map<String, ServerInfo> healthy = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService checker;
+
+    /**
+     * @param peers  Log service address of every other server, by server id
+     * @param leader whether this server currently takes produce requests
+     */
+    public Membership(String id, String rpcAddr, Map<String, String> peers, BooleanSupplier leader,
+                      Config.Discovery config) {
+        this.id = id;
+        this.rpcAddr = rpcAddr;
+        this.peers = new LinkedHashMap<>(peers);
+        this.leader = leader;
+        this.config = config;
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "membership-" + id);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Membership start() {
+        peers.forEach((peer, addr) -> channels.put(peer, ManagedChannelBuilder.forTarget(addr).usePlaintext().build()));
+        checker.scheduleWithFixedDelay(this::check, 0, config.healthCheckIntervalMs, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    @Override
+    public List<ServerInfo> servers() {
+        List<ServerInfo> servers = new ArrayList<>();
+        servers.add(ServerInfo.newBuilder()
+                .setId(id)
+                .setRpcAddr(rpcAddr)
+                .setIsLeader(leader.getAsBoolean())
+                .build());
+        for (String peer : peers.keySet()) {
+            ServerInfo info = healthy.get(peer);
+            if (info != null) {
+                servers.add(info);
+            }
+        }
+        return servers;
+    }
+
+    public void close() {
+        checker.shutdownNow();
+        for (ManagedChannel c : channels.values()) {
+            c.shutdownNow();
+        }
+    }
+
+    private void check() {
+        channels.forEach((peer, channel) -> LogGrpc.newStub(channel)
+                .withDeadlineAfter(config.healthCheckTimeoutMs, TimeUnit.MILLISECONDS)
+                .getServers(GetServersRequest.getDefaultInstance(), new StreamObserver<>() {
+                    @Override
+                    public void onNext(GetServersResponse res) {
+                        boolean isLeader = false;
+                        for (ServerInfo s : res.getServersList()) {
+                            if (s.getId().equals(peer)) {
+                                isLeader = s.getIsLeader();
+                            }
+                        }
+                        ServerInfo previous = healthy.put(peer, ServerInfo.newBuilder()
+                                .setId(peer)
+                                .setRpcAddr(peers.get(peer))
+                                .setIsLeader(isLeader)
+                                .build());
+                        if (previous == null) {
+                            logger.info("Server " + peer + " joined the cluster view of " + id);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        if (healthy.remove(peer) != null) {
+                            logger.log(Level.INFO, "Server " + peer + " failed its health check from " + id, t);
+                        }
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                }));
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.michaelzhao820.distributedlog.internal.loadbalance;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogGrpc;
+import io.grpc.*;
+
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load-balancing policy for addresses from {@link Resolver}: produce calls go to the
+ * leader, every other call round-robin to the followers that are connected, or to
+ * the leader while none is. Reads then scale with the number of followers.
+ * Leadership is a single flag per server, so this only routes correctly when one
+ * server leads every partition; with per-partition leaders spread over servers,
+ * produce calls for partitions led elsewhere fail with FAILED_PRECONDITION.
+ */
+public class Balancer extends LoadBalancer {
+
+    public static final String NAME = "dlog";
+    private static final Set<String> PRODUCE_METHODS = Set.of(
+            LogGrpc.getProduceMethod().getFullMethodName(),
+            LogGrpc.getProduceBatchMethod().getFullMethodName(),
+            LogGrpc.getProduceStreamMethod().getFullMethodName());
+
+    private final Helper helper;
+    // one subchannel per server, kept across resolutions while the server is listed
+    private final Map<SocketAddress, Subchannel> subchannels = new LinkedHashMap<>();
+    private final Map<Subchannel, ConnectivityState> states = new HashMap<>();
+    private SocketAddress leader;
+
+    Balancer(Helper helper) {
+        this.helper = helper;
+    }
+
+    @Override
+    public Status acceptResolvedAddresses(ResolvedAddresses resolved) {
+        Set<SocketAddress> listed = new HashSet<>();
+        leader = null;
+        for (EquivalentAddressGroup eag : resolved.getAddresses()) {
+            SocketAddress addr = eag.getAddresses().get(0);
+            listed.add(addr);
+            if (Boolean.TRUE.equals(eag.getAttributes().get(Resolver.IS_LEADER))) {
+                leader = addr;
+            }
+            if (!subchannels.containsKey(addr)) {
+                Subchannel sc = helper.createSubchannel(CreateSubchannelArgs.newBuilder()
+                        .setAddresses(new EquivalentAddressGroup(addr))
+                        .build());
+                subchannels.put(addr, sc);
+                states.put(sc, ConnectivityState.IDLE);
+                sc.start(info -> onState(sc, info));
+                sc.requestConnection();
+            }
+        }
+        Iterator<Map.Entry<SocketAddress, Subchannel>> it = subchannels.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<SocketAddress, Subchannel> e = it.next();
+            if (!listed.contains(e.getKey())) {
+                states.remove(e.getValue());
+                e.getValue().shutdown();
+                it.remove();
+            }
+        }
+        updatePicker();
+        return Status.OK;
+    }
+
+    @Override
+    public void handleNameResolutionError(Status error) {
+        if (subchannels.isEmpty()) {
+            helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE,
+                    new FixedResultPicker(PickResult.withError(error)));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (Subchannel sc : subchannels.values()) {
+            sc.shutdown();
+        }
+        subchannels.clear();
+        states.clear();
+    }
+
+    private void onState(Subchannel sc, ConnectivityStateInfo info) {
+        if (!states.containsKey(sc)) {
+            return;
+        }
+        states.put(sc, info.getState());
+        if (info.getState() == ConnectivityState.IDLE) {
+            sc.requestConnection();
+        } else if (info.getState() == ConnectivityState.TRANSIENT_FAILURE) {
+            // the server may be gone or no longer the leader
+            helper.refreshNameResolution();
+        }
+        updatePicker();
+    }
+
+    private void updatePicker() {
+        Subchannel readyLeader = null;
+        boolean leaderPending = false;
+        List<Subchannel> followers = new ArrayList<>();
+        boolean connecting = false;
+        for (Map.Entry<SocketAddress, Subchannel> e : subchannels.entrySet()) {
+            ConnectivityState state = states.get(e.getValue());
+            boolean isLeader = e.getKey().equals(leader);
+            if (state == ConnectivityState.READY) {
+                if (isLeader) {
+                    readyLeader = e.getValue();
+                } else {
+                    followers.add(e.getValue());
+                }
+            } else if (state != ConnectivityState.TRANSIENT_FAILURE) {
+                connecting = true;
+                leaderPending |= isLeader;
+            }
+        }
+        ConnectivityState overall = readyLeader != null || !followers.isEmpty() ? ConnectivityState.READY :
+                connecting ? ConnectivityState.CONNECTING : ConnectivityState.TRANSIENT_FAILURE;
+        helper.updateBalancingState(overall, new Picker(readyLeader, leaderPending, followers));
+    }
+
+    private static class Picker extends SubchannelPicker {
+        private final Subchannel leader;
+        private final boolean leaderPending;
+        private final List<Subchannel> followers;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Picker(Subchannel leader, boolean leaderPending, List<Subchannel> followers) {
+            this.leader = leader;
+            this.leaderPending = leaderPending;
+            this.followers = followers;
+        }
+
+        @Override
+        public PickResult pickSubchannel(PickSubchannelArgs args) {
+            if (PRODUCE_METHODS.contains(args.getMethodDescriptor().getFullMethodName())) {
+                if (leader != null) {
+                    return PickResult.withSubchannel(leader);
+                }
+                return leaderPending ? PickResult.withNoResult() :
+                        PickResult.withError(Status.UNAVAILABLE.withDescription("No leader among the cluster's servers"));
+            }
+            if (!followers.isEmpty()) {
+                return PickResult.withSubchannel(followers.get(Math.floorMod(next.getAndIncrement(), followers.size())));
+            }
+            return leader != null ? PickResult.withSubchannel(leader) : PickResult.withNoResult();
+        }
+    }
+
+    public static class Provider extends LoadBalancerProvider {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public int getPriority() {
+            return 5;
+        }
+
+        @Override
+        public String getPolicyName() {
+            return NAME;
+        }
+
+        @Override
+        public LoadBalancer newLoadBalancer(Helper helper) {
+            return new Balancer(helper);
+        }
+    }
+}
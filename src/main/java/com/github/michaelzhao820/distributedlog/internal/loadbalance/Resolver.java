@@ -0,0 +1,216 @@
+package com.github.michaelzhao820.distributedlog.internal.loadbalance;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogGrpc;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.GetServersRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.GetServersResponse;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ServerInfo;
+import io.grpc.*;
+import io.grpc.stub.StreamObserver;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves {@code dlog:///host:port[,host:port...]} to the servers of the cluster
+ * those bootstrap servers belong to, by asking one of them for GetServers. Later
+ * resolutions ask the servers of the last answer first and fall back to the
+ * bootstrap list, so a client keeps resolving while any server it knows of is up.
+ * Each address carries whether its server is the leader, and the result selects
+ * the {@link Balancer} policy. The list is refreshed every
+ * {@link #REFRESH_INTERVAL_MS} and whenever the balancer loses a connection, so
+ * clients follow leader changes.
+ */
+public class Resolver extends NameResolver {
+
+    public static final String SCHEME = "dlog";
+    public static final Attributes.Key<Boolean> IS_LEADER = Attributes.Key.create("dlog.is_leader");
+    static final long REFRESH_INTERVAL_MS = 5_000;
+    private static final long RESOLVE_TIMEOUT_MS = 5_000;
+    private static boolean registered;
+
+    private final List<String> bootstrap;
+    private final SynchronizationContext syncContext;
+    private final ScheduledExecutorService scheduler;
+    private final ConfigOrError serviceConfig;
+    // the rest is only touched in the synchronization context
+    private final Map<String, ManagedChannel> channels = new HashMap<>();
+    // rpc addresses from the last GetServers answer
+    private List<String> known = List.of();
+    private Listener2 listener;
+    private ScheduledFuture<?> refresher;
+    private boolean resolving;
+    private boolean shutdown;
+
+    Resolver(String bootstrap, Args args) {
+        this.bootstrap = List.of(bootstrap.split(","));
+        this.syncContext = args.getSynchronizationContext();
+        this.scheduler = args.getScheduledExecutorService();
+        this.serviceConfig = args.getServiceConfigParser().parseServiceConfig(
+                Map.of("loadBalancingConfig", List.of(Map.of(Balancer.NAME, Map.of()))));
+    }
+
+    /**
+     * Starts a channel to the cluster that {@code bootstrap}, the comma-separated
+     * host:port of one or more of its servers, belongs to. Produce calls on it go to
+     * the leader and consume calls are spread over the followers.
+     */
+    public static ManagedChannelBuilder<?> forCluster(String bootstrap) {
+        register();
+        return ManagedChannelBuilder.forTarget(SCHEME + ":///" + bootstrap);
+    }
+
+    private static synchronized void register() {
+        if (!registered) {
+            NameResolverRegistry.getDefaultRegistry().register(new Provider());
+            LoadBalancerRegistry.getDefaultRegistry().register(new Balancer.Provider());
+            registered = true;
+        }
+    }
+
+    @Override
+    public String getServiceAuthority() {
+        return bootstrap.get(0);
+    }
+
+    @Override
+    public void start(Listener2 listener) {
+        this.listener = listener;
+        resolve();
+        refresher = scheduler.scheduleWithFixedDelay(() -> syncContext.execute(this::resolve),
+                REFRESH_INTERVAL_MS, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void refresh() {
+        resolve();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        if (refresher != null) {
+            refresher.cancel(false);
+        }
+        for (ManagedChannel c : channels.values()) {
+            c.shutdownNow();
+        }
+        channels.clear();
+    }
+
+    private void resolve() {
+        if (resolving || shutdown) {
+            return;
+        }
+        resolving = true;
+        List<String> candidates = new ArrayList<>(known);
+        for (String b : bootstrap) {
+            if (!candidates.contains(b)) {
+                candidates.add(b);
+            }
+        }
+        // servers that left the cluster and are not bootstrap servers
+        channels.entrySet().removeIf(e -> {
+            if (candidates.contains(e.getKey())) {
+                return false;
+            }
+            e.getValue().shutdownNow();
+            return true;
+        });
+        ask(candidates, 0, null);
+    }
+
+    // asks the candidates in order until one answers
+    private void ask(List<String> candidates, int i, Status lastError) {
+        if (i == candidates.size()) {
+            resolving = false;
+            listener.onResult2(ResolutionResult.newBuilder()
+                    .setAddressesOrError(StatusOr.fromStatus(lastError
+                            .augmentDescription("GetServers failed on " + String.join(",", candidates))))
+                    .setServiceConfig(serviceConfig)
+                    .build());
+            return;
+        }
+        String target = candidates.get(i);
+        ManagedChannel channel = channels.computeIfAbsent(target,
+                t -> ManagedChannelBuilder.forTarget(t).usePlaintext().build());
+        LogGrpc.newStub(channel)
+                .withDeadlineAfter(RESOLVE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .getServers(GetServersRequest.getDefaultInstance(), new StreamObserver<>() {
+                    @Override
+                    public void onNext(GetServersResponse res) {
+                        syncContext.execute(() -> onServers(res));
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        syncContext.execute(() -> {
+                            if (shutdown) {
+                                resolving = false;
+                                return;
+                            }
+                            ask(candidates, i + 1, Status.fromThrowable(t));
+                        });
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+    }
+
+    private void onServers(GetServersResponse res) {
+        resolving = false;
+        if (shutdown) {
+            return;
+        }
+        List<EquivalentAddressGroup> addresses = new ArrayList<>();
+        List<String> servers = new ArrayList<>();
+        for (ServerInfo s : res.getServersList()) {
+            String addr = s.getRpcAddr();
+            int colon = addr.lastIndexOf(':');
+            addresses.add(new EquivalentAddressGroup(
+                    new InetSocketAddress(addr.substring(0, colon), Integer.parseInt(addr.substring(colon + 1))),
+                    Attributes.newBuilder().set(IS_LEADER, s.getIsLeader()).build()));
+            servers.add(addr);
+        }
+        known = servers;
+        listener.onResult2(ResolutionResult.newBuilder()
+                .setAddressesOrError(StatusOr.fromValue(addresses))
+                .setServiceConfig(serviceConfig)
+                .build());
+    }
+
+    public static class Provider extends NameResolverProvider {
+        @Override
+        protected boolean isAvailable() {
+            return true;
+        }
+
+        // below DNS at 5, so this never becomes the default scheme for plain targets
+        @Override
+        protected int priority() {
+            return 4;
+        }
+
+        @Override
+        public String getDefaultScheme() {
+            return SCHEME;
+        }
+
+        @Override
+        public NameResolver newNameResolver(URI targetUri, Args args) {
+            if (!SCHEME.equals(targetUri.getScheme())) {
+                return null;
+            }
+            String path = targetUri.getPath();
+            return new Resolver(path.startsWith("/") ? path.substring(1) : path, args);
+        }
+    }
+}
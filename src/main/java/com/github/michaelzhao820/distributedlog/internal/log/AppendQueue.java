@@ -0,0 +1,146 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.server.CommitLog.OffsetRange;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single writer thread behind {@link Log#appendAsync}. Callers put their appends on
+ * a bounded queue and only block when it is full; the writer takes whatever has
+ * queued up and appends it as one batch under one write lock. The futures are
+ * completed in queue order with their share of the offsets on a separate callback
+ * thread, so the stages callers chain on them never delay the next batch. A batch
+ * that fails leaves none of its records in the log, so every future in it fails.
+ */
+class AppendQueue {
+
+    private static final Logger logger = Logger.getLogger(AppendQueue.class.getName());
+    // queued by close() to wake an idle writer
+    private static final Pending CLOSE = new Pending(List.of(), null);
+
+    interface BatchAppender {
+        OffsetRange append(List<LogProto.Record> records) throws IOException;
+    }
+
+    private record Pending(List<LogProto.Record> records, CompletableFuture<OffsetRange> future) {}
+
+    private final BlockingQueue<Pending> queue;
+    private final int maxBatchRecords;
+    private final BatchAppender appender;
+    private final Thread thread;
+    private final ExecutorService callbacks;
+    private volatile boolean closed;
+
+    AppendQueue(Config c, BatchAppender appender) {
+        this.queue = new ArrayBlockingQueue<>(c.segment.appendQueueCapacity);
+        this.maxBatchRecords = c.segment.appendBatchRecords;
+        this.appender = appender;
+        this.callbacks = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "log-append-callbacks");
+            t.setDaemon(true);
+            return t;
+        });
+        this.thread = new Thread(this::run, "log-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    CompletableFuture<OffsetRange> submit(List<LogProto.Record> records) {
+        CompletableFuture<OffsetRange> future = new CompletableFuture<>();
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Log closed"));
+        }
+        try {
+            queue.put(new Pending(records, future));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(new InterruptedIOException("Interrupted while queueing an append"));
+        }
+        // close() may have drained the queue just before the put
+        if (closed && queue.remove(new Pending(records, future))) {
+            future.completeExceptionally(new IOException("Log closed"));
+        }
+        return future;
+    }
+
+    void close() {
+        closed = true;
+        // not interrupted, an interrupt in the middle of a write closes the store's
+        // channel; a full queue means the writer is busy and sees closed next round
+        queue.offer(CLOSE);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // completions already handed over still run
+        callbacks.shutdown();
+        List<Pending> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (Pending p : left) {
+            if (p != CLOSE) {
+                p.future.completeExceptionally(new IOException("Log closed"));
+            }
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        List<LogProto.Record> records = new ArrayList<>();
+        while (!closed) {
+            Pending first;
+            try {
+                first = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == CLOSE) {
+                return;
+            }
+            batch.add(first);
+            int n = first.records.size();
+            Pending next;
+            // the first append always goes, the rest only while the batch has room
+            while (n < maxBatchRecords && (next = queue.peek()) != null && next != CLOSE &&
+                    n + next.records.size() <= maxBatchRecords) {
+                batch.add(queue.poll());
+                n += next.records.size();
+            }
+            for (Pending p : batch) {
+                records.addAll(p.records);
+            }
+            List<Pending> done = List.copyOf(batch);
+            try {
+                OffsetRange range = appender.append(records);
+                callbacks.execute(() -> {
+                    long offset = range.first();
+                    for (Pending p : done) {
+                        long last = offset + p.records.size() - 1;
+                        p.future.complete(new OffsetRange(offset, last));
+                        offset = last + 1;
+                    }
+                });
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Failed to append a batch of " + records.size() + " records", e);
+                callbacks.execute(() -> {
+                    for (Pending p : done) {
+                        p.future.completeExceptionally(e);
+                    }
+                });
+            }
+            batch.clear();
+            records.clear();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The bytes of a sealed store cut into fixed-size blocks that are compressed one by
+ * one. Positions stay those of the plain store, so index entries keep working; a
+ * position maps to block {@code pos / blockSize} and the block table at the end of
+ * the file gives where that block starts. The most recently read blocks are kept
+ * decompressed, so sequential readers decompress each block once.
+ *
+ * <pre>
+ * header: magic(4) codec(1) blockSize(4)
+ * blocks: compressed bytes of each block
+ * footer: blockStart(8) * (count + 1), size(8), count(4), magic(4)
+ * </pre>
+ */
+class BlockFile {
+    private static final ByteOrder ENC = ByteOrder.BIG_ENDIAN;
+    private static final int MAGIC = 0x444c5a31;
+    private static final int HEADER_WIDTH = 4 + 1 + 4;
+    private static final int TRAILER_WIDTH = 8 + 4 + 4;
+    private static final int CACHED_BLOCKS = 8;
+
+    private final File file;
+    private final FileChannel channel;
+    private final Config.Compression codec;
+    private final int blockSize;
+    private final long[] blockStarts;
+    private final long size;
+    private final Map<Integer, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    BlockFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = readFully(0, HEADER_WIDTH);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a compressed store: " + file.getAbsolutePath());
+            }
+            this.codec = Config.Compression.values()[header.get()];
+            this.blockSize = header.getInt();
+
+            ByteBuffer trailer = readFully(channel.size() - TRAILER_WIDTH, TRAILER_WIDTH);
+            this.size = trailer.getLong();
+            int count = trailer.getInt();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("Compressed store is incomplete: " + file.getAbsolutePath());
+            }
+            ByteBuffer table = readFully(channel.size() - TRAILER_WIDTH - 8L * (count + 1), 8 * (count + 1));
+            this.blockStarts = new long[count + 1];
+            for (int i = 0; i <= count; i++) {
+                blockStarts[i] = table.getLong();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Compresses the plain store bytes from {@code in} into {@code out}. The file is
+     * written under a temporary name, forced and then renamed, so {@code out} either
+     * does not exist or is complete.
+     */
+    static void write(InputStream in, File out, Config.Compression codec, int blockSize) throws IOException {
+        File tmp = new File(out.getPath() + ".tmp");
+        long[] starts = new long[16];
+        int count = 0;
+        long size = 0;
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_WIDTH).order(ENC);
+            header.putInt(MAGIC).put((byte) codec.ordinal()).putInt(blockSize).flip();
+            writeFully(ch, header);
+
+            byte[] raw = new byte[blockSize];
+            byte[] packed = new byte[blockSize + blockSize / 8 + 64];
+            long filePos = HEADER_WIDTH;
+            int n;
+            while ((n = in.readNBytes(raw, 0, blockSize)) > 0) {
+                if (count + 1 >= starts.length) {
+                    starts = java.util.Arrays.copyOf(starts, starts.length * 2);
+                }
+                starts[count++] = filePos;
+                int len = compress(codec, raw, n, packed);
+                writeFully(ch, ByteBuffer.wrap(packed, 0, len));
+                filePos += len;
+                size += n;
+            }
+            starts[count] = filePos;
+
+            ByteBuffer footer = ByteBuffer.allocate(8 * (count + 1) + TRAILER_WIDTH).order(ENC);
+            for (int i = 0; i <= count; i++) {
+                footer.putLong(starts[i]);
+            }
+            footer.putLong(size).putInt(count).putInt(MAGIC).flip();
+            writeFully(ch, footer);
+            ch.force(true);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns a read-only view of [pos, pos + len). Ranges inside one block share the
+     * cached block; ranges spanning blocks are copied.
+     */
+    ByteBuffer range(long pos, int len) throws IOException {
+        if (pos < 0 || pos + len > size) {
+            throw new EOFException("Read at position " + pos + " beyond end of store " + file.getName());
+        }
+        int first = (int) (pos / blockSize);
+        int last = (int) ((pos + Math.max(len, 1) - 1) / blockSize);
+        if (first == last) {
+            return ByteBuffer.wrap(block(first), (int) (pos - (long) first * blockSize), len)
+                    .slice().asReadOnlyBuffer().order(ENC);
+        }
+        byte[] out = new byte[len];
+        int copied = 0;
+        for (int b = first; b <= last; b++) {
+            byte[] block = block(b);
+            int from = b == first ? (int) (pos - (long) first * blockSize) : 0;
+            int n = Math.min(block.length - from, len - copied);
+            System.arraycopy(block, from, out, copied, n);
+            copied += n;
+        }
+        return ByteBuffer.wrap(out).asReadOnlyBuffer().order(ENC);
+    }
+
+    /**
+     * Streams the plain store bytes, one decompressed block at a time.
+     */
+    InputStream inputStream() {
+        return new InputStream() {
+            private int next;
+            private byte[] current = new byte[0];
+            private int pos;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (pos == current.length) {
+                    if (next == blockStarts.length - 1) {
+                        return -1;
+                    }
+                    // bypass the cache so a full pass does not evict blocks readers are using
+                    current = decompress(next++);
+                    pos = 0;
+                }
+                int n = Math.min(len, current.length - pos);
+                System.arraycopy(current, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+
+    long compressedSize() throws IOException {
+        return channel.size();
+    }
+
+    void close() throws IOException {
+        synchronized (cache) {
+            cache.clear();
+        }
+        channel.close();
+    }
+
+    private byte[] block(int b) throws IOException {
+        synchronized (cache) {
+            byte[] cached = cache.get(b);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] raw = decompress(b);
+        synchronized (cache) {
+            cache.put(b, raw);
+        }
+        return raw;
+    }
+
+    private byte[] decompress(int b) throws IOException {
+        long start = blockStarts[b];
+        int packedLen = (int) (blockStarts[b + 1] - start);
+        int rawLen = (int) Math.min(blockSize, size - (long) b * blockSize);
+        ByteBuffer packed = readFully(start, packedLen);
+        byte[] raw = new byte[rawLen];
+        switch (codec) {
+            case NONE:
+                packed.get(raw);
+                break;
+            case DEFLATE:
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(packed.array(), packed.arrayOffset(), packedLen);
+                    int n = 0;
+                    while (n < rawLen) {
+                        int m = inflater.inflate(raw, n, rawLen - n);
+                        if (m == 0 && (inflater.finished() || inflater.needsInput())) {
+                            break;
+                        }
+                        n += m;
+                    }
+                    if (n != rawLen) {
+                        throw new IOException("Block " + b + " of " + file.getName() + " is truncated");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Block " + b + " of " + file.getName() + " is corrupt", e);
+                } finally {
+                    inflater.end();
+                }
+                break;
+        }
+        return raw;
+    }
+
+    // returns the compressed length written to dst, which must hold a worst-case block
+    private static int compress(Config.Compression codec, byte[] src, int len, byte[] dst) {
+        switch (codec) {
+            case DEFLATE:
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+                try {
+                    deflater.setInput(src, 0, len);
+                    deflater.finish();
+                    int n = 0;
+                    while (!deflater.finished()) {
+                        n += deflater.deflate(dst, n, dst.length - n);
+                    }
+                    return n;
+                } finally {
+                    deflater.end();
+                }
+            case NONE:
+            default:
+                System.arraycopy(src, 0, dst, 0, len);
+                return len;
+        }
+    }
+
+    private ByteBuffer readFully(long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len).order(ENC);
+        while (b.hasRemaining()) {
+            if (channel.read(b, pos + b.position()) < 0) {
+                throw new EOFException("Unexpected end of " + file.getName());
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            ch.write(b);
+        }
+    }
+}
@@ -2,10 +2,143 @@ package com.github.michaelzhao820.distributedlog.internal.log;
 
 public class Config {
     public Segment segment = new Segment();
+    public Cache cache = new Cache();
+    public Retention retention = new Retention();
+    public Compaction compaction = new Compaction();
+    public Topics topics = new Topics();
+    public Replication replication = new Replication();
+    public Raft raft = new Raft();
+    public Discovery discovery = new Discovery();
+
+    public enum ReadMode {
+        // positional reads through a RandomAccessFile under the store lock
+        FILE,
+        // lock-free reads from a MappedByteBuffer over the flushed prefix
+        MMAP
+    }
+
+    public enum SyncPolicy {
+        // every append waits for a sync; concurrent appends share one group commit
+        PER_RECORD,
+        // sync once syncEveryRecords records are pending
+        EVERY_N_RECORDS,
+        // sync every syncIntervalMs milliseconds
+        INTERVAL,
+        // leave write-back to the OS, sync only on close
+        OS
+    }
+
+    public enum Eviction {
+        // least recently used record first
+        LRU,
+        // second-chance clock; hits only set a reference bit, no reordering
+        CLOCK,
+        // drop every cached record of the least recently used segment at once
+        SEGMENT
+    }
+
+    public enum Compression {
+        // sealed segments stay as written
+        NONE,
+        // sealed segments are rewritten as blocks compressed with DEFLATE at its fastest level
+        DEFLATE
+    }
 
     public static class Segment {
         public long maxStoreBytes;   // Removed static
         public long maxIndexBytes;   // Removed static
         public long initialOffset;
+        public ReadMode readMode = ReadMode.FILE;
+        // write frames with a CRC32C of the payload; frames without one stay readable
+        public boolean checksums;
+        // check the CRC32C of checksummed frames whenever they are read
+        public boolean verifyChecksums = true;
+        // scrub sealed segments in the background every scrubIntervalMs; 0 disables it
+        public long scrubIntervalMs;
+        // codec sealed segments are rewritten with in the background; reads decompress
+        // whole blocks of compressionBlockBytes and keep the latest few per segment
+        public Compression compression = Compression.NONE;
+        public int compressionBlockBytes = 64 << 10;
+        // sparse index: one entry per indexIntervalRecords records or indexIntervalBytes
+        // store bytes, whichever comes first; both 0 indexes every record
+        public long indexIntervalRecords;
+        public long indexIntervalBytes;
+        public SyncPolicy syncPolicy = SyncPolicy.OS;
+        public long syncEveryRecords;
+        public long syncIntervalMs;
+        // make Log.append wait until its record is synced under EVERY_N_RECORDS or INTERVAL
+        public boolean awaitSync;
+        // appends waiting for the appendAsync writer thread before callers block
+        public int appendQueueCapacity = 4096;
+        // most records the writer thread combines into one batch
+        public int appendBatchRecords = 1024;
+        // open sealed segments in the background on this many threads after startup;
+        // 0 leaves each one closed until its first read
+        public int preloadThreads;
+    }
+
+    public static class Retention {
+        // delete the oldest sealed segments while the stores add up to more than this; 0 keeps any size
+        public long maxLogBytes;
+        // delete sealed segments whose newest record is older than this; 0 keeps them forever
+        public long maxAgeMs;
+        // never delete down to fewer segments than this, the active one included
+        public int minSegments = 1;
+        // how often the background cleaner checks, when either limit is set
+        public long checkIntervalMs = 60_000;
+    }
+
+    public static class Compaction {
+        // rewrite sealed segments in the background keeping only the newest record per key
+        public boolean enabled;
+        public long checkIntervalMs = 60_000;
+        // tombstones are dropped once older than this, so consumers have time to see them
+        public long tombstoneRetentionMs = 24 * 60 * 60 * 1000L;
+    }
+
+    public static class Topics {
+        // partitions of topics created on first produce; existing topics keep theirs
+        public int defaultPartitions = 1;
+    }
+
+    public static class Replication {
+        // replicas, the leader included, that must hold a record before it is
+        // committed and its produce request is acknowledged
+        public int acks = 1;
+        // produce requests fail if their records are not committed in time
+        public long ackTimeoutMs = 10_000;
+        // most a leader sends a follower in one fetch response
+        public int fetchMaxRecords = 256;
+        public long fetchMaxBytes = 1 << 20;
+        // wait before a follower reconnects to its leader after the fetch stream fails
+        public long retryBackoffMs = 500;
+    }
+
+    public static class Raft {
+        // a follower that hears from no leader for a random time between this and
+        // twice this starts an election
+        public long electionTimeoutMs = 1_000;
+        // how often a leader sends followers empty AppendEntries when idle
+        public long heartbeatMs = 100;
+        // most entries and bytes in one AppendEntries request
+        public int maxBatchRecords = 256;
+        public long maxBatchBytes = 1 << 20;
+        // AppendEntries requests a leader sends one follower before hearing back
+        public int maxInflight = 8;
+        // produce requests fail if their records are not committed in time
+        public long commitTimeoutMs = 10_000;
+    }
+
+    public static class Discovery {
+        // how often each server checks the others with a GetServers call
+        public long healthCheckIntervalMs = 1_000;
+        // a server that does not answer in time is left out until it does
+        public long healthCheckTimeoutMs = 500;
+    }
+
+    public static class Cache {
+        // 0 disables the record cache
+        public long maxBytes;
+        public Eviction eviction = Eviction.LRU;
     }
 }
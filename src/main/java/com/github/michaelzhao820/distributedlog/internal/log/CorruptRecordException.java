@@ -0,0 +1,12 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+/**
+ * Thrown when a stored frame fails its CRC32C check.
+ */
+public class CorruptRecordException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CorruptRecordException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,206 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background group-commit thread. Appenders report the offset they reached and,
+ * when the policy requires it, park until a sync covers their record; one sync
+ * then makes every record appended before it durable.
+ */
+class Flusher {
+
+    private static final Logger logger = Logger.getLogger(Flusher.class.getName());
+    private static final long RETRY_MILLIS = 100;
+
+    interface SyncAction {
+        /**
+         * Syncs the log and returns the exclusive end offset it covered.
+         */
+        long sync() throws IOException;
+    }
+
+    private final Config.SyncPolicy policy;
+    private final long everyRecords;
+    private final long intervalNanos;
+    private final SyncAction action;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    private final Thread thread;
+
+    private long appendedEnd;
+    private long durableEnd;
+    private long requestedEnd;
+    private long lastSyncNanos = System.nanoTime();
+    // bumped by rewind, so a sync that started before it does not count for the
+    // records appended again after it
+    private long epoch;
+    private IOException failure;
+    private boolean closed;
+
+    Flusher(Config c, long durableEnd, SyncAction action) {
+        this.policy = c.segment.syncPolicy;
+        this.everyRecords = c.segment.syncEveryRecords;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(c.segment.syncIntervalMs);
+        this.action = action;
+        this.appendedEnd = durableEnd;
+        this.durableEnd = durableEnd;
+        this.requestedEnd = durableEnd;
+
+        this.thread = new Thread(this::run, "log-flusher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void appended(long end) {
+        lock.lock();
+        try {
+            if (end > appendedEnd) {
+                appendedEnd = end;
+            }
+            if (shouldSync()) {
+                work.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the record at {@code offset} has been synced.
+     */
+    void await(long offset) throws IOException {
+        lock.lock();
+        try {
+            if (offset >= requestedEnd) {
+                requestedEnd = offset + 1;
+                work.signal();
+            }
+            while (durableEnd <= offset) {
+                if (failure != null) {
+                    throw new IOException("Sync failed", failure);
+                }
+                if (closed) {
+                    throw new IOException("Log closed before offset " + offset + " was synced");
+                }
+                synced.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for sync of offset " + offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets progress past {@code end} once the log has been truncated there.
+     */
+    void rewind(long end) {
+        lock.lock();
+        try {
+            epoch++;
+            appendedEnd = Math.min(appendedEnd, end);
+            durableEnd = Math.min(durableEnd, end);
+            requestedEnd = Math.min(requestedEnd, end);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean shouldSync() {
+        if (appendedEnd <= durableEnd) {
+            return false;
+        }
+        if (requestedEnd > durableEnd) {
+            return true;
+        }
+        return switch (policy) {
+            case PER_RECORD -> true;
+            case EVERY_N_RECORDS -> appendedEnd - durableEnd >= everyRecords;
+            case INTERVAL -> System.nanoTime() - lastSyncNanos >= intervalNanos;
+            case OS -> false;
+        };
+    }
+
+    private void run() {
+        while (true) {
+            long started;
+            lock.lock();
+            try {
+                while (!closed && !shouldSync()) {
+                    if (policy == Config.SyncPolicy.INTERVAL) {
+                        long wait = intervalNanos - (System.nanoTime() - lastSyncNanos);
+                        work.awaitNanos(Math.max(wait, intervalNanos / 10));
+                    } else {
+                        work.await();
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                started = epoch;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            long end = 0;
+            IOException error = null;
+            try {
+                end = action.sync();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to sync log", e);
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                lastSyncNanos = System.nanoTime();
+                failure = error;
+                if (end > durableEnd && epoch == started) {
+                    durableEnd = end;
+                }
+                if (error != null) {
+                    // let current waiters fail instead of retrying them forever
+                    requestedEnd = durableEnd;
+                }
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            if (error != null) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
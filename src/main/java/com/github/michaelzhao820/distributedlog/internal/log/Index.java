@@ -17,6 +17,7 @@ public class Index {
     @Getter
     private long size; // total bytes used (just entries, no header)
     private final Config config;
+    private volatile boolean closed;
 
     public record IndexEntry(int offset, long pos) {}
 
@@ -34,9 +35,28 @@ public class Index {
         long mmapSize = c.segment.maxIndexBytes;
         this.mmap = channel.map(FileChannel.MapMode.READ_WRITE, 0, mmapSize);
         this.config = c;
+
+        // an index that was not closed cleanly is still padded to maxIndexBytes with
+        // zeros; positions increase after the first entry, so the padding starts at
+        // the first later entry with position 0
+        long lo = 1;
+        long hi = Math.min(this.size, mmapSize) / ENT_WIDTH;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (mmap.getLong((int) (mid * ENT_WIDTH + OFF_WIDTH)) != 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        this.size = Math.min(lo, Math.min(this.size, mmapSize) / ENT_WIDTH) * ENT_WIDTH;
     }
 
     public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
         mmap.force();
         file.getFD().sync();
         file.setLength(size);
@@ -61,6 +81,32 @@ public class Index {
         return new IndexEntry(off, position);
     }
 
+    /**
+     * Returns the entry with the greatest relative offset not above {@code in}.
+     * Entries are written in offset order, so this works for sparse indexes too.
+     */
+    public IndexEntry floor(long in) throws EOFException {
+        long n = size / ENT_WIDTH;
+        if (n == 0) {
+            throw new EOFException("EOF: index is empty");
+        }
+        long lo = 0;
+        long hi = n - 1;
+        if (mmap.getInt(0) > in) {
+            throw new EOFException("EOF: requested offset before first entry");
+        }
+        while (lo < hi) {
+            long mid = (lo + hi + 1) >>> 1;
+            if (mmap.getInt((int) (mid * ENT_WIDTH)) <= in) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        int pos = (int) (lo * ENT_WIDTH);
+        return new IndexEntry(mmap.getInt(pos), mmap.getLong(pos + OFF_WIDTH));
+    }
+
     public void write(int off, long pos) throws EOFException {
         if (size + ENT_WIDTH > config.segment.maxIndexBytes) {
             throw new EOFException("Index full");
@@ -69,8 +115,24 @@ public class Index {
         mmap.putInt((int) size, off);
         mmap.putLong((int) (size + OFF_WIDTH), pos);
         size += ENT_WIDTH;
+    }
 
-        mmap.force();
+    /**
+     * Drops every entry after the first {@code entries}, zeroing them so they read
+     * as padding if the index is reopened without a clean close.
+     */
+    public void truncate(long entries) {
+        long newSize = Math.min(entries * ENT_WIDTH, size);
+        for (long p = newSize; p < size; p++) {
+            mmap.put((int) p, (byte) 0);
+        }
+        size = newSize;
+    }
+
+    public void sync() {
+        if (!closed) {
+            mmap.force();
+        }
     }
 
     public String name() {
@@ -7,21 +7,55 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 public class Log implements CommitLog {
+    private static final Logger logger = Logger.getLogger(Log.class.getName());
+    // written by close() and removed by setup(), so its absence means the last run crashed
+    static final String CLEAN_SHUTDOWN_FILE = ".clean_shutdown";
+
     private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
     private final String dir;
     private final Config config;
     private Segment activeSegment;
-    private final List<Segment> segments = new ArrayList<>();
+    // keyed by base offset so reads find their segment with a floor lookup
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // sealed segments whose tail has not been synced yet
+    private final ConcurrentLinkedQueue<Segment> unsynced = new ConcurrentLinkedQueue<>();
+    private Flusher flusher;
+    private ScheduledExecutorService scrubber;
+    // compresses and compacts sealed segments, one at a time so the two never
+    // rewrite the same files at once
+    private ScheduledExecutorService rewriter;
+    private ScheduledExecutorService cleaner;
+    private OffsetWatcher watcher;
+    // started by the first appendAsync after setup()
+    private volatile AppendQueue writer;
+    // null unless config.cache.maxBytes is set
+    private final RecordCache cache;
+    // last append timestamp handed out, so timestamps never go backwards across segments
+    private long lastTimestamp;
 
     public Log(String dir, Config c) throws IOException {
         if (c.segment.maxStoreBytes == 0) {
@@ -31,17 +65,30 @@ public class Log implements CommitLog {
         if (c.segment.maxIndexBytes == 0) {
             c.segment.maxIndexBytes = 1024;
         }
+
+        if (c.segment.syncEveryRecords == 0) {
+            c.segment.syncEveryRecords = 1000;
+        }
+
+        if (c.segment.syncIntervalMs == 0) {
+            c.segment.syncIntervalMs = 1000;
+        }
         this.dir = dir;
         this.config = c;
+        this.cache = c.cache.maxBytes > 0 ? RecordCache.create(c.cache, this::segmentBase) : null;
         setup();
     }
     private void setup() throws IOException{
+        writer = null;
         File dirFile = new File(this.dir);
+        // reset() removes the directory before setting up again
+        dirFile.mkdirs();
         File[] files = dirFile.listFiles();
         if (files == null) {
             throw new RuntimeException("Cannot read directory:" + this.dir);
         }
-        List<Long> baseOffsets = new ArrayList<>();
+        // each segment has several files, dedupe their base offsets
+        TreeSet<Long> baseOffsets = new TreeSet<>();
         for (File file : files) {
             String name = file.getName();
 
@@ -56,58 +103,730 @@ public class Log implements CommitLog {
 
             }
         }
-        Collections.sort(baseOffsets);
+        File marker = new File(dirFile, CLEAN_SHUTDOWN_FILE);
+        boolean clean = marker.exists();
+        if (clean && !marker.delete()) {
+            throw new IOException("Failed to delete clean shutdown marker: " + marker.getAbsolutePath());
+        }
 
-        for (int i = 0; i < baseOffsets.size(); i++) {
-            long baseOffset = baseOffsets.get(i);
-            newSegment(baseOffset);
-            // baseOffset contains dup for index and store so we skip
-            // the dup
-            i++;
+        // sealed segments end where the next one starts, so only the newest one is
+        // opened now; the others are mapped on first read
+        Long next = null;
+        for (long baseOffset : baseOffsets.descendingSet()) {
+            if (next == null) {
+                Segment s = new Segment(dir, baseOffset, config, !clean);
+                segments.put(baseOffset, s);
+                activeSegment = s;
+            } else {
+                segments.put(baseOffset, Segment.sealed(dir, baseOffset, next, config));
+            }
+            next = baseOffset;
         }
         if (segments.isEmpty()) {
             newSegment(config.segment.initialOffset);
         }
+        if (config.segment.preloadThreads > 0 && segments.size() > 1) {
+            preload(segments.headMap(activeSegment.getBaseOffset()).values());
+        }
+        lastTimestamp = activeSegment.getMaxTimestamp();
+        watcher = new OffsetWatcher(activeSegment.getNextOffset());
+        if (config.segment.syncPolicy != Config.SyncPolicy.OS) {
+            flusher = new Flusher(config, activeSegment.getNextOffset(), this::syncSegments);
+        }
+        if (config.segment.compression != Config.Compression.NONE || config.compaction.enabled) {
+            rewriter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "log-rewriter");
+                t.setDaemon(true);
+                return t;
+            });
+            for (Segment s : segments.headMap(activeSegment.getBaseOffset()).values()) {
+                if (s.needsCompression()) {
+                    rewriter.execute(() -> compress(s));
+                }
+            }
+            if (config.compaction.enabled) {
+                rewriter.scheduleWithFixedDelay(this::compactQuietly, config.compaction.checkIntervalMs,
+                        config.compaction.checkIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (config.retention.maxLogBytes > 0 || config.retention.maxAgeMs > 0) {
+            cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "log-cleaner");
+                t.setDaemon(true);
+                return t;
+            });
+            cleaner.scheduleWithFixedDelay(this::enforceRetentionQuietly, config.retention.checkIntervalMs,
+                    config.retention.checkIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        if (config.segment.scrubIntervalMs > 0) {
+            scrubber = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "log-scrubber");
+                t.setDaemon(true);
+                return t;
+            });
+            scrubber.scheduleWithFixedDelay(this::scrubQuietly, config.segment.scrubIntervalMs,
+                    config.segment.scrubIntervalMs, TimeUnit.MILLISECONDS);
+        }
     }
+    private void preload(Iterable<Segment> sealed) {
+        AtomicInteger n = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(config.segment.preloadThreads, r -> {
+            Thread t = new Thread(r, "log-preload-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (Segment s : sealed) {
+            pool.execute(() -> {
+                try {
+                    s.preload();
+                } catch (IOException e) {
+                    // closed or removed meanwhile; a read would open it anyway
+                    logger.log(Level.FINE, "Skipped preloading segment " + s.getBaseOffset(), e);
+                }
+            });
+        }
+        pool.shutdown();
+    }
+
     @Override
     public long append(LogProto.Record record) throws IOException {
+        long offset;
         rwLock.writeLock().lock();
         try {
-            long offset = activeSegment.append(record);
+            long ts = nextTimestamp();
+            offset = activeSegment.append(record, ts);
+            if (cache != null) {
+                cache.put(offset, record.toBuilder().setOffset(offset).setTimestamp(ts).build());
+            }
             if (activeSegment.isMaxed()) {
-                newSegment(offset + 1);
+                sealActiveSegment(offset + 1);
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+        watcher.advance(offset + 1);
+        awaitSync(offset);
+        return offset;
+    }
+    @Override
+    public OffsetRange appendBatch(List<LogProto.Record> records) throws IOException {
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("Batch is empty");
+        }
+        long first;
+        long last;
+        rwLock.writeLock().lock();
+        try {
+            first = activeSegment.getNextOffset();
+            long ts = nextTimestamp();
+            int appended = 0;
+            try {
+                while (appended < records.size()) {
+                    appended += activeSegment.append(records, appended, ts);
+                    if (activeSegment.isMaxed()) {
+                        sealActiveSegment(activeSegment.getNextOffset());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // all or nothing, so a producer retrying the batch writes none of it twice
+                try {
+                    truncateFrom(first);
+                } catch (IOException | RuntimeException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            last = first + records.size() - 1;
+            if (cache != null) {
+                for (int i = 0; i < records.size(); i++) {
+                    cache.put(first + i, records.get(i).toBuilder().setOffset(first + i).setTimestamp(ts).build());
+                }
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+        watcher.advance(last + 1);
+        awaitSync(last);
+        return new OffsetRange(first, last);
+    }
+
+    /**
+     * Queues the record for the single writer thread, which appends whatever has
+     * queued up since its last write as one batch. Futures complete in queue order,
+     * so offsets follow the order the calls returned in.
+     */
+    @Override
+    public CompletableFuture<Long> appendAsync(LogProto.Record record) {
+        return writer().submit(List.of(record)).thenApply(OffsetRange::first);
+    }
+
+    @Override
+    public CompletableFuture<OffsetRange> appendBatchAsync(List<LogProto.Record> records) {
+        if (records.isEmpty()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Batch is empty"));
+        }
+        return writer().submit(records);
+    }
+
+    private AppendQueue writer() {
+        AppendQueue w = writer;
+        if (w == null) {
+            synchronized (this) {
+                if (writer == null) {
+                    writer = new AppendQueue(config, this::appendBatch);
+                }
+                w = writer;
             }
-            return offset;
+        }
+        return w;
+    }
+
+    /**
+     * Appends records copied from a leader, keeping the offsets and timestamps it
+     * assigned. Offsets must continue from the end of this log. A jump forward, left
+     * on the leader by compaction or retention, starts a new segment at the offset
+     * of the record after it.
+     */
+    public void appendReplicated(List<LogProto.Record> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        long last;
+        rwLock.writeLock().lock();
+        try {
+            for (LogProto.Record record : records) {
+                long next = activeSegment.getNextOffset();
+                if (record.getOffset() < next) {
+                    throw new IOException("Replicated offset " + record.getOffset() +
+                            " is behind the end of the log at " + next);
+                }
+                if (record.getOffset() > next) {
+                    skipTo(record.getOffset());
+                }
+                lastTimestamp = Math.max(lastTimestamp, record.getTimestamp());
+                long offset = activeSegment.append(record, record.getTimestamp());
+                if (cache != null) {
+                    cache.put(offset, record);
+                }
+                if (activeSegment.isMaxed()) {
+                    sealActiveSegment(offset + 1);
+                }
+            }
+            last = activeSegment.getNextOffset() - 1;
         } finally {
             rwLock.writeLock().unlock();
         }
+        watcher.advance(last + 1);
+        awaitSync(last);
+    }
+
+    // continues the log at offset, leaving the offsets before it missing
+    private void skipTo(long offset) throws IOException {
+        Segment s = activeSegment;
+        if (s.getNextOffset() == s.getBaseOffset()) {
+            // the segment before, if any, now ends where the new one starts
+            segments.remove(s.getBaseOffset());
+            s.remove();
+            Map.Entry<Long, Segment> previous = segments.lastEntry();
+            if (previous != null) {
+                previous.getValue().markGapped();
+            }
+            newSegment(offset);
+        } else {
+            s.markGapped();
+            sealActiveSegment(offset);
+        }
     }
+
     @Override
     public LogProto.Record read(long offset) throws IOException {
         rwLock.readLock().lock();
         try {
-            Segment s = null;
-            for (Segment segment : segments) {
-                if (segment.getBaseOffset() <= offset && offset < segment.getNextOffset()) {
-                    s = segment;
+            if (cache != null) {
+                LogProto.Record cached = cache.get(offset);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null || offset >= entry.getValue().getNextOffset()) {
+                throw new IOException("Offset out of range: " + offset);
+            }
+            LogProto.Record record = entry.getValue().read(offset);
+            if (cache != null) {
+                cache.put(offset, record);
+            }
+            return record;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the first offset appended at or after {@code timestamp} (milliseconds
+     * since the epoch), or the next offset to be appended if every record is older.
+     */
+    @Override
+    public long offsetForTimestamp(long timestamp) throws IOException {
+        rwLock.readLock().lock();
+        try {
+            // timestamps increase across segments, so the first segment that reaches
+            // the timestamp holds the answer; a binary search only opens a few of them
+            List<Segment> list = new ArrayList<>(segments.values());
+            if (activeSegment.getNextOffset() == activeSegment.getBaseOffset()) {
+                // an empty active segment has no timestamp to compare
+                list.remove(list.size() - 1);
+            }
+            int lo = 0;
+            int hi = list.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (list.get(mid).getMaxTimestamp() < timestamp) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (lo == list.size()) {
+                return activeSegment.getNextOffset();
+            }
+            return list.get(lo).offsetForTimestamp(timestamp);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Verifies the checksums of every sealed segment and returns the number of
+     * corrupt frames found; each one is logged with its segment and position. Runs
+     * without the log lock, so appends and reads carry on meanwhile.
+     */
+    public long scrub() {
+        List<Segment> sealed;
+        rwLock.readLock().lock();
+        try {
+            sealed = new ArrayList<>(segments.headMap(activeSegment.getBaseOffset()).values());
+        } finally {
+            rwLock.readLock().unlock();
+        }
+        long corrupt = 0;
+        for (Segment s : sealed) {
+            try {
+                for (long pos : s.scrub()) {
+                    logger.severe("Corrupt frame in segment " + s.getBaseOffset() + " at position " + pos);
+                    corrupt++;
+                }
+            } catch (IOException | RuntimeException e) {
+                // removed or closed while scrubbing
+                logger.log(Level.FINE, "Skipped scrubbing segment " + s.getBaseOffset(), e);
+            }
+        }
+        return corrupt;
+    }
+
+    /**
+     * Deletes the oldest sealed segments that fall outside {@code config.retention}
+     * and returns how many were deleted. Segments only leave from the front, so the
+     * walk stops at the first one that is kept. The write lock is held just to take
+     * them out of the segment map; closing and unlinking their files happens after
+     * it is released.
+     */
+    public int enforceRetention() throws IOException {
+        Config.Retention r = config.retention;
+        List<Segment> expired = new ArrayList<>();
+        rwLock.readLock().lock();
+        try {
+            if (activeSegment == null) {
+                return 0;
+            }
+            long total = 0;
+            for (Segment s : segments.values()) {
+                total += s.storeBytes();
+            }
+            long oldest = System.currentTimeMillis() - r.maxAgeMs;
+            int left = segments.size();
+            for (Segment s : segments.headMap(activeSegment.getBaseOffset()).values()) {
+                if (left <= r.minSegments) {
+                    break;
+                }
+                boolean tooBig = r.maxLogBytes > 0 && total > r.maxLogBytes;
+                boolean tooOld = r.maxAgeMs > 0 && s.getMaxTimestamp() < oldest;
+                if (!tooBig && !tooOld) {
                     break;
                 }
+                expired.add(s);
+                total -= s.storeBytes();
+                left--;
+            }
+        } finally {
+            rwLock.readLock().unlock();
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+
+        // compaction may have swapped a cleaned segment in under the same base
+        // offset meanwhile; that one is left for the next check
+        List<Segment> removed = new ArrayList<>(expired.size());
+        rwLock.writeLock().lock();
+        try {
+            for (Segment s : expired) {
+                if (segments.remove(s.getBaseOffset(), s)) {
+                    removed.add(s);
+                    unsynced.remove(s);
+                }
+            }
+            if (cache != null && !removed.isEmpty()) {
+                cache.invalidateBelow(segments.firstKey());
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+        if (removed.isEmpty()) {
+            return 0;
+        }
+        deleteSegments(removed);
+        logger.info("Retention deleted " + removed.size() + " segments up to offset " +
+                removed.get(removed.size() - 1).getNextOffset());
+        return removed.size();
+    }
+
+    private void enforceRetentionQuietly() {
+        try {
+            enforceRetention();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Retention check failed", e);
+        }
+    }
+
+    // segments have already left the map, so no new reader can reach them
+    private void deleteSegments(List<Segment> removed) throws IOException {
+        IOException failed = null;
+        for (Segment s : removed) {
+            try {
+                s.remove();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to delete segment " + s.getBaseOffset(), e);
+                failed = e;
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    /**
+     * Rewrites the sealed segments holding records that a newer record with the same
+     * key supersedes, or tombstones older than
+     * {@code config.compaction.tombstoneRetentionMs}, and returns how many records
+     * were removed. Records without a key are always kept, and kept records keep
+     * their offsets. Runs on the rewriter thread when there is one.
+     */
+    public long compact() throws IOException {
+        ScheduledExecutorService r = rewriter;
+        if (r == null) {
+            return compactSegments();
+        }
+        try {
+            return r.submit(this::compactSegments).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compacting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Compaction failed", e.getCause());
+        }
+    }
+
+    /**
+     * The first pass reads every sealed segment into a map from key hash to newest
+     * offset, marking the segments that hold a superseded record. The second
+     * rewrites those segments and swaps each one in, taking the write lock only for
+     * the swap.
+     */
+    private long compactSegments() throws IOException {
+        List<Segment> sealed;
+        rwLock.readLock().lock();
+        try {
+            if (activeSegment == null) {
+                return 0;
+            }
+            sealed = new ArrayList<>(segments.headMap(activeSegment.getBaseOffset()).values());
+        } finally {
+            rwLock.readLock().unlock();
+        }
+        long horizon = System.currentTimeMillis() - config.compaction.tombstoneRetentionMs;
+        long[] bases = new long[sealed.size()];
+        for (int i = 0; i < bases.length; i++) {
+            bases[i] = sealed.get(i).getBaseOffset();
+        }
+
+        OffsetMap latest = new OffsetMap(1024);
+        long[] records = new long[sealed.size()];
+        boolean[] dirty = new boolean[sealed.size()];
+        for (int i = 0; i < sealed.size(); i++) {
+            int at = i;
+            sealed.get(i).forEach((record, frame) -> {
+                records[at]++;
+                if (record.getKey().isEmpty()) {
+                    return;
+                }
+                long superseded = latest.put(OffsetMap.hash(record.getKey()), record.getOffset());
+                if (superseded >= 0) {
+                    int j = Arrays.binarySearch(bases, superseded);
+                    dirty[j >= 0 ? j : -j - 2] = true;
+                }
+                if (record.getValue().isEmpty() && record.getTimestamp() < horizon) {
+                    dirty[at] = true;
+                }
+            });
+        }
+
+        long removed = 0;
+        for (int i = 0; i < sealed.size(); i++) {
+            if (!dirty[i]) {
+                continue;
+            }
+            Segment s = sealed.get(i);
+            long kept = s.writeCleaned(record -> record.getKey().isEmpty() ||
+                    (latest.get(OffsetMap.hash(record.getKey())) == record.getOffset() &&
+                     !(record.getValue().isEmpty() && record.getTimestamp() < horizon)));
+            // a segment left empty is dropped; reads skip the gap it leaves
+            Segment cleaned = kept > 0 ? s.installCleaned() : null;
+
+            boolean live;
+            rwLock.writeLock().lock();
+            try {
+                live = segments.get(s.getBaseOffset()) == s;
+                if (live) {
+                    if (cleaned != null) {
+                        segments.put(s.getBaseOffset(), cleaned);
+                    } else {
+                        segments.remove(s.getBaseOffset());
+                    }
+                    unsynced.remove(s);
+                    if (cache != null) {
+                        // cached records may have been compacted away
+                        cache.clear();
+                    }
+                }
+            } finally {
+                rwLock.writeLock().unlock();
+            }
+            if (!live) {
+                // removed by retention or truncate meanwhile
+                s.remove();
+                if (cleaned != null) {
+                    cleaned.remove();
+                }
+                continue;
+            }
+            if (cleaned != null) {
+                s.close();
+                if (rewriter != null && cleaned.needsCompression()) {
+                    compress(cleaned);
+                }
+            } else {
+                s.remove();
+            }
+            removed += records[i] - kept;
+            logger.info("Compacted segment " + s.getBaseOffset() + ": kept " + kept + " of " + records[i] + " records");
+        }
+        return removed;
+    }
+
+    private void compactQuietly() {
+        try {
+            compactSegments();
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Compaction failed", e);
+        }
+    }
+
+    /**
+     * Compresses a sealed segment. The new file is written without the log lock;
+     * only the switch to it takes the write lock, so no read is in the middle of
+     * the plain store when it is closed and deleted.
+     */
+    private void compress(Segment s) {
+        try {
+            s.compress();
+            boolean live;
+            Store plain = null;
+            rwLock.writeLock().lock();
+            try {
+                live = segments.get(s.getBaseOffset()) == s;
+                if (live) {
+                    plain = s.useCompressed();
+                }
+            } finally {
+                rwLock.writeLock().unlock();
             }
-            if (s == null) {
+            if (!live) {
+                // removed while compressing, drop the file written meanwhile
+                s.remove();
+                return;
+            }
+            if (plain != null) {
+                plain.close();
+                File f = new File(plain.name());
+                if (!f.delete()) {
+                    logger.warning("Failed to delete compressed segment store " + f.getAbsolutePath());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // closed or removed meanwhile, or the disk failed; reads keep using the plain store
+            logger.log(Level.WARNING, "Failed to compress segment " + s.getBaseOffset(), e);
+        }
+    }
+
+    private void scrubQuietly() {
+        try {
+            scrub();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Scrub failed", e);
+        }
+    }
+
+    /**
+     * Forces every record appended so far to disk, regardless of the sync policy.
+     */
+    public void sync() throws IOException {
+        syncSegments();
+    }
+
+    /**
+     * Reads serialized records starting at {@code offset} from a single segment
+     * without parsing them. Returns an empty list when {@code offset} is the next
+     * offset to be appended.
+     */
+    @Override
+    public List<ByteBuffer> readRaw(long offset, int maxRecords, long maxBytes) throws IOException {
+        rwLock.readLock().lock();
+        try {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) {
                 throw new IOException("Offset out of range: " + offset);
             }
-            return s.read(offset);
+            List<ByteBuffer> frames = new ArrayList<>();
+            while (true) {
+                Segment s = entry.getValue();
+                if (offset >= s.getNextOffset() && s == activeSegment) {
+                    if (offset == s.getNextOffset()) {
+                        return frames;
+                    }
+                    throw new IOException("Offset out of range: " + offset);
+                }
+                // after compaction the rest of a segment, or a whole one, can be gone;
+                // carry on from the next segment so readers get the next record kept
+                if (offset < s.getNextOffset() && s.readFrames(offset, maxRecords, maxBytes, frames) > 0) {
+                    return frames;
+                }
+                entry = segments.higherEntry(s.getBaseOffset());
+                offset = Math.max(offset, entry.getKey());
+            }
         } finally {
             rwLock.readLock().unlock();
         }
     }
 
+    /**
+     * Reads the records from {@code offset} onwards under one read lock, each
+     * segment's share as one contiguous store region, and parses them after the
+     * lock is released. Unlike {@link #readRaw} it continues into later segments.
+     */
+    @Override
+    public List<LogProto.Record> readRange(long offset, int maxRecords, long maxBytes) throws IOException {
+        List<ByteBuffer> frames = new ArrayList<>();
+        rwLock.readLock().lock();
+        try {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null || offset > activeSegment.getNextOffset()) {
+                throw new IOException("Offset out of range: " + offset);
+            }
+            long bytes = 0;
+            while (entry != null && frames.size() < maxRecords && bytes < maxBytes) {
+                Segment s = entry.getValue();
+                if (offset < s.getNextOffset()) {
+                    int from = frames.size();
+                    if (s.readFrames(offset, maxRecords - from, maxBytes - bytes, frames) > 0) {
+                        for (int i = from; i < frames.size(); i++) {
+                            bytes += frames.get(i).remaining();
+                        }
+                        // a limit stopped the read inside this segment
+                        offset = Segment.recordOffset(frames.get(frames.size() - 1)) + 1;
+                        if (offset < s.getNextOffset()) {
+                            break;
+                        }
+                    }
+                }
+                entry = segments.higherEntry(s.getBaseOffset());
+                if (entry != null) {
+                    offset = Math.max(offset, entry.getKey());
+                }
+            }
+        } finally {
+            rwLock.readLock().unlock();
+        }
+        List<LogProto.Record> records = new ArrayList<>(frames.size());
+        for (ByteBuffer frame : frames) {
+            records.add(LogProto.Record.parseFrom(frame));
+        }
+        return records;
+    }
+
+    /**
+     * Returns a future that completes once the record at {@code offset} has been
+     * appended, so tailing readers can park without polling.
+     */
+    @Override
+    public CompletableFuture<Void> awaitOffset(long offset) {
+        return watcher.await(offset);
+    }
+
     public void close() throws IOException {
+        synchronized (this) {
+            // left in place so appendAsync fails until reset() opens the log again
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+        if (flusher != null) {
+            flusher.close();
+            flusher = null;
+        }
+        if (scrubber != null) {
+            scrubber.shutdownNow();
+            scrubber = null;
+        }
+        if (cleaner != null) {
+            cleaner.shutdownNow();
+            cleaner = null;
+        }
+        if (rewriter != null) {
+            // an interrupted write deletes its temporary file, wait for that before closing
+            rewriter.shutdownNow();
+            try {
+                rewriter.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            rewriter = null;
+        }
         rwLock.writeLock().lock();
         try {
-            for (Segment segment : segments) {
+            for (Segment segment : segments.values()) {
                 segment.close();
             }
+            File dirFile = new File(dir);
+            if (!segments.isEmpty() && dirFile.isDirectory()) {
+                new File(dirFile, CLEAN_SHUTDOWN_FILE).createNewFile();
+            }
         } finally {
             rwLock.writeLock().unlock();
         }
@@ -122,6 +841,9 @@ public class Log implements CommitLog {
         }
         segments.clear();
         activeSegment = null;
+        if (cache != null) {
+            cache.clear();
+        }
     }
 
     public void reset() throws IOException {
@@ -135,7 +857,19 @@ public class Log implements CommitLog {
             if (segments.isEmpty()) {
                 throw new IOException("No segments available");
             }
-            return segments.get(0).getBaseOffset();
+            return segments.firstKey();
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the offset the next append gets.
+     */
+    public long nextOffset() {
+        rwLock.readLock().lock();
+        try {
+            return activeSegment.getNextOffset();
         } finally {
             rwLock.readLock().unlock();
         }
@@ -147,7 +881,7 @@ public class Log implements CommitLog {
             if (segments.isEmpty()) {
                 return 0;
             }
-            long off = segments.get(segments.size() - 1).getNextOffset();
+            long off = segments.lastEntry().getValue().getNextOffset();
             if (off == 0) {
                 return 0;
             }
@@ -157,34 +891,90 @@ public class Log implements CommitLog {
         }
     }
 
+    /**
+     * Removes every segment whose records are all at or below {@code lowest}. Like
+     * {@link #enforceRetention}, files are deleted after the write lock is released.
+     */
     public void truncate(long lowest) throws IOException {
+        List<Segment> removed = new ArrayList<>();
         rwLock.writeLock().lock();
         try {
-            List<Segment> remainingSegments = new ArrayList<>();
-            for (Segment s : segments) {
-                if (s.getNextOffset() <= lowest + 1) {
-                    s.remove();
-                    continue;
+            for (Segment s : segments.values()) {
+                if (s.getNextOffset() > lowest + 1) {
+                    break;
                 }
-                remainingSegments.add(s);
+                removed.add(s);
+                segments.remove(s.getBaseOffset());
+                unsynced.remove(s);
+            }
+            if (cache != null) {
+                cache.invalidateBelow(segments.isEmpty() ? Long.MAX_VALUE : segments.firstKey());
             }
-            segments.clear();
-            segments.addAll(remainingSegments);
             if (!segments.isEmpty()) {
-                activeSegment = segments.get(segments.size() - 1);
+                activeSegment = segments.lastEntry().getValue();
             } else {
                 activeSegment = null;
             }
         } finally {
             rwLock.writeLock().unlock();
         }
+        deleteSegments(removed);
+    }
+
+    /**
+     * Removes the records at {@code offset} and after, so the next append gets
+     * {@code offset}. Segments starting at or after it are deleted and the one
+     * holding it is cut back and becomes the active segment again. Used by Raft
+     * followers to drop entries that conflict with their leader's log.
+     */
+    public void truncateFrom(long offset) throws IOException {
+        Segment active;
+        rwLock.writeLock().lock();
+        try {
+            if (offset >= activeSegment.getNextOffset()) {
+                return;
+            }
+            Long base = segments.floorKey(offset);
+            if (base == null) {
+                throw new IOException("Offset " + offset + " is before the start of the log");
+            }
+            Segment holding = segments.get(base);
+            if (base < offset) {
+                // fail before deleting anything if the segment cannot be cut back
+                holding.truncateFrom(offset);
+            }
+            // deleted under the lock, a new segment at offset reuses the file names
+            for (Segment s : new ArrayList<>(segments.tailMap(offset, true).values())) {
+                segments.remove(s.getBaseOffset());
+                unsynced.remove(s);
+                s.remove();
+            }
+            if (base < offset) {
+                unsynced.remove(holding);
+                activeSegment = holding;
+            } else {
+                newSegment(offset);
+            }
+            active = activeSegment;
+            if (cache != null) {
+                cache.clear();
+            }
+            watcher.rewind(offset);
+            if (flusher != null) {
+                flusher.rewind(offset);
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+        active.sync();
+        logger.info("Truncated log " + dir + " from offset " + offset);
     }
 
     public InputStream reader() throws IOException {
         rwLock.readLock().lock();
         try {
             Vector<InputStream> streams = new Vector<>();
-            for (Segment segment : segments) {
+            for (Segment segment : segments.values()) {
                 streams.add(segment.getStore().inputStream());
             }
             return new SequenceInputStream(streams.elements());
@@ -193,6 +983,18 @@ public class Log implements CommitLog {
         }
     }
 
+    /**
+     * Hit, miss and eviction counters of the record cache, or null when it is disabled.
+     */
+    public RecordCache.Stats cacheStats() {
+        return cache == null ? null : cache.stats();
+    }
+
+    private long segmentBase(long offset) {
+        Long base = segments.floorKey(offset);
+        return base == null ? -1 : base;
+    }
+
     private void deleteDirectoryRecursively(File file) throws IOException {
         if (file.isDirectory()) {
             File[] children = file.listFiles();
@@ -207,9 +1009,62 @@ public class Log implements CommitLog {
         }
     }
 
+    private void awaitSync(long offset) throws IOException {
+        if (flusher == null) {
+            return;
+        }
+        flusher.appended(offset + 1);
+        if (config.segment.syncPolicy == Config.SyncPolicy.PER_RECORD || config.segment.awaitSync) {
+            flusher.await(offset);
+        }
+    }
+
+    // caller holds the write lock
+    private long nextTimestamp() {
+        lastTimestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        return lastTimestamp;
+    }
+
+    private void sealActiveSegment(long nextOffset) throws IOException {
+        Segment sealed = activeSegment;
+        sealed.seal();
+        if (flusher != null) {
+            unsynced.add(sealed);
+        }
+        if (rewriter != null && sealed.needsCompression()) {
+            rewriter.execute(() -> compress(sealed));
+        }
+        newSegment(nextOffset);
+    }
+
+    private long syncSegments() throws IOException {
+        Segment active;
+        long end;
+        rwLock.readLock().lock();
+        try {
+            active = activeSegment;
+            if (active == null) {
+                return 0;
+            }
+            end = active.getNextOffset();
+        } finally {
+            rwLock.readLock().unlock();
+        }
+        try {
+            Segment s;
+            while ((s = unsynced.poll()) != null) {
+                s.sync();
+            }
+            active.sync();
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to sync log", e);
+        }
+        return end;
+    }
+
     private void newSegment(long offset) throws IOException {
         Segment s = new Segment(dir, offset, config);
-        segments.add(s);
+        segments.put(offset, s);
         activeSegment = s;
     }
 }
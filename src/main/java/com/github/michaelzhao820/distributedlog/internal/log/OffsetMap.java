@@ -0,0 +1,103 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Open-addressing map from a 64-bit key hash to the newest offset seen for it,
+ * kept in two primitive arrays so a compaction pass over millions of keys
+ * allocates nothing per record.
+ */
+class OffsetMap {
+    private static final float LOAD_FACTOR = 0.6f;
+    // hashes are remapped away from 0, so 0 marks an empty slot
+    private static final long EMPTY = 0;
+
+    private long[] hashes;
+    private long[] offsets;
+    private int size;
+
+    OffsetMap(int expected) {
+        int cap = Integer.highestOneBit(Math.max(16, (int) (expected / LOAD_FACTOR)) - 1) << 1;
+        this.hashes = new long[cap];
+        this.offsets = new long[cap];
+    }
+
+    /**
+     * Records {@code offset} for the key if it is the newest seen and returns the
+     * offset that lost, which is now superseded, or -1 for a new key.
+     */
+    long put(long hash, long offset) {
+        if (size + 1 > hashes.length * LOAD_FACTOR) {
+            grow();
+        }
+        int i = slot(hash);
+        if (hashes[i] == EMPTY) {
+            hashes[i] = hash;
+            offsets[i] = offset;
+            size++;
+            return -1;
+        }
+        long previous = offsets[i];
+        offsets[i] = Math.max(previous, offset);
+        return Math.min(previous, offset);
+    }
+
+    /**
+     * Returns the newest offset recorded for the key, or -1.
+     */
+    long get(long hash) {
+        int i = slot(hash);
+        return hashes[i] == EMPTY ? -1 : offsets[i];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 64-bit FNV-1a of the key. At 2^64 a collision is not expected below billions
+     * of keys, so the map keeps hashes only.
+     */
+    static long hash(ByteString key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.size(); i++) {
+            h ^= key.byteAt(i) & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h == EMPTY ? 1 : h;
+    }
+
+    // slot holding hash, or the empty slot where it belongs
+    private int slot(long hash) {
+        int mask = hashes.length - 1;
+        int i = (int) mix(hash) & mask;
+        while (hashes[i] != EMPTY && hashes[i] != hash) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        long[] oldHashes = hashes;
+        long[] oldOffsets = offsets;
+        hashes = new long[oldHashes.length * 2];
+        offsets = new long[oldOffsets.length * 2];
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != EMPTY) {
+                int j = slot(oldHashes[i]);
+                hashes[j] = oldHashes[i];
+                offsets[j] = oldOffsets[i];
+            }
+        }
+    }
+
+    // murmur3 finalizer, spreads FNV's weak low bits over the table
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53ccd34L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Parks tailing readers on futures keyed by the offset they wait for, and
+ * completes them when appends move the end of the log past that offset.
+ */
+public class OffsetWatcher {
+
+    private final TreeMap<Long, List<CompletableFuture<Void>>> waiters = new TreeMap<>();
+    private long end;
+    private IOException closed;
+
+    public OffsetWatcher(long end) {
+        this.end = end;
+    }
+
+    /**
+     * Returns a future that completes once the record at {@code offset} exists.
+     */
+    public CompletableFuture<Void> await(long offset) {
+        synchronized (this) {
+            if (closed != null) {
+                return CompletableFuture.failedFuture(closed);
+            }
+            if (offset < end) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            waiters.computeIfAbsent(offset, k -> new ArrayList<>()).add(f);
+            return f;
+        }
+    }
+
+    /**
+     * Moves the end of the log to {@code newEnd} (exclusive) and wakes the readers
+     * it covers, outside the monitor.
+     */
+    public void advance(long newEnd) {
+        List<CompletableFuture<Void>> ready = new ArrayList<>();
+        synchronized (this) {
+            if (newEnd <= end) {
+                return;
+            }
+            end = newEnd;
+            Map<Long, List<CompletableFuture<Void>>> covered = waiters.headMap(newEnd);
+            for (List<CompletableFuture<Void>> fs : covered.values()) {
+                ready.addAll(fs);
+            }
+            covered.clear();
+        }
+        for (CompletableFuture<Void> f : ready) {
+            f.complete(null);
+        }
+    }
+
+    /**
+     * Moves the end back to {@code newEnd} after the log was truncated. Readers
+     * already woken are not recalled; later ones wait for the records again.
+     */
+    public synchronized void rewind(long newEnd) {
+        end = Math.min(end, newEnd);
+    }
+
+    public void close() {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        IOException e = new IOException("Log closed");
+        synchronized (this) {
+            closed = e;
+            for (List<CompletableFuture<Void>> fs : waiters.values()) {
+                pending.addAll(fs);
+            }
+            waiters.clear();
+        }
+        for (CompletableFuture<Void> f : pending) {
+            f.completeExceptionally(e);
+        }
+    }
+}
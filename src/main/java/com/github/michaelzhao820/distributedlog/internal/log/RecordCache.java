@@ -0,0 +1,342 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Bounded cache of parsed records in front of {@link Segment#read}, sized by the
+ * serialized size of the records it holds.
+ */
+public abstract class RecordCache {
+
+    // rough per-entry cost of the map node, boxed key and message object
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * @param bytes   estimated heap held by cached records
+     * @param entries number of cached records
+     */
+    public record Stats(long hits, long misses, long evictions, long bytes, long entries) {}
+
+    protected final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    protected RecordCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param segmentOf maps an offset to the base offset of its segment, used by
+     *                  segment-aligned eviction
+     */
+    public static RecordCache create(Config.Cache c, LongUnaryOperator segmentOf) {
+        return switch (c.eviction) {
+            case LRU -> new Lru(c.maxBytes);
+            case CLOCK -> new Clock(c.maxBytes);
+            case SEGMENT -> new SegmentAligned(c.maxBytes, segmentOf);
+        };
+    }
+
+    public LogProto.Record get(long offset) {
+        LogProto.Record r = lookup(offset);
+        if (r == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return r;
+    }
+
+    public void put(long offset, LogProto.Record record) {
+        long weight = weigh(record);
+        if (weight <= maxBytes) {
+            insert(offset, record, weight);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), bytes(), entries());
+    }
+
+    /**
+     * Drops every cached record below {@code offset}.
+     */
+    public abstract void invalidateBelow(long offset);
+
+    public abstract void clear();
+
+    protected abstract LogProto.Record lookup(long offset);
+
+    protected abstract void insert(long offset, LogProto.Record record, long weight);
+
+    protected abstract long bytes();
+
+    protected abstract long entries();
+
+    protected void evicted(long n) {
+        evictions.add(n);
+    }
+
+    private static long weigh(LogProto.Record record) {
+        return record.getSerializedSize() + ENTRY_OVERHEAD;
+    }
+
+    private static final class Lru extends RecordCache {
+        private final LinkedHashMap<Long, LogProto.Record> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        Lru(long maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected synchronized LogProto.Record lookup(long offset) {
+            return map.get(offset);
+        }
+
+        @Override
+        protected synchronized void insert(long offset, LogProto.Record record, long weight) {
+            LogProto.Record old = map.put(offset, record);
+            if (old != null) {
+                bytes -= weigh(old);
+            }
+            bytes += weight;
+            Iterator<LogProto.Record> it = map.values().iterator();
+            long n = 0;
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= weigh(it.next());
+                it.remove();
+                n++;
+            }
+            evicted(n);
+        }
+
+        @Override
+        public synchronized void invalidateBelow(long offset) {
+            map.entrySet().removeIf(e -> {
+                if (e.getKey() < offset) {
+                    bytes -= weigh(e.getValue());
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        @Override
+        public synchronized void clear() {
+            map.clear();
+            bytes = 0;
+        }
+
+        @Override
+        protected synchronized long bytes() {
+            return bytes;
+        }
+
+        @Override
+        protected synchronized long entries() {
+            return map.size();
+        }
+    }
+
+    private static final class Clock extends RecordCache {
+        private static final class Entry {
+            final long offset;
+            final LogProto.Record record;
+            final long weight;
+            volatile boolean referenced;
+
+            Entry(long offset, LogProto.Record record, long weight) {
+                this.offset = offset;
+                this.record = record;
+                this.weight = weight;
+            }
+        }
+
+        private final ConcurrentHashMap<Long, Entry> map = new ConcurrentHashMap<>();
+        private final ArrayDeque<Entry> ring = new ArrayDeque<>();
+        private long bytes;
+
+        Clock(long maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected LogProto.Record lookup(long offset) {
+            Entry e = map.get(offset);
+            if (e == null) {
+                return null;
+            }
+            e.referenced = true;
+            return e.record;
+        }
+
+        @Override
+        protected synchronized void insert(long offset, LogProto.Record record, long weight) {
+            if (map.containsKey(offset)) {
+                return;
+            }
+            long n = 0;
+            while (bytes + weight > maxBytes && !ring.isEmpty()) {
+                Entry e = ring.pollFirst();
+                if (e.referenced) {
+                    e.referenced = false;
+                    ring.addLast(e);
+                    continue;
+                }
+                map.remove(e.offset);
+                bytes -= e.weight;
+                n++;
+            }
+            Entry e = new Entry(offset, record, weight);
+            ring.addLast(e);
+            map.put(offset, e);
+            bytes += weight;
+            evicted(n);
+        }
+
+        @Override
+        public synchronized void invalidateBelow(long offset) {
+            ring.removeIf(e -> {
+                if (e.offset < offset) {
+                    map.remove(e.offset);
+                    bytes -= e.weight;
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        @Override
+        public synchronized void clear() {
+            ring.clear();
+            map.clear();
+            bytes = 0;
+        }
+
+        @Override
+        protected synchronized long bytes() {
+            return bytes;
+        }
+
+        @Override
+        protected long entries() {
+            return map.size();
+        }
+    }
+
+    private static final class SegmentAligned extends RecordCache {
+        private static final class Bucket {
+            final Map<Long, LogProto.Record> records = new ConcurrentHashMap<>();
+            volatile long lastAccess = System.nanoTime();
+            long bytes;
+        }
+
+        private final LongUnaryOperator segmentOf;
+        private final ConcurrentHashMap<Long, Bucket> buckets = new ConcurrentHashMap<>();
+        private long bytes;
+
+        SegmentAligned(long maxBytes, LongUnaryOperator segmentOf) {
+            super(maxBytes);
+            this.segmentOf = segmentOf;
+        }
+
+        @Override
+        protected LogProto.Record lookup(long offset) {
+            Bucket b = buckets.get(segmentOf.applyAsLong(offset));
+            if (b == null) {
+                return null;
+            }
+            LogProto.Record r = b.records.get(offset);
+            if (r != null) {
+                b.lastAccess = System.nanoTime();
+            }
+            return r;
+        }
+
+        @Override
+        protected synchronized void insert(long offset, LogProto.Record record, long weight) {
+            long base = segmentOf.applyAsLong(offset);
+            Bucket bucket = buckets.computeIfAbsent(base, k -> new Bucket());
+            bucket.lastAccess = System.nanoTime();
+            if (bucket.records.putIfAbsent(offset, record) != null) {
+                return;
+            }
+            bucket.bytes += weight;
+            bytes += weight;
+
+            long n = 0;
+            while (bytes > maxBytes) {
+                Map.Entry<Long, Bucket> coldest = null;
+                for (Map.Entry<Long, Bucket> e : buckets.entrySet()) {
+                    if (e.getValue() != bucket &&
+                            (coldest == null || e.getValue().lastAccess < coldest.getValue().lastAccess)) {
+                        coldest = e;
+                    }
+                }
+                if (coldest == null) {
+                    // only the segment being written is cached, trim it instead
+                    Iterator<Map.Entry<Long, LogProto.Record>> it = bucket.records.entrySet().iterator();
+                    while (bytes > maxBytes && it.hasNext()) {
+                        long w = weigh(it.next().getValue());
+                        it.remove();
+                        bucket.bytes -= w;
+                        bytes -= w;
+                        n++;
+                    }
+                    break;
+                }
+                buckets.remove(coldest.getKey());
+                bytes -= coldest.getValue().bytes;
+                n += coldest.getValue().records.size();
+            }
+            evicted(n);
+        }
+
+        @Override
+        public synchronized void invalidateBelow(long offset) {
+            buckets.entrySet().removeIf(e -> {
+                Bucket b = e.getValue();
+                b.records.entrySet().removeIf(r -> {
+                    if (r.getKey() < offset) {
+                        long w = weigh(r.getValue());
+                        b.bytes -= w;
+                        bytes -= w;
+                        return true;
+                    }
+                    return false;
+                });
+                return b.records.isEmpty();
+            });
+        }
+
+        @Override
+        public synchronized void clear() {
+            buckets.clear();
+            bytes = 0;
+        }
+
+        @Override
+        protected synchronized long bytes() {
+            return bytes;
+        }
+
+        @Override
+        protected long entries() {
+            long n = 0;
+            for (Bucket b : buckets.values()) {
+                n += b.records.size();
+            }
+            return n;
+        }
+    }
+}
@@ -1,96 +1,826 @@
 package com.github.michaelzhao820.distributedlog.internal.log;
 
 import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 import lombok.Getter;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
 
 public class Segment {
-    @Getter
-    private final Store store;
-    private final Index index;
+
+    private static final Logger logger = Logger.getLogger(Segment.class.getName());
+    // compaction writes these files under CLEANED names and moves them over the originals
+    private static final String[] CLEANED_FILES = {".store", ".index", ".timeindex"};
+    private static final String CLEANED = ".cleaned";
+    private static final int CLEAN_BATCH_RECORDS = 512;
+    private static final long SEEK_CHUNK_BYTES = 64 << 10;
+
+    private final String dir;
+    // opened in the constructor, or on first use for segments from sealed(); replaced
+    // once by useCompressed()
+    private volatile Store store;
+    private Index index;
+    private TimeIndex timeIndex;
+    private volatile boolean opened;
+    private boolean closed;
+    // set by installCleaned(); the files under this segment's names belong to the
+    // segment that replaced it
+    private volatile boolean superseded;
     @Getter
     private final long baseOffset;
     @Getter
     private long nextOffset;
+    // append timestamp of the newest record, -1 while the segment is empty
+    private long maxTimestamp = -1;
     private final Config config;
+    private final RecordEncoder encoder = new RecordEncoder();
+    private final boolean sparse;
+    // rewritten by compaction, so offsets can have gaps and frames are matched to
+    // offsets by parsing them
+    private boolean compacted;
+    // relative offset and store position of the newest index entry
+    private long lastIndexedOffset = -1;
+    private long lastIndexedPos;
 
     public Segment(String dir, long baseOffset, Config c) throws IOException {
+        this(dir, baseOffset, c, false);
+    }
+
+    /**
+     * @param recover validate the tail after an unclean shutdown, truncating the
+     *                store to its last whole record and the indexes to match
+     */
+    public Segment(String dir, long baseOffset, Config c, boolean recover) throws IOException {
+        this(dir, baseOffset, -1, c);
+        open(recover);
+    }
+
+    private Segment(String dir, long baseOffset, long nextOffset, Config c) {
+        this.dir = dir;
         this.baseOffset = baseOffset;
+        this.nextOffset = nextOffset;
+        this.config = c;
+        this.sparse = c.segment.indexIntervalRecords > 0 || c.segment.indexIntervalBytes > 0;
+    }
+
+    /**
+     * Returns a segment that will not be appended to, whose files are only opened
+     * and mapped on first use. {@code nextOffset} is the base offset of the segment
+     * after it.
+     */
+    public static Segment sealed(String dir, long baseOffset, long nextOffset, Config c) {
+        return new Segment(dir, baseOffset, nextOffset, c);
+    }
+
+    /**
+     * Opens the files of a segment from {@link #sealed} ahead of its first read.
+     */
+    public void preload() throws IOException {
+        ensureOpen();
+    }
 
-        File storeFile = new File(dir, baseOffset + ".store");
-        this.store = new Store(storeFile);
+    private void ensureOpen() throws IOException {
+        if (!opened) {
+            open(false);
+        }
+    }
 
-        File indexFile = new File(dir, baseOffset + ".index");
-        this.index = new Index(indexFile, c);
+    private synchronized void open(boolean recover) throws IOException {
+        if (opened) {
+            return;
+        }
+        if (closed) {
+            throw new IOException("Segment " + baseOffset + " is closed");
+        }
+        if (file(".swap").exists()) {
+            // compaction stopped halfway through moving its files in, finish the job
+            finishSwap();
+        } else {
+            for (String suffix : CLEANED_FILES) {
+                deleteIfExists(file(suffix + CLEANED));
+            }
+        }
+        this.compacted = file(".compacted").exists();
+        File compressed = file(".zstore");
+        deleteIfExists(file(".zstore.tmp"));
+        if (compressed.exists()) {
+            // compression renames the new file into place before deleting the old one
+            deleteIfExists(file(".store"));
+            this.store = Store.compressed(compressed, config);
+        } else {
+            this.store = new Store(file(".store"), config);
+        }
+        this.index = new Index(file(".index"), config);
+        this.timeIndex = new TimeIndex(file(".timeindex"), config);
+
+        if (recover) {
+            recover();
+        }
+        // a store that is empty cannot have entries, whatever the index file holds
+        if (store.getSize() == 0) {
+            index.truncate(0);
+            timeIndex.truncate(0);
+        }
 
         try {
             Index.IndexEntry last = index.read(-1);
-            this.nextOffset = baseOffset + last.offset() + 1;
+            this.lastIndexedOffset = last.offset();
+            this.lastIndexedPos = last.pos();
+            if (this.nextOffset < 0 && compacted) {
+                this.nextOffset = lastOffset(last.pos()) + 1;
+            } else if (this.nextOffset < 0) {
+                // records after the last sparse entry are only found by walking the store
+                long tail = sparse ? store.scan(last.pos(), Long.MAX_VALUE, Long.MAX_VALUE).frames() : 1;
+                this.nextOffset = baseOffset + last.offset() + tail;
+            }
         } catch (IOException e) {
-            this.nextOffset = baseOffset;
+            if (this.nextOffset < 0) {
+                this.nextOffset = baseOffset;
+            }
         }
-        this.config = c;
+
+        TimeIndex.TimeEntry lastTime = timeIndex.last();
+        if (lastTime != null && !timeIndex.isFull()) {
+            this.maxTimestamp = lastTime.timestamp();
+        } else if (this.nextOffset > baseOffset && !compacted) {
+            // the time index stopped growing or predates the segment's records
+            this.maxTimestamp = readRecord(this.nextOffset - 1).getTimestamp();
+        }
+        opened = true;
     }
 
-    public long append(LogProto.Record record) throws EOFException {
+    /**
+     * Walks the records after the newest index entry that still points at a whole
+     * record and stops at the first frame that is cut short, fails its checksum or
+     * does not parse as the record expected at that offset. The store is truncated there and the indexes
+     * are rebuilt from the walk.
+     */
+    private void recover() throws IOException {
+        long storeEnd = store.getSize();
+        long entries = index.getSize() / Index.ENT_WIDTH;
+        long rel = 0;
+        long pos = 0;
+        // step back over entries that point past the data that reached the store
+        while (entries > 0) {
+            Index.IndexEntry e = index.read(entries - 1);
+            if (e.pos() < storeEnd && store.scan(e.pos(), 1, Long.MAX_VALUE).frames() == 1) {
+                rel = e.offset();
+                pos = e.pos();
+                break;
+            }
+            entries--;
+        }
+        index.truncate(Math.max(entries - 1, 0));
+        timeIndex.truncateFrom((int) rel);
+        this.lastIndexedOffset = -1;
+        TimeIndex.TimeEntry lastTime = timeIndex.last();
+        this.maxTimestamp = lastTime == null ? -1 : lastTime.timestamp();
 
-        long current = this.nextOffset;
+        long recovered = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(store.inputStream()))) {
+            in.skipNBytes(pos);
+            while (pos + Store.LEN_WIDTH <= storeEnd) {
+                long prefix = in.readLong();
+                long width = Store.frameWidth(prefix);
+                if (pos + width > storeEnd || pos + width <= pos) {
+                    break;
+                }
+                int stored = Store.hasChecksum(prefix) ? in.readInt() : 0;
+                byte[] p = in.readNBytes((int) Store.payloadLength(prefix));
+                if (Store.hasChecksum(prefix) && !Store.checksumMatches(p, stored)) {
+                    break;
+                }
+                LogProto.Record record;
+                try {
+                    record = LogProto.Record.parseFrom(p);
+                } catch (InvalidProtocolBufferException e) {
+                    break;
+                }
+                if (record.getOffset() != baseOffset + rel) {
+                    break;
+                }
+                if (indexDue(baseOffset + rel, pos)) {
+                    writeIndex(baseOffset + rel, pos);
+                }
+                writeTimeIndex(baseOffset + rel, record.getTimestamp());
+                pos += width;
+                rel++;
+                recovered++;
+            }
+        }
+        if (pos < storeEnd) {
+            logger.warning("Truncating torn tail of segment " + baseOffset + " at position " + pos +
+                    " (" + (storeEnd - pos) + " bytes)");
+            store.truncate(pos);
+        }
+        logger.info("Recovered " + recovered + " records at the tail of segment " + baseOffset);
+    }
 
-        LogProto.Record updatedRecord = record.toBuilder()
-                .setOffset(current)
-                .build();
+    private File file(String suffix) {
+        return new File(dir, baseOffset + suffix);
+    }
+
+    public Store getStore() throws IOException {
+        ensureOpen();
+        return store;
+    }
+
+    /**
+     * Bytes the store takes on disk, compressed if it has been. Does not open the
+     * segment, and leaves out appends still in the write buffer.
+     */
+    public long storeBytes() {
+        File compressed = file(".zstore");
+        return compressed.exists() ? compressed.length() : file(".store").length();
+    }
+
+    public long getMaxTimestamp() throws IOException {
+        ensureOpen();
+        return maxTimestamp;
+    }
+
+    public long append(LogProto.Record record) throws EOFException {
+        return append(record, System.currentTimeMillis());
+    }
 
-        byte[] p = updatedRecord.toByteArray();
+    /**
+     * Appends with the given append timestamp, raised if needed so timestamps never
+     * go backwards within the segment.
+     */
+    public long append(LogProto.Record record, long timestamp) throws EOFException {
+        long ts = Math.max(timestamp, maxTimestamp);
+        long current = this.nextOffset;
+        boolean indexed = indexDue(current, this.store.getSize());
+        if (indexed && this.index.getSize() + Index.ENT_WIDTH > config.segment.maxIndexBytes) {
+            throw new EOFException("Index full");
+        }
 
-        Store.AppendResult result = this.store.append(p);
-        long pos = result.pos();
+        long pos = this.store.append(encoder.set(record, current, ts));
 
-        index.write((int)(current - baseOffset), pos);
+        if (indexed) {
+            writeIndex(current, pos);
+        }
+        writeTimeIndex(current, ts);
 
         this.nextOffset++;
 
         return current;
     }
 
+    /**
+     * Appends records starting at {@code from} as one contiguous run in the store's
+     * write buffer and returns how many were taken. Stops after the record that
+     * maxes the segment, the same point at which single appends would roll over.
+     */
+    public int append(List<LogProto.Record> records, int from) throws EOFException {
+        return append(records, from, System.currentTimeMillis());
+    }
+
+    /**
+     * Batch form of {@link #append(LogProto.Record, long)}; every record gets the same
+     * timestamp.
+     */
+    public int append(List<LogProto.Record> records, int from, long timestamp) throws EOFException {
+        long ts = Math.max(timestamp, maxTimestamp);
+        boolean[] indexFull = new boolean[1];
+        int n = this.store.appendBatch(new Store.FrameSource() {
+            private int i = from;
+            private boolean indexed;
+
+            @Override
+            public Store.FrameEncoder next(long pos) {
+                if (i == records.size() || (i > from && isMaxed())) {
+                    return null;
+                }
+                indexed = indexDue(nextOffset, pos);
+                if (indexed && index.getSize() + Index.ENT_WIDTH > config.segment.maxIndexBytes) {
+                    indexFull[0] = true;
+                    return null;
+                }
+                return encoder.set(records.get(i), nextOffset, ts);
+            }
+
+            @Override
+            public void appended(long pos) throws IOException {
+                if (indexed) {
+                    writeIndex(nextOffset, pos);
+                }
+                writeTimeIndex(nextOffset, ts);
+                nextOffset++;
+                i++;
+            }
+        });
+        if (n == 0 && indexFull[0]) {
+            throw new EOFException("Index full");
+        }
+        return n;
+    }
+
+    /**
+     * Releases the store's write buffers once the log has rolled to a new segment.
+     */
+    public void seal() {
+        if (opened) {
+            store.seal();
+        }
+    }
+
+    /**
+     * Drops the records at {@code offset} and after, so appends continue from it.
+     * A compressed store is read-only and cannot be cut back.
+     */
+    public synchronized void truncateFrom(long offset) throws IOException {
+        ensureOpen();
+        if (offset >= nextOffset) {
+            return;
+        }
+        if (offset < baseOffset) {
+            throw new IOException("Offset " + offset + " is before segment " + baseOffset);
+        }
+        if (store.isCompressed()) {
+            throw new IOException("Segment " + baseOffset + " is compressed and cannot be truncated");
+        }
+        long pos = position(offset);
+        long rel = offset - baseOffset;
+        long entries = index.getSize() / Index.ENT_WIDTH;
+        while (entries > 0 && index.read(entries - 1).offset() >= rel) {
+            entries--;
+        }
+        index.truncate(entries);
+        timeIndex.truncateFrom((int) rel);
+        store.truncate(pos);
+        this.nextOffset = offset;
+
+        if (entries > 0) {
+            Index.IndexEntry last = index.read(entries - 1);
+            this.lastIndexedOffset = last.offset();
+            this.lastIndexedPos = last.pos();
+        } else {
+            this.lastIndexedOffset = -1;
+            this.lastIndexedPos = 0;
+        }
+        TimeIndex.TimeEntry lastTime = timeIndex.last();
+        if (lastTime != null && !timeIndex.isFull()) {
+            this.maxTimestamp = lastTime.timestamp();
+        } else if (offset > baseOffset && !compacted) {
+            this.maxTimestamp = readRecord(offset - 1).getTimestamp();
+        } else {
+            this.maxTimestamp = lastTime == null ? -1 : lastTime.timestamp();
+        }
+    }
+
     public LogProto.Record read(long offset) throws IOException {
-        Index.IndexEntry index = this.index.read(offset - baseOffset);
+        ensureOpen();
+        return readRecord(offset);
+    }
 
-        byte[] p = this.store.read(index.pos());
+    private LogProto.Record readRecord(long offset) throws IOException {
+        Store s = this.store;
+        long pos = locate(offset);
+        if (pos >= s.getSize()) {
+            throw new EOFException("Offset " + offset + " was removed by compaction");
+        }
+        byte[] p = s.read(pos);
 
+        LogProto.Record record;
         try {
-            return LogProto.Record.parseFrom(p);
+            record = LogProto.Record.parseFrom(p);
         } catch (com.google.protobuf.InvalidProtocolBufferException e) {
             throw new IOException("Failed to parse record", e);
         }
+        if (compacted && record.getOffset() != offset) {
+            throw new EOFException("Offset " + offset + " was removed by compaction");
+        }
+        return record;
+    }
+
+    /**
+     * Returns the first offset whose append timestamp is at or after
+     * {@code timestamp}, or -1 if every record in the segment is older.
+     */
+    public long offsetForTimestamp(long timestamp) throws IOException {
+        ensureOpen();
+        if (timestamp > maxTimestamp) {
+            return -1;
+        }
+        TimeIndex.TimeEntry entry = timeIndex.ceiling(timestamp);
+        if (entry != null) {
+            return baseOffset + entry.offset();
+        }
+        // only reached once the time index has filled up, or for segments written
+        // before it existed: everything before the last entry is older
+        TimeIndex.TimeEntry last = timeIndex.last();
+        long offset = last == null ? baseOffset : baseOffset + last.offset();
+        List<ByteBuffer> frames = new ArrayList<>();
+        while (offset < nextOffset) {
+            frames.clear();
+            if (readFrames(offset, CLEAN_BATCH_RECORDS, Long.MAX_VALUE, frames) == 0) {
+                break;
+            }
+            for (ByteBuffer frame : frames) {
+                LogProto.Record record = LogProto.Record.parseFrom(frame);
+                if (record.getTimestamp() >= timestamp) {
+                    return record.getOffset();
+                }
+                offset = Math.max(offset + 1, record.getOffset() + 1);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the serialized records from {@code offset} onwards to {@code frames} as
+     * views over one contiguous store region, without parsing them. Reads at most
+     * {@code maxRecords} records and stops before exceeding {@code maxBytes}, but
+     * always returns at least one record if one is available.
+     */
+    public int readFrames(long offset, int maxRecords, long maxBytes, List<ByteBuffer> frames) throws IOException {
+        ensureOpen();
+        long end = Math.min(this.nextOffset, offset + maxRecords);
+        if (offset >= end) {
+            return 0;
+        }
+        long startPos = position(offset);
+        long endPos;
+        if (compacted) {
+            // count frames rather than offsets, which have gaps
+            endPos = this.store.scan(startPos, maxRecords, maxBytes).end();
+        } else if (sparse) {
+            endPos = this.store.scan(startPos, end - offset, maxBytes).end();
+        } else if ((endPos = position(end)) - startPos > maxBytes) {
+            long lo = offset + 1;
+            long hi = end;
+            while (lo < hi) {
+                long mid = (lo + hi + 1) >>> 1;
+                if (position(mid) - startPos <= maxBytes) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            end = lo;
+            endPos = position(end);
+        }
+        if (endPos == startPos) {
+            return 0;
+        }
+
+        Store s = this.store;
+        ByteBuffer region = s.slice(startPos, (int) (endPos - startPos));
+        int n = 0;
+        while (region.hasRemaining()) {
+            frames.add(s.nextPayload(region, startPos));
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Receives the records of a segment in offset order.
+     */
+    public interface RecordVisitor {
+        /**
+         * @param frame the record as stored, positioned at its first byte
+         */
+        void visit(LogProto.Record record, ByteBuffer frame) throws IOException;
+    }
+
+    /**
+     * Parses every record in offset order and passes it to {@code visitor}.
+     */
+    public void forEach(RecordVisitor visitor) throws IOException {
+        ensureOpen();
+        List<ByteBuffer> frames = new ArrayList<>();
+        long offset = baseOffset;
+        while (offset < nextOffset) {
+            frames.clear();
+            if (readFrames(offset, CLEAN_BATCH_RECORDS, Long.MAX_VALUE, frames) == 0) {
+                break;
+            }
+            for (ByteBuffer frame : frames) {
+                LogProto.Record record = LogProto.Record.parseFrom(frame.duplicate());
+                visitor.visit(record, frame);
+                offset = Math.max(offset + 1, record.getOffset() + 1);
+            }
+        }
+    }
+
+    /**
+     * Records that the offsets between the last record and the next segment are
+     * missing, as they are after compaction, so reads treat them as a gap once the
+     * segment is reopened with the next segment's base offset as its end.
+     */
+    void markGapped() throws IOException {
+        ensureOpen();
+        file(".compacted").createNewFile();
+        compacted = true;
+    }
+
+    public boolean isCompacted() throws IOException {
+        ensureOpen();
+        return compacted;
+    }
+
+    /**
+     * Writes the records {@code keep} accepts to new files next to the segment's
+     * own, with their offsets and timestamps unchanged, and returns how many were
+     * kept. Readers see no change until {@link #installCleaned} moves them in.
+     */
+    public long writeCleaned(Predicate<LogProto.Record> keep) throws IOException {
+        ensureOpen();
+        for (String suffix : CLEANED_FILES) {
+            deleteIfExists(file(suffix + CLEANED));
+        }
+        CleanedFiles out = new CleanedFiles();
+        try {
+            forEach((record, frame) -> {
+                if (keep.test(record)) {
+                    out.add(record, frame);
+                }
+            });
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            try {
+                out.close();
+            } catch (IOException | RuntimeException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            for (String suffix : CLEANED_FILES) {
+                deleteIfExists(file(suffix + CLEANED));
+            }
+            throw e;
+        }
+        return out.kept;
+    }
+
+    /**
+     * Moves the files from {@link #writeCleaned} over the segment's own and returns
+     * a segment that reads them. This segment keeps the replaced files open, and
+     * they stay readable until it is closed, so readers can be moved across to the
+     * new segment without waiting. From then on {@link #remove} only closes this
+     * segment, so a holder of the old object cannot delete the new files.
+     */
+    public Segment installCleaned() throws IOException {
+        ensureOpen();
+        superseded = true;
+        file(".compacted").createNewFile();
+        // marks the moves below as started, open() finishes them after a crash
+        file(".swap").createNewFile();
+        finishSwap();
+        return Segment.sealed(dir, baseOffset, nextOffset, config);
+    }
+
+    private void finishSwap() throws IOException {
+        for (String suffix : CLEANED_FILES) {
+            File cleaned = file(suffix + CLEANED);
+            if (cleaned.exists()) {
+                Files.move(cleaned.toPath(), file(suffix).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        // a compressed copy of the old store would shadow the cleaned one
+        deleteIfExists(file(".zstore"));
+        deleteIfExists(file(".swap"));
+    }
+
+    /**
+     * Returns the offset stored in a serialized record without parsing the rest of
+     * it. Stores written before appends dropped the producer's offset hold the field
+     * twice, so the last occurrence wins, as it does for a full parse.
+     */
+    public static long recordOffset(ByteBuffer payload) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(payload.duplicate());
+        long offset = 0;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == LogProto.Record.OFFSET_FIELD_NUMBER &&
+                    WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                offset = in.readUInt64();
+            } else {
+                in.skipField(tag);
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Verifies the checksum of every frame and returns the store positions of the
+     * corrupt ones.
+     */
+    public List<Long> scrub() throws IOException {
+        ensureOpen();
+        return this.store.scrub();
+    }
+
+    /**
+     * Whether the config asks for compression and the store has not been compressed
+     * yet.
+     */
+    public boolean needsCompression() {
+        return config.segment.compression != Config.Compression.NONE && !file(".zstore").exists();
+    }
+
+    /**
+     * Writes a compressed copy of the store next to it. Reads keep using the plain
+     * store until {@link #useCompressed} is called, so this can run without any lock.
+     */
+    public void compress() throws IOException {
+        ensureOpen();
+        Store plain = this.store;
+        if (plain.isCompressed()) {
+            return;
+        }
+        try (InputStream in = plain.inputStream()) {
+            BlockFile.write(in, file(".zstore"), config.segment.compression, config.segment.compressionBlockBytes);
+        }
+    }
+
+    /**
+     * Switches reads to the store written by {@link #compress} and returns the plain
+     * one, which the caller closes and deletes once no reader can be using it, or
+     * null if the segment has not been opened.
+     */
+    public synchronized Store useCompressed() throws IOException {
+        if (closed) {
+            throw new IOException("Segment " + baseOffset + " is closed");
+        }
+        if (!opened) {
+            // open() will pick up the compressed store and delete the plain one
+            return null;
+        }
+        Store plain = this.store;
+        this.store = Store.compressed(file(".zstore"), config);
+        return plain;
+    }
+
+    // store position of the frame for offset, or the end of the store past the last record
+    private long position(long offset) throws IOException {
+        if (offset >= this.nextOffset) {
+            return this.store.getSize();
+        }
+        return locate(offset);
+    }
+
+    // in compacted segments, the first frame at or after offset, which can be the end of the store
+    private long locate(long offset) throws IOException {
+        long rel = offset - baseOffset;
+        if (!sparse && !compacted) {
+            return this.index.read(rel).pos();
+        }
+        if (offset < baseOffset || offset >= this.nextOffset) {
+            throw new EOFException("EOF: requested offset beyond last entry");
+        }
+        if (compacted) {
+            long from = 0;
+            if (this.index.getSize() > 0 && this.index.read(0).offset() <= rel) {
+                Index.IndexEntry floor = this.index.floor(rel);
+                if (floor.offset() == rel) {
+                    return floor.pos();
+                }
+                from = floor.pos();
+            }
+            return seek(from, offset);
+        }
+        Index.IndexEntry floor = this.index.floor(rel);
+        if (floor.offset() == rel) {
+            return floor.pos();
+        }
+        return this.store.scan(floor.pos(), rel - floor.offset(), Long.MAX_VALUE).end();
+    }
+
+    // position of the first frame from pos on holding offset or a later one
+    private long seek(long pos, long offset) throws IOException {
+        Store s = this.store;
+        while (true) {
+            Store.Span span = s.scan(pos, Long.MAX_VALUE, SEEK_CHUNK_BYTES);
+            if (span.frames() == 0) {
+                return pos;
+            }
+            ByteBuffer region = s.slice(pos, (int) (span.end() - pos));
+            while (region.hasRemaining()) {
+                int at = region.position();
+                if (recordOffset(s.nextPayload(region, pos)) >= offset) {
+                    return pos + at;
+                }
+            }
+            pos = span.end();
+        }
+    }
+
+    // offset of the last record from pos on
+    private long lastOffset(long pos) throws IOException {
+        Store s = this.store;
+        long last = -1;
+        while (true) {
+            Store.Span span = s.scan(pos, Long.MAX_VALUE, SEEK_CHUNK_BYTES);
+            if (span.frames() == 0) {
+                return last;
+            }
+            ByteBuffer region = s.slice(pos, (int) (span.end() - pos));
+            while (region.hasRemaining()) {
+                last = recordOffset(s.nextPayload(region, pos));
+            }
+            pos = span.end();
+        }
+    }
+
+    private boolean indexDue(long offset, long pos) {
+        return indexDue(offset - baseOffset, pos, lastIndexedOffset, lastIndexedPos);
+    }
+
+    private boolean indexDue(long rel, long pos, long lastRel, long lastPos) {
+        if (!sparse || lastRel < 0) {
+            return true;
+        }
+        long records = config.segment.indexIntervalRecords;
+        long bytes = config.segment.indexIntervalBytes;
+        return (records > 0 && rel - lastRel >= records) ||
+               (bytes > 0 && pos - lastPos >= bytes);
+    }
+
+    private void writeTimeIndex(long offset, long timestamp) {
+        if (timestamp > maxTimestamp) {
+            // a full time index just stops growing, lookups scan past its last entry
+            timeIndex.write(timestamp, (int) (offset - baseOffset));
+            maxTimestamp = timestamp;
+        }
+    }
+
+    private void writeIndex(long offset, long pos) throws EOFException {
+        index.write((int) (offset - baseOffset), pos);
+        lastIndexedOffset = offset - baseOffset;
+        lastIndexedPos = pos;
     }
 
     public boolean isMaxed() {
         return this.store.getSize() >= this.config.segment.maxStoreBytes ||
-               this.index.getSize() >= this.config.segment.maxIndexBytes;
+               this.index.getSize() + Index.ENT_WIDTH > this.config.segment.maxIndexBytes;
+    }
+
+    /**
+     * Forces the store before the index so no index entry points past durable data.
+     */
+    public void sync() {
+        if (!opened) {
+            return;
+        }
+        store.sync();
+        index.sync();
+        timeIndex.sync();
     }
 
   public void remove() throws IOException {
     close();
-
-    File indexFile = new File(index.name());
-    if (!indexFile.delete()) {
-      throw new IOException("Failed to delete index file: " + indexFile.getAbsolutePath());
+    if (superseded) {
+      return;
     }
 
-    File storeFile = new File(store.name());
-    if (!storeFile.delete()) {
-      throw new IOException("Failed to delete store file: " + storeFile.getAbsolutePath());
+    // segments written before the time index existed have no .timeindex file, and
+    // only one of .store and .zstore is there once compression has finished
+    for (String suffix : new String[]{".index", ".store", ".zstore", ".zstore.tmp", ".timeindex"}) {
+      deleteIfExists(file(suffix));
+    }
+    for (String suffix : CLEANED_FILES) {
+      deleteIfExists(file(suffix + CLEANED));
     }
+    deleteIfExists(file(".swap"));
+    deleteIfExists(file(".compacted"));
   }
 
-    public void close() throws IOException {
+    private static void deleteIfExists(File f) throws IOException {
+        if (f.exists() && !f.delete()) {
+            throw new IOException("Failed to delete segment file: " + f.getAbsolutePath());
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (!opened) {
+            return;
+        }
         try {
             if (index != null) {
                 index.close();
             }
+            if (timeIndex != null) {
+                timeIndex.close();
+            }
         } catch (IOException e) {
             throw new IOException("Failed to close index", e);
         }
@@ -108,4 +838,105 @@ public class Segment {
         }
     }
 
+    // the files writeCleaned fills, indexed the way appends index the segment itself
+    private final class CleanedFiles {
+        private final Store store = new Store(file(".store" + CLEANED), config);
+        private final Index index = new Index(file(".index" + CLEANED), config);
+        private final TimeIndex timeIndex = new TimeIndex(file(".timeindex" + CLEANED), config);
+        private long kept;
+        private long lastRel = -1;
+        private long lastPos;
+        private long maxTimestamp = -1;
+
+        CleanedFiles() throws IOException {
+        }
+
+        void add(LogProto.Record record, ByteBuffer frame) throws EOFException {
+            byte[] p = new byte[frame.remaining()];
+            frame.duplicate().get(p);
+            long pos = store.append(p).pos();
+            long rel = record.getOffset() - baseOffset;
+            if (indexDue(rel, pos, lastRel, lastPos)) {
+                index.write((int) rel, pos);
+                lastRel = rel;
+                lastPos = pos;
+            }
+            if (record.getTimestamp() > maxTimestamp) {
+                timeIndex.write(record.getTimestamp(), (int) rel);
+                maxTimestamp = record.getTimestamp();
+            }
+            kept++;
+        }
+
+        void close() throws IOException {
+            store.close();
+            index.close();
+            timeIndex.close();
+        }
+    }
+
+    /**
+     * Writes a record with its assigned offset and timestamp in place of any the
+     * producer set, in field order, so the frame matches the record rebuilt with
+     * them without building it.
+     */
+    private static final class RecordEncoder implements Store.FrameEncoder {
+        private LogProto.Record record;
+        private long offset;
+        private long timestamp;
+
+        RecordEncoder set(LogProto.Record record, long offset, long timestamp) {
+            this.record = record;
+            this.offset = offset;
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        @Override
+        public int encodedSize() {
+            int n = record.getUnknownFields().getSerializedSize();
+            if (!record.getValue().isEmpty()) {
+                n += CodedOutputStream.computeBytesSize(LogProto.Record.VALUE_FIELD_NUMBER, record.getValue());
+            }
+            if (offset != 0) {
+                n += CodedOutputStream.computeUInt64Size(LogProto.Record.OFFSET_FIELD_NUMBER, offset);
+            }
+            if (timestamp != 0) {
+                n += CodedOutputStream.computeUInt64Size(LogProto.Record.TIMESTAMP_FIELD_NUMBER, timestamp);
+            }
+            if (!record.getKey().isEmpty()) {
+                n += CodedOutputStream.computeBytesSize(LogProto.Record.KEY_FIELD_NUMBER, record.getKey());
+            }
+            if (record.getTerm() != 0) {
+                n += CodedOutputStream.computeUInt64Size(LogProto.Record.TERM_FIELD_NUMBER, record.getTerm());
+            }
+            if (record.getElection()) {
+                n += CodedOutputStream.computeBoolSize(LogProto.Record.ELECTION_FIELD_NUMBER, true);
+            }
+            return n;
+        }
+
+        @Override
+        public void encode(CodedOutputStream out) throws IOException {
+            if (!record.getValue().isEmpty()) {
+                out.writeBytes(LogProto.Record.VALUE_FIELD_NUMBER, record.getValue());
+            }
+            if (offset != 0) {
+                out.writeUInt64(LogProto.Record.OFFSET_FIELD_NUMBER, offset);
+            }
+            if (timestamp != 0) {
+                out.writeUInt64(LogProto.Record.TIMESTAMP_FIELD_NUMBER, timestamp);
+            }
+            if (!record.getKey().isEmpty()) {
+                out.writeBytes(LogProto.Record.KEY_FIELD_NUMBER, record.getKey());
+            }
+            if (record.getTerm() != 0) {
+                out.writeUInt64(LogProto.Record.TERM_FIELD_NUMBER, record.getTerm());
+            }
+            if (record.getElection()) {
+                out.writeBool(LogProto.Record.ELECTION_FIELD_NUMBER, true);
+            }
+            record.getUnknownFields().writeTo(out);
+        }
+    }
 }
@@ -1,31 +1,107 @@
 package com.github.michaelzhao820.distributedlog.internal.log;
 
+import com.google.protobuf.CodedOutputStream;
 import lombok.Getter;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
+import java.util.zip.CRC32C;
 
 public class Store {
 
     private static final Logger logger = Logger.getLogger(Store.class.getName());
 
     private static final ByteOrder ENC = ByteOrder.BIG_ENDIAN;
-    private static final int LEN_WIDTH = 8;
+    static final int LEN_WIDTH = 8;
+    // set on the length prefix of frames followed by a CRC32C of their payload
+    static final long CRC_FLAG = 1L << 63;
+    static final int CRC_WIDTH = 4;
+    private static final int WRITE_BUFFER_SIZE = 64 << 10;
+    private static final int ENCODER_BUFFER_SIZE = 4 << 10;
+    private static final int SCAN_WINDOW_SIZE = 4 << 10;
+    // MMAP mode remaps once this many bytes were appended past the mapping
+    private static final long MAP_STEP = 4 << 20;
 
     private final File file;
     private final ReentrantLock lock;
-    private final BufferedOutputStream buf;
+    // null for compressed stores, which are read-only
+    private final FileChannel out;
+    // set for stores opened with compressed(), null otherwise
+    private final BlockFile blocks;
+    // allocated on first append and dropped by seal(), so sealed stores hold none
+    private ByteBuffer writeBuf;
+    private CodedOutputStream encoder;
+    // times the write buffer went to the file, to tell whether a frame is still all in it
+    private long flushes;
+    // written under lock; MMAP scan, scrub and getSize read it without
     @Getter
-    private long size;
+    private volatile long size;
+
+    private final Config.ReadMode readMode;
+    private final boolean checksums;
+    private final boolean verify;
+    // guarded by lock, reused by appends
+    private final CRC32C crc = new CRC32C();
+    private final Object mapLock = new Object();
+    private FileChannel readChannel;
+    // bytes known to have reached the file, readable without flushing writeBuf
+    private volatile long flushedSize;
+    private volatile MappedByteBuffer mmap;
+    private boolean closed;
 
     public Store(File file) throws IOException {
+        this(file, Config.ReadMode.FILE, false, true);
+    }
+
+    public Store(File file, Config c) throws IOException {
+        this(file, c.segment.readMode, c.segment.checksums, c.segment.verifyChecksums);
+    }
+
+    private Store(File file, Config.ReadMode readMode, boolean checksums, boolean verify) throws IOException {
         this.file = file;
+        this.checksums = checksums;
+        this.verify = verify;
         this.lock = new ReentrantLock();
-        this.buf = new BufferedOutputStream(new FileOutputStream(file, true));
+        this.out = new FileOutputStream(file, true).getChannel();
+        this.blocks = null;
         this.size = file.length();
+        this.flushedSize = this.size;
+        this.readMode = readMode;
+        if (readMode == Config.ReadMode.MMAP) {
+            this.readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    private Store(File file, BlockFile blocks, boolean verify) {
+        this.file = file;
+        this.checksums = false;
+        this.verify = verify;
+        this.lock = new ReentrantLock();
+        this.out = null;
+        this.blocks = blocks;
+        this.size = blocks.size();
+        this.flushedSize = this.size;
+        this.readMode = Config.ReadMode.FILE;
+    }
+
+    /**
+     * Opens a store written by {@link BlockFile#write}. It reads like the plain store
+     * it was made from, at the same positions, but cannot be appended to.
+     */
+    public static Store compressed(File file, Config c) throws IOException {
+        return new Store(file, new BlockFile(file), c.segment.verifyChecksums);
+    }
+
+    public boolean isCompressed() {
+        return blocks != null;
     }
 
     public AppendResult append(byte[] p) {
@@ -33,14 +109,7 @@ public class Store {
         try {
             long pos = this.size;
 
-            ByteBuffer lenBuf = ByteBuffer.allocate(LEN_WIDTH);
-            lenBuf.order(ENC);
-            lenBuf.putLong(p.length);
-            buf.write(lenBuf.array());
-
-            buf.write(p);
-
-            int w = LEN_WIDTH + p.length;
+            int w = writeFrame(p);
             this.size += w;
 
             return new AppendResult(w, pos);
@@ -52,10 +121,129 @@ public class Store {
         }
     }
 
+    /**
+     * Encodes one record straight into the store's write buffer.
+     */
+    public interface FrameEncoder {
+        int encodedSize();
+
+        void encode(CodedOutputStream out) throws IOException;
+    }
+
+    /**
+     * Frames for {@link #appendBatch(FrameSource)}, asked for one at a time while the
+     * store lock is held.
+     */
+    public interface FrameSource {
+        /**
+         * Returns the frame to append at {@code pos}, or null to end the batch.
+         */
+        FrameEncoder next(long pos) throws IOException;
+
+        /**
+         * Called once the frame from the last {@link #next} is in the store.
+         */
+        void appended(long pos) throws IOException;
+    }
+
+    /**
+     * Appends the frame produced by {@code frame} and returns its position. The
+     * length prefix and payload are written in place into a reusable direct buffer,
+     * so steady-state appends allocate nothing.
+     */
+    public long append(FrameEncoder frame) {
+        lock.lock();
+        try {
+            return appendFrame(frame);
+        } catch (IOException e) {
+            logger.severe("Failed to append record at position " + this.size + ": " + e.getMessage());
+            throw new RuntimeException("Append failed at position " + this.size, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends frames from {@code frames} under one lock acquisition, so they land
+     * contiguously in the write buffer, and returns how many were appended. Frames
+     * appended before a failure stay in the store.
+     */
+    public int appendBatch(FrameSource frames) {
+        lock.lock();
+        try {
+            int n = 0;
+            FrameEncoder frame;
+            while ((frame = frames.next(this.size)) != null) {
+                frames.appended(appendFrame(frame));
+                n++;
+            }
+            return n;
+        } catch (IOException e) {
+            logger.severe("Failed to append batch at position " + this.size + ": " + e.getMessage());
+            throw new RuntimeException("Append failed at position " + this.size, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // caller holds the lock
+    private long appendFrame(FrameEncoder frame) throws IOException {
+        long pos = this.size;
+        int len = frame.encodedSize();
+        int header = checksums ? LEN_WIDTH + CRC_WIDTH : LEN_WIDTH;
+
+        if (checksums && header + len > WRITE_BUFFER_SIZE) {
+            // the checksum is computed over the buffered payload, which has to fit
+            byte[] p = new byte[len];
+            CodedOutputStream cos = CodedOutputStream.newInstance(p);
+            frame.encode(cos);
+            cos.checkNoSpaceLeft();
+            this.size += writeFrame(p);
+            return pos;
+        }
+
+        ByteBuffer b = writeBuffer(header + len);
+        int start = b.position();
+        long flushesBefore = this.flushes;
+        try {
+            b.putLong(checksums ? len | CRC_FLAG : len);
+            if (checksums) {
+                b.putInt(0);
+            }
+            CodedOutputStream cos = encoder();
+            int before = cos.getTotalBytesWritten();
+            frame.encode(cos);
+            cos.flush();
+            if (cos.getTotalBytesWritten() - before != len) {
+                throw new IOException("Encoder wrote " + (cos.getTotalBytesWritten() - before) +
+                        " bytes, expected " + len);
+            }
+        } catch (IOException | RuntimeException e) {
+            discardFrame(pos, start, flushesBefore);
+            throw e;
+        }
+        if (checksums) {
+            ByteBuffer payload = writeBuf.duplicate();
+            payload.limit(start + header + len).position(start + header);
+            crc.reset();
+            crc.update(payload);
+            writeBuf.putInt(start + LEN_WIDTH, (int) crc.getValue());
+        }
+
+        this.size += header + len;
+        return pos;
+    }
+
     public byte[] read(long pos) {
+        if (blocks != null) {
+            return readBlocks(pos);
+        }
+        if (readMode == Config.ReadMode.MMAP) {
+            return readMapped(pos);
+        }
         lock.lock();
         try {
-            buf.flush();
+            flushBuffer();
 
             byte[] sizeBytes = new byte[LEN_WIDTH];
             try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
@@ -65,11 +253,15 @@ public class Store {
                 // Decode the record size
                 ByteBuffer sizeBuffer = ByteBuffer.wrap(sizeBytes);
                 sizeBuffer.order(ENC);
-                long recordSize = sizeBuffer.getLong();
+                long prefix = sizeBuffer.getLong();
+                int stored = hasChecksum(prefix) ? raf.readInt() : 0;
 
-                byte[] record = new byte[(int) recordSize];
+                byte[] record = new byte[(int) payloadLength(prefix)];
                 raf.readFully(record);
 
+                if (hasChecksum(prefix) && verify) {
+                    verify(ByteBuffer.wrap(record), stored, pos);
+                }
                 return record;
             }
         } catch (IOException e) {
@@ -81,8 +273,17 @@ public class Store {
     }
 
     public int readAt(byte[] p, long off) {
+        if (blocks != null) {
+            range(off, p.length).get(p);
+            return p.length;
+        }
+        if (readMode == Config.ReadMode.MMAP) {
+            mapped(off, p.length).get(p);
+            return p.length;
+        }
         lock.lock();
         try {
+            flushBuffer();
             try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
                 raf.seek(off);
                 raf.readFully(p);
@@ -96,11 +297,467 @@ public class Store {
         }
     }
 
+    /**
+     * Returns the bytes in [pos, pos + len). In MMAP mode this is a read-only view
+     * of the mapping and nothing is copied, except for bytes appended since the
+     * mapping last grew.
+     */
+    public ByteBuffer slice(long pos, int len) {
+        if (blocks != null) {
+            return range(pos, len);
+        }
+        if (readMode == Config.ReadMode.MMAP) {
+            return mapped(pos, len);
+        }
+        byte[] p = new byte[len];
+        lock.lock();
+        try {
+            flushBuffer();
+            try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
+                raf.seek(pos);
+                raf.readFully(p);
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to read " + len + " bytes at position " + pos + ": " + e.getMessage());
+            throw new RuntimeException("Slice failed at position " + pos, e);
+        } finally {
+            lock.unlock();
+        }
+        return ByteBuffer.wrap(p);
+    }
+
+    /**
+     * Walks the length prefixes forward from the frame at {@code pos} over at most
+     * {@code maxFrames} frames, stopping before a frame that would take the span past
+     * {@code maxBytes} (the first frame is always taken) or that runs past the end of
+     * the store.
+     */
+    public Span scan(long pos, long maxFrames, long maxBytes) {
+        if (blocks != null) {
+            long limit = this.size;
+            long p = pos;
+            long frames = 0;
+            while (frames < maxFrames && p + LEN_WIDTH <= limit) {
+                long next = p + frameWidth(range(p, LEN_WIDTH).getLong());
+                if (next > limit || next <= p || (frames > 0 && next - pos > maxBytes)) {
+                    break;
+                }
+                p = next;
+                frames++;
+            }
+            return new Span(frames, p);
+        }
+        if (readMode == Config.ReadMode.MMAP) {
+            long limit = this.size;
+            if (limit <= pos) {
+                return new Span(0, pos);
+            }
+            ByteBuffer m = mapped(pos, limit - pos).order(ENC);
+            long p = pos;
+            long frames = 0;
+            while (frames < maxFrames && p + LEN_WIDTH <= limit) {
+                long next = p + frameWidth(m.getLong((int) (p - pos)));
+                if (next > limit || next <= p || (frames > 0 && next - pos > maxBytes)) {
+                    break;
+                }
+                p = next;
+                frames++;
+            }
+            return new Span(frames, p);
+        }
+        lock.lock();
+        try {
+            flushBuffer();
+            try (FileChannel ch = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+                long limit = this.size;
+                long p = pos;
+                long frames = 0;
+                // length prefixes are read through a window so short frames cost no extra reads
+                ByteBuffer window = ByteBuffer.allocate(SCAN_WINDOW_SIZE).order(ENC).limit(0);
+                long windowStart = p;
+                while (frames < maxFrames && p + LEN_WIDTH <= limit) {
+                    if (p + LEN_WIDTH > windowStart + window.limit()) {
+                        window.clear();
+                        windowStart = p;
+                        while (window.position() < LEN_WIDTH && ch.read(window, p + window.position()) > 0) {
+                            // keep reading until at least the prefix is in
+                        }
+                        window.flip();
+                        if (window.limit() < LEN_WIDTH) {
+                            break;
+                        }
+                    }
+                    long next = p + frameWidth(window.getLong((int) (p - windowStart)));
+                    if (next > limit || next <= p || (frames > 0 && next - pos > maxBytes)) {
+                        break;
+                    }
+                    p = next;
+                    frames++;
+                }
+                return new Span(frames, p);
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to scan frames at position " + pos + ": " + e.getMessage());
+            throw new RuntimeException("Scan failed at position " + pos, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] readMapped(long pos) {
+        long prefix = mapped(pos, LEN_WIDTH).order(ENC).getLong(0);
+        byte[] record = new byte[(int) payloadLength(prefix)];
+        ByteBuffer m = mapped(pos, frameWidth(prefix)).order(ENC);
+        m.get(headerWidth(prefix), record);
+        if (hasChecksum(prefix) && verify) {
+            verify(ByteBuffer.wrap(record), m.getInt(LEN_WIDTH), pos);
+        }
+        return record;
+    }
+
+    private byte[] readBlocks(long pos) {
+        long prefix = range(pos, LEN_WIDTH).getLong();
+        ByteBuffer payload = nextPayload(range(pos, (int) frameWidth(prefix)), pos);
+        byte[] record = new byte[payload.remaining()];
+        payload.get(record);
+        return record;
+    }
+
+    private ByteBuffer range(long pos, int len) {
+        try {
+            return blocks.range(pos, len);
+        } catch (IOException e) {
+            logger.severe("Failed to read " + len + " bytes at position " + pos + ": " + e.getMessage());
+            throw new RuntimeException("Read failed at position " + pos, e);
+        }
+    }
+
+    /**
+     * Returns the payload of the frame at the start of {@code region}, a view read
+     * from the store at {@code regionPos}, and advances the region past the frame.
+     */
+    public ByteBuffer nextPayload(ByteBuffer region, long regionPos) {
+        long framePos = regionPos + region.position();
+        long prefix = region.getLong();
+        int stored = hasChecksum(prefix) ? region.getInt() : 0;
+        int len = (int) payloadLength(prefix);
+        ByteBuffer payload = region.slice(region.position(), len);
+        region.position(region.position() + len);
+        if (hasChecksum(prefix) && verify) {
+            verify(payload, stored, framePos);
+        }
+        return payload;
+    }
+
+    /**
+     * Checks every checksummed frame and returns the positions of the ones that do
+     * not match. A length prefix that runs past the end of the store is reported as
+     * corrupt and ends the walk, since later frames can no longer be located.
+     */
+    public List<Long> scrub() throws IOException {
+        long limit = this.size;
+        List<Long> corrupt = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream(), SCAN_WINDOW_SIZE * 16))) {
+            long pos = 0;
+            while (pos + LEN_WIDTH <= limit) {
+                long prefix = in.readLong();
+                long next = pos + frameWidth(prefix);
+                if (next > limit || next < pos) {
+                    corrupt.add(pos);
+                    break;
+                }
+                if (hasChecksum(prefix)) {
+                    int stored = in.readInt();
+                    byte[] p = in.readNBytes((int) payloadLength(prefix));
+                    if (!checksumMatches(p, stored)) {
+                        corrupt.add(pos);
+                    }
+                } else {
+                    in.skipNBytes(payloadLength(prefix));
+                }
+                pos = next;
+            }
+        }
+        return corrupt;
+    }
+
+    private void verify(ByteBuffer payload, int stored, long pos) {
+        CRC32C c = new CRC32C();
+        c.update(payload.duplicate());
+        if ((int) c.getValue() != stored) {
+            throw new CorruptRecordException("Checksum mismatch in frame at position " + pos + " of " + file.getName());
+        }
+    }
+
+    static boolean checksumMatches(byte[] p, int stored) {
+        CRC32C c = new CRC32C();
+        c.update(p);
+        return (int) c.getValue() == stored;
+    }
+
+    static boolean hasChecksum(long prefix) {
+        return (prefix & CRC_FLAG) != 0;
+    }
+
+    static long payloadLength(long prefix) {
+        return prefix & ~CRC_FLAG;
+    }
+
+    static int headerWidth(long prefix) {
+        return hasChecksum(prefix) ? LEN_WIDTH + CRC_WIDTH : LEN_WIDTH;
+    }
+
+    // bytes taken by the whole frame whose length prefix is prefix
+    static long frameWidth(long prefix) {
+        return headerWidth(prefix) + payloadLength(prefix);
+    }
+
+    /**
+     * Returns the bytes in [pos, pos + len) as a read-only buffer starting at index
+     * 0. The mapping only grows once {@link #MAP_STEP} bytes were appended past it,
+     * so a tailing reader copies the newest frames with a positional read instead of
+     * remapping the file for each of them. The append lock is only taken when the
+     * range reaches into bytes still sitting in the write buffer.
+     */
+    private ByteBuffer mapped(long pos, long len) {
+        long end = pos + len;
+        MappedByteBuffer m = this.mmap;
+        if (m != null && end <= m.capacity()) {
+            return m.slice((int) pos, (int) len);
+        }
+        if (end > flushedSize) {
+            flush();
+        }
+        long flushed = flushedSize;
+        if (end > flushed) {
+            throw new RuntimeException("Read failed at position " + pos + ": beyond end of store");
+        }
+        if (m != null && pos >= m.capacity() && flushed - m.capacity() < MAP_STEP) {
+            return readTail(pos, (int) len);
+        }
+        if (flushed > Integer.MAX_VALUE) {
+            throw new RuntimeException("Store too large to map: " + flushed);
+        }
+        synchronized (mapLock) {
+            m = this.mmap;
+            if (m == null || end > m.capacity()) {
+                try {
+                    m = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, flushed);
+                } catch (IOException e) {
+                    logger.severe("Failed to map store at position " + pos + ": " + e.getMessage());
+                    throw new RuntimeException("Read failed at position " + pos, e);
+                }
+                this.mmap = m;
+            }
+            return m.slice((int) pos, (int) len);
+        }
+    }
+
+    // flushed bytes past the mapping, read without growing it
+    private ByteBuffer readTail(long pos, int len) {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        try {
+            while (b.hasRemaining()) {
+                if (readChannel.read(b, pos + b.position()) < 0) {
+                    throw new EOFException("Store ends before position " + (pos + len));
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to read " + len + " bytes at position " + pos + ": " + e.getMessage());
+            throw new RuntimeException("Read failed at position " + pos, e);
+        }
+        return b.flip().asReadOnlyBuffer();
+    }
+
+    private ByteBuffer writeBuffer(int need) throws IOException {
+        if (blocks != null) {
+            throw new IOException("Store is compressed and read-only: " + file.getName());
+        }
+        if (writeBuf == null) {
+            writeBuf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ENC);
+        }
+        if (writeBuf.remaining() < need) {
+            flushBuffer();
+        }
+        return writeBuf;
+    }
+
+    // caller holds lock; returns the bytes written
+    private int writeFrame(byte[] p) throws IOException {
+        if (checksums) {
+            crc.reset();
+            crc.update(p);
+            writeBuffer(LEN_WIDTH + CRC_WIDTH).putLong(p.length | CRC_FLAG).putInt((int) crc.getValue());
+            write(p, 0, p.length);
+            return LEN_WIDTH + CRC_WIDTH + p.length;
+        }
+        writeBuffer(LEN_WIDTH).putLong(p.length);
+        write(p, 0, p.length);
+        return LEN_WIDTH + p.length;
+    }
+
+    private void write(byte[] p, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer b = writeBuffer(1);
+            int n = Math.min(len, b.remaining());
+            b.put(p, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private CodedOutputStream encoder() {
+        if (encoder == null) {
+            encoder = CodedOutputStream.newInstance(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    writeBuffer(1).put((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    Store.this.write(b, off, len);
+                }
+            }, ENCODER_BUFFER_SIZE);
+        }
+        return encoder;
+    }
+
+    // caller holds lock
+    private void flushBuffer() throws IOException {
+        if (writeBuf == null || writeBuf.position() == 0) {
+            return;
+        }
+        writeBuf.flip();
+        while (writeBuf.hasRemaining()) {
+            out.write(writeBuf);
+        }
+        writeBuf.clear();
+        flushes++;
+    }
+
+    // caller holds lock; drops the part of a frame at pos that failed to encode, so
+    // the next append does not land after a torn frame
+    private void discardFrame(long pos, int bufferStart, long flushesBefore) throws IOException {
+        // the encoder may still hold some of the frame
+        encoder = null;
+        if (flushes == flushesBefore) {
+            writeBuf.position(bufferStart);
+            return;
+        }
+        flushBuffer();
+        out.truncate(pos);
+    }
+
+    /**
+     * Cuts the store back to {@code newSize} bytes, used by recovery to drop a torn
+     * tail before anything else is appended.
+     */
+    public void truncate(long newSize) {
+        lock.lock();
+        try {
+            if (blocks != null) {
+                throw new IOException("Store is compressed and read-only: " + file.getName());
+            }
+            flushBuffer();
+            out.truncate(newSize);
+            this.size = Math.min(this.size, newSize);
+            this.flushedSize = this.size;
+            synchronized (mapLock) {
+                mmap = null;
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to truncate store to " + newSize + ": " + e.getMessage());
+            throw new RuntimeException("Truncate failed at position " + newSize, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes pending appends and releases the write buffers once the store will
+     * no longer be appended to. A later append allocates them again.
+     */
+    public void seal() {
+        lock.lock();
+        try {
+            flushBuffer();
+            flushedSize = this.size;
+            writeBuf = null;
+            encoder = null;
+        } catch (IOException e) {
+            logger.severe("Failed to flush store: " + e.getMessage());
+            throw new RuntimeException("Flush failed", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush() {
+        lock.lock();
+        try {
+            flushBuffer();
+            flushedSize = this.size;
+        } catch (IOException e) {
+            logger.severe("Failed to flush store: " + e.getMessage());
+            throw new RuntimeException("Flush failed", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes buffered appends and forces them to disk. The fsync runs outside the
+     * append lock so appends can continue while it is in flight.
+     */
+    public void sync() {
+        FileChannel channel;
+        lock.lock();
+        try {
+            if (closed || blocks != null) {
+                return;
+            }
+            flushBuffer();
+            flushedSize = this.size;
+            channel = out;
+        } catch (IOException e) {
+            logger.severe("Failed to flush store: " + e.getMessage());
+            throw new RuntimeException("Sync failed", e);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            channel.force(false);
+        } catch (java.nio.channels.ClosedChannelException e) {
+            // closed concurrently, close() already forced the data
+        } catch (IOException e) {
+            logger.severe("Failed to sync store: " + e.getMessage());
+            throw new RuntimeException("Sync failed", e);
+        }
+    }
+
     public void close() {
         lock.lock();
         try {
-            buf.flush();
-            buf.close();
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (blocks != null) {
+                blocks.close();
+                return;
+            }
+            flushBuffer();
+            out.force(false);
+            out.close();
+            writeBuf = null;
+            encoder = null;
+            synchronized (mapLock) {
+                mmap = null;
+                if (readChannel != null) {
+                    readChannel.close();
+                }
+            }
         } catch (IOException e) {
             logger.severe("Failed to close store: " + e.getMessage());
             throw new RuntimeException("Close failed", e);
@@ -114,7 +771,10 @@ public class Store {
     }
 
     public InputStream inputStream() throws IOException {
-        buf.flush();
+        if (blocks != null) {
+            return blocks.inputStream();
+        }
+        flush();
         return new FileInputStream(this.file);
     }
 
@@ -125,4 +785,12 @@ public class Store {
      * @param pos Starting position of this record in the log file
      */
     public record AppendResult(long n, long pos) {}
+
+    /**
+     * Result of {@link #scan}.
+     *
+     * @param frames Number of whole frames walked over
+     * @param end    Position just past the last of them
+     */
+    public record Span(long frames, long end) {}
 }
@@ -0,0 +1,155 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import lombok.Getter;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps append timestamps to relative offsets. An entry is written for the first
+ * record of each new timestamp, so both columns are increasing and a lookup is a
+ * binary search. The file is mapped at maxIndexBytes like {@link Index}; once it is
+ * full, later records are found by scanning from the last entry.
+ */
+public class TimeIndex {
+    private static final int TS_WIDTH = 8;
+    private static final int OFF_WIDTH = 4;
+    public static final int ENT_WIDTH = TS_WIDTH + OFF_WIDTH;
+
+    private final File initialFile;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer mmap;
+    private final long capacity;
+    @Getter
+    private long size;
+    private volatile boolean closed;
+
+    public record TimeEntry(long timestamp, int offset) {}
+
+    public TimeIndex(File file, Config c) throws IOException {
+        this.initialFile = file;
+        this.file = new RandomAccessFile(file, "rw");
+        this.size = file.length();
+        this.capacity = Math.max(c.segment.maxIndexBytes, this.size);
+
+        if (file.length() < capacity) {
+            this.file.setLength(capacity);
+        }
+        this.mmap = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        // a file that was not closed cleanly is still padded to capacity; timestamps
+        // are increasing and never 0, so the padding is the run of zeros at the end
+        long lo = 0;
+        long hi = this.size / ENT_WIDTH;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (mmap.getLong((int) (mid * ENT_WIDTH)) != 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        this.size = lo * ENT_WIDTH;
+    }
+
+    /**
+     * Returns the newest entry, or null when the index is empty.
+     */
+    public TimeEntry last() {
+        if (size == 0) {
+            return null;
+        }
+        return entry(size / ENT_WIDTH - 1);
+    }
+
+    /**
+     * Returns the first entry with a timestamp at or after {@code timestamp}, or null
+     * when every entry is older.
+     */
+    public TimeEntry ceiling(long timestamp) {
+        long lo = 0;
+        long hi = size / ENT_WIDTH;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (mmap.getLong((int) (mid * ENT_WIDTH)) < timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == size / ENT_WIDTH ? null : entry(lo);
+    }
+
+    public boolean isFull() {
+        return size + ENT_WIDTH > capacity;
+    }
+
+    /**
+     * Adds an entry and returns false, leaving the index unchanged, once it is full.
+     */
+    public boolean write(long timestamp, int off) {
+        if (isFull()) {
+            return false;
+        }
+        mmap.putLong((int) size, timestamp);
+        mmap.putInt((int) (size + TS_WIDTH), off);
+        size += ENT_WIDTH;
+        return true;
+    }
+
+    /**
+     * Drops every entry after the first {@code entries}, zeroing them so they read
+     * as padding if the index is reopened without a clean close.
+     */
+    public void truncate(long entries) {
+        long newSize = Math.min(entries * ENT_WIDTH, size);
+        for (long p = newSize; p < size; p++) {
+            mmap.put((int) p, (byte) 0);
+        }
+        size = newSize;
+    }
+
+    /**
+     * Drops the entries for relative offsets at or after {@code off}.
+     */
+    public void truncateFrom(int off) {
+        long lo = 0;
+        long hi = size / ENT_WIDTH;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (mmap.getInt((int) (mid * ENT_WIDTH + TS_WIDTH)) < off) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        truncate(lo);
+    }
+
+    private TimeEntry entry(long n) {
+        int pos = (int) (n * ENT_WIDTH);
+        return new TimeEntry(mmap.getLong(pos), mmap.getInt(pos + TS_WIDTH));
+    }
+
+    public void sync() {
+        if (!closed) {
+            mmap.force();
+        }
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        mmap.force();
+        file.getFD().sync();
+        file.setLength(size);
+        file.close();
+    }
+
+    public String name() {
+        return this.initialFile.getAbsolutePath();
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A named set of partitions, each an independent {@link Log} in a numbered
+ * subdirectory of the topic directory. Every partition has its own lock, segments
+ * and background threads, so appends to different partitions run in parallel.
+ */
+public class Topic {
+    private final String name;
+    private final File dir;
+    private final Log[] partitions;
+    private final AtomicInteger nextPartition = new AtomicInteger();
+
+    /**
+     * Opens the topic in dir, creating it with the given number of partitions if it
+     * is new. An existing topic keeps as many partitions as it has on disk when that
+     * is more, since records already placed by key must stay where they are.
+     */
+    public Topic(String dir, String name, int partitions, Config config) throws IOException {
+        this.name = name;
+        this.dir = new File(dir);
+        this.dir.mkdirs();
+        int count = Math.max(partitions, existingPartitions(this.dir));
+        if (count < 1) {
+            throw new IllegalArgumentException("Topic " + name + " needs at least one partition");
+        }
+        this.partitions = new Log[count];
+        try {
+            for (int p = 0; p < count; p++) {
+                this.partitions[p] = new Log(new File(this.dir, Integer.toString(p)).getPath(), config);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Log log : this.partitions) {
+                if (log != null) {
+                    log.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int partitions() {
+        return partitions.length;
+    }
+
+    /**
+     * Returns the log of partition p, or null if the topic has no such partition.
+     */
+    public Log partition(int p) {
+        return p >= 0 && p < partitions.length ? partitions[p] : null;
+    }
+
+    /**
+     * Chooses the partition for a record: records with the same key always land in
+     * the same partition, unkeyed records are spread round-robin.
+     */
+    public int partitionFor(ByteString key) {
+        if (key.isEmpty()) {
+            return Math.floorMod(nextPartition.getAndIncrement(), partitions.length);
+        }
+        return (int) Math.floorMod(OffsetMap.hash(key), (long) partitions.length);
+    }
+
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Log log : partitions) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public void remove() throws IOException {
+        for (Log log : partitions) {
+            log.remove();
+        }
+        dir.delete();
+    }
+
+    private static int existingPartitions(File dir) {
+        File[] files = dir.listFiles(File::isDirectory);
+        int count = 0;
+        for (File f : files == null ? new File[0] : files) {
+            try {
+                count = Math.max(count, Integer.parseInt(f.getName()) + 1);
+            } catch (NumberFormatException e) {
+                // not a partition
+            }
+        }
+        return count;
+    }
+}
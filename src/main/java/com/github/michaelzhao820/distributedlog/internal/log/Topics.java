@@ -0,0 +1,123 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import com.github.michaelzhao820.distributedlog.internal.server.TopicRouter;
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Every topic under one directory, one subdirectory per topic. Topics found on disk
+ * are opened up front; new ones are created on their first append with
+ * {@link Config.Topics#defaultPartitions} partitions.
+ */
+public class Topics implements TopicRouter {
+    // also keeps names usable as directory names
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9._-]{1,249}");
+
+    private final String dir;
+    private final Config config;
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+
+    public Topics(String dir, Config config) throws IOException {
+        this.dir = dir;
+        this.config = config;
+        File dirFile = new File(dir);
+        dirFile.mkdirs();
+        File[] existing = dirFile.listFiles(File::isDirectory);
+        if (existing == null) {
+            throw new IOException("Cannot read directory: " + dir);
+        }
+        for (File f : existing) {
+            // a topic directory always has partition 0
+            if (VALID_NAME.matcher(f.getName()).matches() && new File(f, "0").isDirectory()) {
+                topics.put(f.getName(), new Topic(f.getPath(), f.getName(), 0, config));
+            }
+        }
+    }
+
+    /**
+     * Returns the topic, creating it with the given number of partitions if it does
+     * not exist yet.
+     */
+    public Topic create(String name, int partitions) throws IOException {
+        Topic topic = topics.get(name);
+        if (topic != null) {
+            return topic;
+        }
+        if (!VALID_NAME.matcher(name).matches() || name.equals(".") || name.equals("..")) {
+            throw new IllegalArgumentException("Invalid topic name: " + name);
+        }
+        synchronized (this) {
+            topic = topics.get(name);
+            if (topic == null) {
+                topic = new Topic(new File(dir, name).getPath(), name, partitions, config);
+                topics.put(name, topic);
+            }
+            return topic;
+        }
+    }
+
+    /**
+     * Returns the topic, or null if it does not exist.
+     */
+    public Topic get(String name) {
+        return topics.get(name);
+    }
+
+    public List<String> names() {
+        return List.copyOf(topics.keySet());
+    }
+
+    @Override
+    public int route(String topic, int partition, ByteString key) throws IOException {
+        Topic t = create(topic, config.topics.defaultPartitions);
+        if (partition == ANY_PARTITION) {
+            return t.partitionFor(key);
+        }
+        if (t.partition(partition) == null) {
+            throw new NoSuchElementException("Topic " + topic + " has no partition " + partition);
+        }
+        return partition;
+    }
+
+    @Override
+    public Log partition(String topic, int partition) {
+        Topic t = topics.get(topic);
+        if (t == null) {
+            throw new NoSuchElementException("Unknown topic: " + topic);
+        }
+        Log log = t.partition(partition);
+        if (log == null) {
+            throw new NoSuchElementException("Topic " + topic + " has no partition " + partition);
+        }
+        return log;
+    }
+
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (Topic t : topics.values()) {
+            try {
+                t.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public synchronized void remove() throws IOException {
+        for (Topic t : topics.values()) {
+            t.remove();
+        }
+        topics.clear();
+        new File(dir).delete();
+    }
+}
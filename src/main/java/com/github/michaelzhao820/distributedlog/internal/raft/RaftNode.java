@@ -0,0 +1,878 @@
+package com.github.michaelzhao820.distributedlog.internal.raft;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.*;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.Record;
+import com.github.michaelzhao820.distributedlog.api.v1.RaftGrpc;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Log;
+import com.github.michaelzhao820.distributedlog.internal.log.OffsetWatcher;
+import com.github.michaelzhao820.distributedlog.internal.log.Segment;
+import com.github.michaelzhao820.distributedlog.internal.server.CommitLog;
+import io.grpc.Channel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One member of a Raft group replicating a single log. The entries are the
+ * records of a {@link Log}, each carrying the term it was appended in, so the
+ * segments are the Raft log storage and a follower drops conflicting entries with
+ * {@link Log#truncateFrom}. The current term and vote are kept in a small file
+ * next to the log.
+ * <p>
+ * The leader appends produce requests to its own log and streams entries to each
+ * follower over one AppendEntries call, with up to {@link Config.Raft#maxInflight}
+ * requests of up to {@link Config.Raft#maxBatchRecords} entries unanswered, so
+ * concurrent appends reach followers in shared batches. Followers force the
+ * entries to disk before acknowledging them, whatever the sync policy. An entry is
+ * committed once a majority holds it, and consumers only see committed entries. A
+ * new leader starts its term with an election entry, replicated like any other but
+ * hidden from consumers, so its offset reads like one removed by compaction.
+ * <p>
+ * Membership is fixed by the peers given at construction. Prefix truncation by
+ * retention is not coordinated with followers that still need the entries.
+ */
+public class RaftNode implements CommitLog {
+
+    private static final Logger logger = Logger.getLogger(RaftNode.class.getName());
+    static final String STATE_FILE = "raft.state";
+    // election entries carry no value or key, so larger frames are never one
+    private static final int ELECTION_ENTRY_MAX_BYTES = 64;
+
+    public enum Role {FOLLOWER, CANDIDATE, LEADER}
+
+    private final String id;
+    private final Log log;
+    private final Config.Raft config;
+    private final Path stateFile;
+    private final Map<String, RaftGrpc.RaftStub> stubs = new LinkedHashMap<>();
+    private final ScheduledExecutorService timer;
+    // wakes producers waiting for a commit and consumers tailing committed entries
+    private final OffsetWatcher committed;
+    // orders AppendEntries handling, taken before the monitor
+    private final Object appendLock = new Object();
+
+    // guarded by this
+    private long term;
+    private String votedFor;
+    private Role role = Role.FOLLOWER;
+    private String leaderId;
+    private long commitEnd;
+    private long lastTerm;
+    private final Set<String> votes = new HashSet<>();
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private ScheduledFuture<?> electionTimer;
+    private boolean closed;
+    // a follower or election entry write is under way outside the monitor; no
+    // election starts meanwhile
+    private boolean appending;
+
+    /**
+     * @param peers channels to the other members of the group, by member id
+     */
+    public RaftNode(String id, String dir, Config config, Map<String, ? extends Channel> peers) throws IOException {
+        this.id = id;
+        this.config = config.raft;
+        this.log = new Log(dir + "/log", config);
+        this.stateFile = Path.of(dir, STATE_FILE);
+        peers.forEach((peer, channel) -> stubs.put(peer, RaftGrpc.newStub(channel)));
+        loadState();
+        long end = log.nextOffset();
+        this.lastTerm = end > log.lowestOffset() ? log.read(end - 1).getTerm() : 0;
+        // nothing is known to be committed until a leader says so
+        this.commitEnd = log.lowestOffset();
+        this.committed = new OffsetWatcher(commitEnd);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "raft-" + id);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public RaftNode start() {
+        synchronized (this) {
+            resetElectionTimer();
+        }
+        timer.scheduleAtFixedRate(this::heartbeat, config.heartbeatMs, config.heartbeatMs, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public Log log() {
+        return log;
+    }
+
+    public synchronized boolean isLeader() {
+        return role == Role.LEADER;
+    }
+
+    public synchronized Role role() {
+        return role;
+    }
+
+    public synchronized long term() {
+        return term;
+    }
+
+    public synchronized String leaderId() {
+        return leaderId;
+    }
+
+    /**
+     * Exclusive end of the committed entries as far as this member knows.
+     */
+    public synchronized long commitEnd() {
+        return commitEnd;
+    }
+
+    /**
+     * Appends on the leader and waits until a majority holds the record.
+     */
+    @Override
+    public long append(Record record) throws IOException {
+        long offset;
+        long t;
+        synchronized (this) {
+            checkLeader();
+            t = term;
+            offset = log.append(record.toBuilder().setTerm(t).clearElection().build());
+            lastTerm = t;
+            advanceCommit();
+        }
+        awaitCommit(offset, t);
+        return offset;
+    }
+
+    @Override
+    public OffsetRange appendBatch(List<Record> records) throws IOException {
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("Batch is empty");
+        }
+        OffsetRange range;
+        long t;
+        synchronized (this) {
+            checkLeader();
+            t = term;
+            List<Record> entries = new ArrayList<>(records.size());
+            for (Record r : records) {
+                entries.add(r.toBuilder().setTerm(t).clearElection().build());
+            }
+            range = log.appendBatch(entries);
+            lastTerm = t;
+            advanceCommit();
+        }
+        awaitCommit(range.last(), t);
+        return range;
+    }
+
+    /**
+     * Completes once a majority holds the record, without a thread waiting for it.
+     * The entry is still written under the monitor, so it carries the current term.
+     */
+    @Override
+    public CompletableFuture<Long> appendAsync(Record record) {
+        return appendBatchAsync(List.of(record)).thenApply(OffsetRange::first);
+    }
+
+    @Override
+    public CompletableFuture<OffsetRange> appendBatchAsync(List<Record> records) {
+        OffsetRange range;
+        long t;
+        try {
+            if (records.isEmpty()) {
+                throw new IllegalArgumentException("Batch is empty");
+            }
+            synchronized (this) {
+                checkLeader();
+                t = term;
+                List<Record> entries = new ArrayList<>(records.size());
+                for (Record r : records) {
+                    entries.add(r.toBuilder().setTerm(t).clearElection().build());
+                }
+                range = log.appendBatch(entries);
+                lastTerm = t;
+                advanceCommit();
+            }
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return committed.await(range.last())
+                .orTimeout(config.commitTimeoutMs, TimeUnit.MILLISECONDS)
+                .handle((v, e) -> {
+                    try {
+                        if (e != null) {
+                            throw commitFailure(range.last(), e);
+                        }
+                        checkCommitted(range.last(), t);
+                        return range;
+                    } catch (IOException failure) {
+                        throw new CompletionException(failure);
+                    }
+                });
+    }
+
+    @Override
+    public Record read(long offset) throws IOException {
+        if (offset >= commitEnd()) {
+            throw new IOException("Offset out of range: " + offset);
+        }
+        Record record = log.read(offset);
+        if (record.getElection()) {
+            throw new IOException("Offset " + offset + " holds an election entry");
+        }
+        return record;
+    }
+
+    @Override
+    public List<ByteBuffer> readRaw(long offset, int maxRecords, long maxBytes) throws IOException {
+        while (true) {
+            long end = commitEnd();
+            if (offset >= end) {
+                if (offset > log.nextOffset()) {
+                    throw new IOException("Offset out of range: " + offset);
+                }
+                return List.of();
+            }
+            List<ByteBuffer> frames = log.readRaw(offset, (int) Math.min(maxRecords, end - offset), maxBytes);
+            if (frames.isEmpty()) {
+                return frames;
+            }
+            List<ByteBuffer> records = withoutElectionEntries(frames);
+            if (!records.isEmpty()) {
+                return records;
+            }
+            // nothing but election entries; an empty batch would read as the end
+            offset = Segment.recordOffset(frames.get(frames.size() - 1)) + 1;
+        }
+    }
+
+    @Override
+    public long offsetForTimestamp(long timestamp) throws IOException {
+        return Math.min(log.offsetForTimestamp(timestamp), commitEnd());
+    }
+
+    @Override
+    public CompletableFuture<Void> awaitOffset(long offset) {
+        // a consumer stopped at a committed election entry waits for the record after it
+        try {
+            while (offset < commitEnd() && log.read(offset).getElection()) {
+                offset++;
+            }
+        } catch (IOException e) {
+            // removed meanwhile, the next read reports it
+        }
+        return committed.await(offset);
+    }
+
+    public synchronized VoteResponse handleVote(VoteRequest req) throws IOException {
+        if (req.getTerm() > term) {
+            becomeFollower(req.getTerm());
+        }
+        long lastOffset = log.nextOffset() - 1;
+        boolean upToDate = req.getLastLogTerm() > lastTerm ||
+                (req.getLastLogTerm() == lastTerm && req.getLastLogOffset() >= lastOffset);
+        boolean granted = req.getTerm() == term && upToDate &&
+                (votedFor == null || votedFor.equals(req.getCandidateId()));
+        if (granted) {
+            votedFor = req.getCandidateId();
+            saveState();
+            resetElectionTimer();
+        }
+        return VoteResponse.newBuilder().setTerm(term).setGranted(granted).build();
+    }
+
+    /**
+     * Checks the request under the monitor, then writes and syncs the entries
+     * outside it, so votes and heartbeats are not held up by the disk. Requests
+     * are handled one at a time, and the entries are on disk before they are
+     * acknowledged.
+     */
+    public AppendEntriesResponse handleAppend(AppendEntriesRequest req) throws IOException {
+        synchronized (appendLock) {
+            AppendEntriesResponse.Builder res = AppendEntriesResponse.newBuilder().setSequence(req.getSequence());
+            long prev = req.getPrevLogOffset();
+            long end;
+            long floor;
+            synchronized (this) {
+                if (req.getTerm() < term) {
+                    return res.setTerm(term).setSuccess(false).setNextOffset(log.nextOffset()).build();
+                }
+                if (req.getTerm() > term || role != Role.FOLLOWER) {
+                    becomeFollower(req.getTerm());
+                }
+                leaderId = req.getLeaderId();
+                resetElectionTimer();
+                res.setTerm(term);
+
+                end = log.nextOffset();
+                if (prev >= end) {
+                    return res.setSuccess(false).setNextOffset(end).build();
+                }
+                if (prev >= 0 && termAt(prev) != req.getPrevLogTerm()) {
+                    // the entry at prev goes too, retry from it
+                    return res.setSuccess(false).setNextOffset(Math.max(prev, commitEnd)).build();
+                }
+                floor = commitEnd;
+                appending = true;
+            }
+
+            List<Record> entries = req.getEntriesList();
+            long newLastTerm = -1;
+            try {
+                // entries this member already holds are skipped, the first conflict
+                // and everything after it dropped
+                int i = 0;
+                for (long off = prev + 1; i < entries.size() && off < end; i++, off++) {
+                    if (termAt(off) != entries.get(i).getTerm()) {
+                        if (off < floor) {
+                            throw new IllegalStateException("Leader " + req.getLeaderId() +
+                                    " conflicts with committed offset " + off);
+                        }
+                        log.truncateFrom(off);
+                        newLastTerm = termAt(off - 1);
+                        break;
+                    }
+                }
+                if (i < entries.size()) {
+                    log.appendReplicated(entries.subList(i, entries.size()));
+                    newLastTerm = entries.get(entries.size() - 1).getTerm();
+                }
+                if (!entries.isEmpty()) {
+                    log.sync();
+                }
+            } finally {
+                synchronized (this) {
+                    appending = false;
+                    if (newLastTerm >= 0) {
+                        lastTerm = newLastTerm;
+                    }
+                }
+            }
+
+            synchronized (this) {
+                // a vote for a later term while writing; the old leader must not count this
+                if (term != req.getTerm()) {
+                    return res.setTerm(term).setSuccess(false).setNextOffset(log.nextOffset()).build();
+                }
+                long match = prev + 1 + entries.size();
+                long commit = Math.min(req.getCommitOffset(), match);
+                if (commit > commitEnd) {
+                    commitEnd = commit;
+                    committed.advance(commit);
+                }
+                return res.setSuccess(true).setMatchOffset(match).build();
+            }
+        }
+    }
+
+    public synchronized MembershipResponse membership() {
+        MembershipResponse.Builder res = MembershipResponse.newBuilder()
+                .setId(id)
+                .setTerm(term)
+                .setRole(MembershipResponse.Role.valueOf(role.name()))
+                .setLeaderId(leaderId == null ? "" : leaderId)
+                .setCommitOffset(commitEnd);
+        res.addMembers(MembershipResponse.Member.newBuilder().setId(id)
+                .setMatchOffset(role == Role.LEADER ? log.nextOffset() : 0));
+        for (String peer : stubs.keySet()) {
+            Peer p = peers.get(peer);
+            res.addMembers(MembershipResponse.Member.newBuilder().setId(peer)
+                    .setMatchOffset(p == null ? 0 : p.matchEnd));
+        }
+        return res.build();
+    }
+
+    /**
+     * Stops taking part in the group, fails waiting producers and consumers and
+     * closes the log.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            for (Peer p : peers.values()) {
+                p.disconnect();
+            }
+            peers.clear();
+        }
+        timer.shutdownNow();
+        committed.close();
+        log.close();
+    }
+
+    private void startElection() {
+        VoteRequest req;
+        synchronized (this) {
+            if (closed || role == Role.LEADER) {
+                return;
+            }
+            if (appending) {
+                // entries of a new term must not land before or among the ones being written
+                resetElectionTimer();
+                return;
+            }
+            role = Role.CANDIDATE;
+            term++;
+            votedFor = id;
+            leaderId = null;
+            try {
+                saveState();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Member " + id + " failed to save its vote", e);
+                resetElectionTimer();
+                return;
+            }
+            votes.clear();
+            votes.add(id);
+            resetElectionTimer();
+            logger.info("Member " + id + " starting election for term " + term);
+            if (votes.size() >= majority()) {
+                becomeLeader();
+                return;
+            }
+            req = VoteRequest.newBuilder()
+                    .setTerm(term)
+                    .setCandidateId(id)
+                    .setLastLogOffset(log.nextOffset() - 1)
+                    .setLastLogTerm(lastTerm)
+                    .build();
+        }
+        stubs.forEach((peer, stub) -> stub.withDeadlineAfter(config.electionTimeoutMs, TimeUnit.MILLISECONDS)
+                .requestVote(req, new StreamObserver<>() {
+                    @Override
+                    public void onNext(VoteResponse res) {
+                        onVote(peer, req.getTerm(), res);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        logger.log(Level.FINE, "Vote request to " + peer + " failed", t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                }));
+    }
+
+    private synchronized void onVote(String peer, long electionTerm, VoteResponse res) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (res.getTerm() > term) {
+                becomeFollower(res.getTerm());
+                return;
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Member " + id + " failed to save its term", e);
+            return;
+        }
+        if (role == Role.CANDIDATE && term == electionTerm && res.getGranted()) {
+            votes.add(peer);
+            if (votes.size() >= majority()) {
+                becomeLeader();
+            }
+        }
+    }
+
+    // caller holds the monitor
+    private void becomeLeader() {
+        logger.info("Member " + id + " is leader for term " + term);
+        role = Role.LEADER;
+        leaderId = id;
+        if (electionTimer != null) {
+            electionTimer.cancel(false);
+        }
+        long end = log.nextOffset();
+        for (Map.Entry<String, RaftGrpc.RaftStub> e : stubs.entrySet()) {
+            Peer p = new Peer(e.getKey(), e.getValue(), end);
+            peers.put(e.getKey(), p);
+            p.pump();
+        }
+        advanceCommit();
+        long t = term;
+        try {
+            timer.execute(() -> appendElectionEntry(t));
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    // entries of earlier terms only commit behind one of the current term, so they
+    // do not wait for the next produce; written outside the monitor like follower
+    // entries, as the sync policy may force it to disk
+    private void appendElectionEntry(long t) {
+        synchronized (appendLock) {
+            synchronized (this) {
+                if (closed || role != Role.LEADER || term != t) {
+                    return;
+                }
+                appending = true;
+            }
+            boolean appended = false;
+            try {
+                log.append(Record.newBuilder().setTerm(t).setElection(true).build());
+                appended = true;
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Leader " + id + " failed to append the election entry for term " + t, e);
+            } finally {
+                synchronized (this) {
+                    appending = false;
+                    if (appended) {
+                        lastTerm = t;
+                        advanceCommit();
+                    }
+                }
+            }
+        }
+    }
+
+    // caller holds the monitor
+    private void becomeFollower(long newTerm) throws IOException {
+        if (newTerm > term) {
+            term = newTerm;
+            votedFor = null;
+            saveState();
+        }
+        if (role == Role.LEADER) {
+            logger.info("Member " + id + " stepping down in term " + term);
+            for (Peer p : peers.values()) {
+                p.disconnect();
+            }
+            peers.clear();
+        }
+        role = Role.FOLLOWER;
+        resetElectionTimer();
+    }
+
+    // caller holds the monitor
+    private void resetElectionTimer() {
+        if (closed) {
+            return;
+        }
+        if (electionTimer != null) {
+            electionTimer.cancel(false);
+        }
+        long timeout = config.electionTimeoutMs + ThreadLocalRandom.current().nextLong(config.electionTimeoutMs);
+        try {
+            electionTimer = timer.schedule(this::startElection, timeout, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    private int majority() {
+        return (stubs.size() + 1) / 2 + 1;
+    }
+
+    private synchronized void heartbeat() {
+        if (closed || role != Role.LEADER) {
+            return;
+        }
+        for (Peer p : peers.values()) {
+            p.heartbeat();
+        }
+    }
+
+    // the commit end is the end of the log on the majority-th most caught up
+    // member; only entries of the current term are committed by counting
+    // caller holds the monitor
+    private void advanceCommit() {
+        if (role != Role.LEADER) {
+            return;
+        }
+        List<Long> ends = new ArrayList<>();
+        ends.add(log.nextOffset());
+        for (Peer p : peers.values()) {
+            ends.add(p.matchEnd);
+        }
+        ends.sort(Comparator.reverseOrder());
+        long end = ends.get(majority() - 1);
+        if (end <= commitEnd) {
+            return;
+        }
+        try {
+            if (termAt(end - 1) != term) {
+                return;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Member " + id + " failed to read the term at " + (end - 1), e);
+            return;
+        }
+        commitEnd = end;
+        committed.advance(end);
+    }
+
+    private void awaitCommit(long offset, long t) throws IOException {
+        try {
+            committed.await(offset).get(config.commitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            throw commitFailure(offset, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for offset " + offset + " to commit");
+        }
+        checkCommitted(offset, t);
+    }
+
+    private void checkCommitted(long offset, long t) throws IOException {
+        synchronized (this) {
+            // only a member that lost the leadership can have had the entry replaced
+            if (role == Role.LEADER && term == t) {
+                return;
+            }
+        }
+        // a later leader may have committed a different entry at the offset
+        if (log.read(offset).getTerm() != t) {
+            throw new IOException("Offset " + offset + " was replaced after a leader change");
+        }
+    }
+
+    private IOException commitFailure(long offset, Throwable e) {
+        if (e instanceof CompletionException || e instanceof ExecutionException) {
+            e = e.getCause();
+        }
+        if (e instanceof TimeoutException) {
+            return new IOException("Offset " + offset + " was not committed in " + config.commitTimeoutMs + " ms", e);
+        }
+        return new IOException("Failed waiting for offset " + offset + " to commit", e);
+    }
+
+    private void checkLeader() {
+        if (role != Role.LEADER) {
+            throw new IllegalStateException(leaderId == null ? "No leader elected" :
+                    "Member " + id + " is not the leader, " + leaderId + " is");
+        }
+    }
+
+    private static List<ByteBuffer> withoutElectionEntries(List<ByteBuffer> frames) throws IOException {
+        List<ByteBuffer> records = null;
+        for (int i = 0; i < frames.size(); i++) {
+            ByteBuffer f = frames.get(i);
+            boolean election = f.remaining() <= ELECTION_ENTRY_MAX_BYTES && Record.parseFrom(f.duplicate()).getElection();
+            if (election && records == null) {
+                records = new ArrayList<>(frames.subList(0, i));
+            } else if (!election && records != null) {
+                records.add(f);
+            }
+        }
+        return records == null ? frames : records;
+    }
+
+    private long termAt(long offset) throws IOException {
+        return offset < log.lowestOffset() ? 0 : log.read(offset).getTerm();
+    }
+
+    private void loadState() throws IOException {
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(stateFile, StandardCharsets.UTF_8);
+        term = Long.parseLong(lines.get(0));
+        votedFor = lines.size() > 1 && !lines.get(1).isEmpty() ? lines.get(1) : null;
+    }
+
+    // synced and renamed into place before any vote or term change is acted on
+    private void saveState() throws IOException {
+        Path tmp = stateFile.resolveSibling(STATE_FILE + ".tmp");
+        byte[] bytes = (term + "\n" + (votedFor == null ? "" : votedFor) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(ByteBuffer.wrap(bytes));
+            ch.force(true);
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The leader's view of one follower and the AppendEntries call to it. Requests
+     * are numbered; after a rejection or a broken call, responses to requests sent
+     * before it are ignored and sending resumes from where the follower asked.
+     * Guarded by the node's monitor.
+     */
+    private class Peer {
+        private final String peerId;
+        private final RaftGrpc.RaftStub stub;
+        private ClientCallStreamObserver<AppendEntriesRequest> requests;
+        // next entry to send and end of the entries the follower is known to hold
+        private long nextOffset;
+        private long matchEnd;
+        private long sequence;
+        // responses to requests numbered below this are stale
+        private long validFrom;
+        private int inflight;
+        private boolean sentSinceHeartbeat;
+        private boolean waiting;
+
+        Peer(String peerId, RaftGrpc.RaftStub stub, long nextOffset) {
+            this.peerId = peerId;
+            this.stub = stub;
+            this.nextOffset = nextOffset;
+        }
+
+        // sends what the window allows, then waits for the next append
+        void pump() {
+            if (closed || role != Role.LEADER || peers.get(peerId) != this) {
+                return;
+            }
+            connect();
+            try {
+                while (inflight < config.maxInflight && nextOffset < log.nextOffset()) {
+                    List<ByteBuffer> frames = log.readRaw(nextOffset, config.maxBatchRecords, config.maxBatchBytes);
+                    if (frames.isEmpty()) {
+                        break;
+                    }
+                    List<Record> entries = new ArrayList<>(frames.size());
+                    for (ByteBuffer f : frames) {
+                        entries.add(Record.parseFrom(f.duplicate()));
+                    }
+                    send(entries);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Leader " + id + " failed to read entries for " + peerId, e);
+                return;
+            }
+            if (!waiting && nextOffset >= log.nextOffset()) {
+                waiting = true;
+                log.awaitOffset(nextOffset).whenCompleteAsync((v, t) -> {
+                    synchronized (RaftNode.this) {
+                        waiting = false;
+                        if (t == null) {
+                            pump();
+                        }
+                    }
+                }, timer);
+            }
+        }
+
+        void heartbeat() {
+            if (!sentSinceHeartbeat && inflight < config.maxInflight) {
+                connect();
+                try {
+                    send(List.of());
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Leader " + id + " failed to send a heartbeat to " + peerId, e);
+                }
+            }
+            sentSinceHeartbeat = false;
+        }
+
+        private void send(List<Record> entries) throws IOException {
+            long prev = nextOffset - 1;
+            AppendEntriesRequest req = AppendEntriesRequest.newBuilder()
+                    .setTerm(term)
+                    .setLeaderId(id)
+                    .setPrevLogOffset(prev)
+                    .setPrevLogTerm(prev < 0 ? 0 : termAt(prev))
+                    .addAllEntries(entries)
+                    .setCommitOffset(commitEnd)
+                    .setSequence(sequence++)
+                    .build();
+            requests.onNext(req);
+            nextOffset += entries.size();
+            inflight++;
+            sentSinceHeartbeat = true;
+        }
+
+        private void connect() {
+            if (requests != null) {
+                return;
+            }
+            inflight = 0;
+            validFrom = sequence;
+            nextOffset = Math.max(matchEnd, Math.min(nextOffset, log.nextOffset()));
+            stub.appendEntries(new ClientResponseObserver<AppendEntriesRequest, AppendEntriesResponse>() {
+                // callbacks of a call that has been replaced are ignored
+                private ClientCallStreamObserver<AppendEntriesRequest> call;
+
+                @Override
+                public void beforeStart(ClientCallStreamObserver<AppendEntriesRequest> requestStream) {
+                    call = requestStream;
+                    requests = requestStream;
+                }
+
+                @Override
+                public void onNext(AppendEntriesResponse res) {
+                    synchronized (RaftNode.this) {
+                        if (call == requests) {
+                            onResponse(res);
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    synchronized (RaftNode.this) {
+                        if (call == requests) {
+                            logger.log(Level.FINE, "AppendEntries call to " + peerId + " failed", t);
+                            requests = null;
+                        }
+                    }
+                }
+
+                @Override
+                public void onCompleted() {
+                    synchronized (RaftNode.this) {
+                        if (call == requests) {
+                            requests = null;
+                        }
+                    }
+                }
+            });
+        }
+
+        private void onResponse(AppendEntriesResponse res) {
+            if (closed) {
+                return;
+            }
+            if (res.getTerm() > term) {
+                try {
+                    becomeFollower(res.getTerm());
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Member " + id + " failed to save its term", e);
+                }
+                return;
+            }
+            if (role != Role.LEADER || peers.get(peerId) != this || res.getSequence() < validFrom) {
+                return;
+            }
+            inflight--;
+            if (res.getSuccess()) {
+                if (res.getMatchOffset() > matchEnd) {
+                    matchEnd = res.getMatchOffset();
+                    advanceCommit();
+                }
+            } else {
+                // drop the requests sent after the rejected one and start over
+                validFrom = sequence;
+                inflight = 0;
+                nextOffset = Math.max(matchEnd, Math.min(res.getNextOffset(), nextOffset));
+            }
+            pump();
+        }
+
+        void disconnect() {
+            if (requests != null) {
+                requests.cancel("Leader " + id + " stepped down", null);
+                requests = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.github.michaelzhao820.distributedlog.internal.replication;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.Record;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Log;
+import com.github.michaelzhao820.distributedlog.internal.log.OffsetWatcher;
+import com.github.michaelzhao820.distributedlog.internal.log.Segment;
+import com.github.michaelzhao820.distributedlog.internal.server.CommitLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One replica of a partition. As leader it takes appends, serves them to followers
+ * and commits a record once {@link Config.Replication#acks} replicas, itself
+ * included, hold it. As follower it only takes records from a {@link Replicator}
+ * and adopts the leader's high watermark as far as it has the records. Either way
+ * consumers only see records below the high watermark, which a new leader is
+ * guaranteed to have.
+ */
+public class ReplicatedLog implements CommitLog {
+    private final Log log;
+    private final Config.Replication config;
+    // wakes producers waiting for a commit and consumers tailing committed records
+    private final OffsetWatcher committed;
+    // end of the log each follower has acknowledged, by replica id
+    private final Map<String, Long> followers = new ConcurrentHashMap<>();
+    private volatile boolean leader;
+    // guarded by this
+    private long highWatermark;
+
+    public ReplicatedLog(Log log, Config.Replication config, boolean leader) throws IOException {
+        this.log = log;
+        this.config = config;
+        this.leader = leader;
+        // after a restart only the leader's own copy counts until followers acknowledge again
+        this.highWatermark = leader && config.acks <= 1 ? log.nextOffset() : log.lowestOffset();
+        this.committed = new OffsetWatcher(highWatermark);
+    }
+
+    public boolean isLeader() {
+        return leader;
+    }
+
+    public void becomeLeader() {
+        followers.clear();
+        leader = true;
+        advance();
+    }
+
+    public void becomeFollower() {
+        leader = false;
+    }
+
+    public synchronized long highWatermark() {
+        return highWatermark;
+    }
+
+    public long nextOffset() {
+        return log.nextOffset();
+    }
+
+    public Log log() {
+        return log;
+    }
+
+    /**
+     * Appends and waits until the record is committed.
+     */
+    @Override
+    public long append(Record record) throws IOException {
+        checkLeader();
+        long offset = log.append(record);
+        advance();
+        awaitCommit(offset);
+        return offset;
+    }
+
+    @Override
+    public OffsetRange appendBatch(List<Record> records) throws IOException {
+        checkLeader();
+        OffsetRange range = log.appendBatch(records);
+        advance();
+        awaitCommit(range.last());
+        return range;
+    }
+
+    /**
+     * Completes once the record is committed, without a thread waiting for it.
+     */
+    @Override
+    public CompletableFuture<Long> appendAsync(Record record) {
+        return appendBatchAsync(List.of(record)).thenApply(OffsetRange::first);
+    }
+
+    @Override
+    public CompletableFuture<OffsetRange> appendBatchAsync(List<Record> records) {
+        try {
+            checkLeader();
+        } catch (IllegalStateException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return log.appendBatchAsync(records).thenCompose(range -> {
+            advance();
+            return committed.await(range.last())
+                    .orTimeout(config.ackTimeoutMs, TimeUnit.MILLISECONDS)
+                    .handle((v, e) -> {
+                        if (e != null) {
+                            throw new CompletionException(commitFailure(range.last(), e));
+                        }
+                        return range;
+                    });
+        });
+    }
+
+    @Override
+    public Record read(long offset) throws IOException {
+        if (offset >= highWatermark()) {
+            throw new IOException("Offset out of range: " + offset);
+        }
+        return log.read(offset);
+    }
+
+    /**
+     * Reads committed records; an offset between the high watermark and the end of
+     * the log reads nothing yet.
+     */
+    @Override
+    public List<ByteBuffer> readRaw(long offset, int maxRecords, long maxBytes) throws IOException {
+        long hw = highWatermark();
+        if (offset >= hw) {
+            if (offset > log.nextOffset()) {
+                throw new IOException("Offset out of range: " + offset);
+            }
+            return List.of();
+        }
+        List<ByteBuffer> frames = log.readRaw(offset, (int) Math.min(maxRecords, hw - offset), maxBytes);
+        // across a gap left by compaction the read can run past the high watermark
+        int n = frames.size();
+        while (n > 0 && Segment.recordOffset(frames.get(n - 1)) >= hw) {
+            n--;
+        }
+        return n == frames.size() ? frames : frames.subList(0, n);
+    }
+
+    @Override
+    public long offsetForTimestamp(long timestamp) throws IOException {
+        return Math.min(log.offsetForTimestamp(timestamp), highWatermark());
+    }
+
+    /**
+     * Completes once the record at offset is committed.
+     */
+    @Override
+    public CompletableFuture<Void> awaitOffset(long offset) {
+        return committed.await(offset);
+    }
+
+    /**
+     * Records that a follower holds every record before offset. Commits whatever
+     * that brings up to the required number of replicas.
+     */
+    public void acknowledge(String replicaId, long offset) {
+        checkLeader();
+        followers.merge(replicaId, offset, Math::max);
+        advance();
+    }
+
+    /**
+     * Reads records for a follower, committed or not. A follower behind retention
+     * continues from the oldest record left.
+     */
+    public List<ByteBuffer> readUncommitted(long offset) throws IOException {
+        return log.readRaw(Math.max(offset, log.lowestOffset()), config.fetchMaxRecords, config.fetchMaxBytes);
+    }
+
+    /**
+     * Completes once the record at offset has been appended, committed or not.
+     */
+    public CompletableFuture<Void> awaitAppend(long offset) {
+        return log.awaitOffset(offset);
+    }
+
+    /**
+     * Appends records copied from the leader and moves the high watermark up to the
+     * leader's, as far as this replica holds the records.
+     */
+    public void appendReplicated(List<Record> records, long leaderHighWatermark) throws IOException {
+        if (leader) {
+            throw new IllegalStateException("Replica is the leader");
+        }
+        log.appendReplicated(records);
+        long hw;
+        synchronized (this) {
+            hw = Math.max(highWatermark, Math.min(leaderHighWatermark, log.nextOffset()));
+            highWatermark = hw;
+        }
+        committed.advance(hw);
+    }
+
+    /**
+     * Fails waiting producers and consumers, then closes the log.
+     */
+    public void close() throws IOException {
+        committed.close();
+        log.close();
+    }
+
+    // the high watermark is the end of the log on the acks-th most caught up replica
+    private void advance() {
+        long hw;
+        synchronized (this) {
+            List<Long> ends = new ArrayList<>(followers.values());
+            ends.add(log.nextOffset());
+            if (ends.size() < config.acks) {
+                return;
+            }
+            ends.sort(Comparator.reverseOrder());
+            hw = Math.max(highWatermark, ends.get(Math.max(config.acks, 1) - 1));
+            highWatermark = hw;
+        }
+        committed.advance(hw);
+    }
+
+    private void awaitCommit(long offset) throws IOException {
+        try {
+            committed.await(offset).get(config.ackTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            throw commitFailure(offset, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for offset " + offset + " to commit");
+        }
+    }
+
+    private IOException commitFailure(long offset, Throwable e) {
+        if (e instanceof CompletionException || e instanceof ExecutionException) {
+            e = e.getCause();
+        }
+        if (e instanceof TimeoutException) {
+            return new IOException("Offset " + offset + " did not reach " + config.acks + " replicas in " +
+                    config.ackTimeoutMs + " ms", e);
+        }
+        return new IOException("Failed waiting for offset " + offset + " to commit", e);
+    }
+
+    private void checkLeader() {
+        if (!leader) {
+            throw new IllegalStateException("Replica is not the leader");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.michaelzhao820.distributedlog.internal.replication;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogGrpc;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.FetchRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.FetchResponse;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import io.grpc.Channel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a follower {@link ReplicatedLog} copying one partition from its leader over
+ * a Fetch stream. Each batch is appended as it arrives and acknowledged on the same
+ * stream; responses without records only carry a newer high watermark. gRPC
+ * delivers the next batch only once the append returns, so a slow follower slows
+ * its stream instead of buffering it. A failed stream is reopened
+ * from the end of the local log after {@link Config.Replication#retryBackoffMs}.
+ */
+public class Replicator {
+
+    private static final Logger logger = Logger.getLogger(Replicator.class.getName());
+
+    private final String replicaId;
+    private final LogGrpc.LogStub leader;
+    private final String topic;
+    private final int partition;
+    private final ReplicatedLog log;
+    private final Config.Replication config;
+    private final ScheduledExecutorService retries;
+    private volatile ClientCallStreamObserver<FetchRequest> requests;
+    private volatile boolean closed;
+
+    public Replicator(String replicaId, Channel leader, String topic, int partition, ReplicatedLog log,
+                      Config.Replication config) {
+        this.replicaId = replicaId;
+        this.leader = LogGrpc.newStub(leader);
+        this.topic = topic;
+        this.partition = partition;
+        this.log = log;
+        this.config = config;
+        this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "log-replicator-" + replicaId);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Replicator start() {
+        log.becomeFollower();
+        connect();
+        return this;
+    }
+
+    public void close() {
+        closed = true;
+        retries.shutdownNow();
+        ClientCallStreamObserver<FetchRequest> r = requests;
+        if (r != null) {
+            r.cancel("Replicator closed", null);
+        }
+    }
+
+    private void connect() {
+        if (closed) {
+            return;
+        }
+        logger.info("Replica " + replicaId + " fetching " + topic + "/" + partition + " from offset " + log.nextOffset());
+        leader.fetch(new ClientResponseObserver<FetchRequest, FetchResponse>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<FetchRequest> requestStream) {
+                requests = requestStream;
+            }
+
+            @Override
+            public void onNext(FetchResponse response) {
+                try {
+                    log.appendReplicated(response.getRecordsList(), response.getHighWatermark());
+                    if (response.getRecordsCount() > 0) {
+                        requests.onNext(request());
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Replica " + replicaId + " failed to append from its leader", e);
+                    requests.cancel("Append failed", e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (!closed) {
+                    logger.log(Level.WARNING, "Fetch stream of replica " + replicaId + " failed, retrying", t);
+                    retry();
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                retry();
+            }
+        });
+        requests.onNext(request());
+    }
+
+    private void retry() {
+        if (closed) {
+            return;
+        }
+        try {
+            retries.schedule(this::connect, config.retryBackoffMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    private FetchRequest request() {
+        return FetchRequest.newBuilder()
+                .setTopic(topic)
+                .setPartition(partition)
+                .setOffset(log.nextOffset())
+                .setReplicaId(replicaId)
+                .build();
+    }
+}
@@ -2,14 +2,125 @@ package com.github.michaelzhao820.distributedlog.internal.server;
 
 import com.github.michaelzhao820.distributedlog.api.v1.LogProto.Record;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 public interface CommitLog {
     /**
      * Append a record to the log and return its offset.
      */
     long append(Record record) throws Exception;
 
+    /**
+     * Append records as one batch and return the contiguous range of offsets
+     * assigned to them, in order.
+     */
+    default OffsetRange appendBatch(List<Record> records) throws Exception {
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("Batch is empty");
+        }
+        long first = append(records.get(0));
+        long last = first;
+        for (int i = 1; i < records.size(); i++) {
+            last = append(records.get(i));
+        }
+        return new OffsetRange(first, last);
+    }
+
+    /**
+     * Append a record without blocking the caller on the write. The default appends
+     * on the calling thread and returns a completed future.
+     */
+    default CompletableFuture<Long> appendAsync(Record record) {
+        try {
+            return CompletableFuture.completedFuture(append(record));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Batch counterpart of {@link #appendAsync(Record)}.
+     */
+    default CompletableFuture<OffsetRange> appendBatchAsync(List<Record> records) {
+        try {
+            return CompletableFuture.completedFuture(appendBatch(records));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     /**
      * Read a record from the log by offset.
      */
     Record read(long offset) throws Exception;
-}
\ No newline at end of file
+
+    /**
+     * Read serialized records starting at offset, without parsing them. Each buffer
+     * holds one encoded {@link Record}; implementations may return fewer than
+     * maxRecords and may exceed maxBytes by at most one record.
+     */
+    default List<ByteBuffer> readRaw(long offset, int maxRecords, long maxBytes) throws Exception {
+        return List.of(ByteBuffer.wrap(read(offset).toByteArray()));
+    }
+
+    /**
+     * Read and parse the records from offset onwards, stopping at maxRecords, at
+     * maxBytes of serialized records (exceeded by at most one record) or at the end
+     * of the log. The default is built on {@link #readRaw}; the first offset it
+     * cannot read after at least one record ends the range, as the default
+     * readRaw fails past the visible end instead of returning nothing.
+     */
+    default List<Record> readRange(long offset, int maxRecords, long maxBytes) throws Exception {
+        List<Record> records = new ArrayList<>();
+        long bytes = 0;
+        while (records.size() < maxRecords && bytes < maxBytes) {
+            List<ByteBuffer> frames;
+            try {
+                frames = readRaw(offset, maxRecords - records.size(), maxBytes - bytes);
+            } catch (Exception e) {
+                if (records.isEmpty()) {
+                    throw e;
+                }
+                // a read starting here reports the failure if it was not the end
+                break;
+            }
+            if (frames.isEmpty()) {
+                break;
+            }
+            for (ByteBuffer frame : frames) {
+                bytes += frame.remaining();
+                records.add(Record.parseFrom(frame.duplicate()));
+            }
+            offset = records.get(records.size() - 1).getOffset() + 1;
+        }
+        return records;
+    }
+
+    /**
+     * Returns the first offset appended at or after timestamp (milliseconds since the
+     * epoch), or the next offset to be appended if every record is older.
+     */
+    long offsetForTimestamp(long timestamp) throws Exception;
+
+    /**
+     * Returns a future that completes once the record at offset can be read.
+     * Implementations without append notifications complete it after a short delay
+     * so callers fall back to polling.
+     */
+    default CompletableFuture<Void> awaitOffset(long offset) {
+        return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Inclusive range of offsets assigned to a batch.
+     */
+    record OffsetRange(long first, long last) {
+        public long count() {
+            return last - first + 1;
+        }
+    }
+}
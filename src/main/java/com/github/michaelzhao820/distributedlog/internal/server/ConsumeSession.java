@@ -0,0 +1,148 @@
+package com.github.michaelzhao820.distributedlog.internal.server;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One tailing ConsumeStream subscriber. Drains batches on a shared executor while
+ * the transport is ready, parks on {@link CommitLog#awaitOffset} or a future like it
+ * once caught up and resumes from gRPC's onReady callback, so an idle subscriber
+ * holds no thread.
+ */
+class ConsumeSession<T> {
+
+    private static final Logger logger = Logger.getLogger(ConsumeSession.class.getName());
+    // offsetOf for an item that carries no records, which leaves the offset as it is
+    static final long NO_RECORDS = Long.MIN_VALUE;
+
+    interface BatchReader<T> {
+        /**
+         * Reads records from offset on, returning an empty list at the tail.
+         */
+        List<T> read(long offset) throws Exception;
+    }
+
+    // completes once there is a record at the offset to read
+    private final LongFunction<CompletableFuture<Void>> awaitOffset;
+    private final ServerCallStreamObserver<T> observer;
+    private final BatchReader<T> reader;
+    // offset of the last record in an item, -1 if unknown, or NO_RECORDS
+    private final ToLongFunction<T> offsetOf;
+    private final Executor executor;
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean waiting = new AtomicBoolean();
+    private volatile boolean done;
+    private volatile Throwable parkFailure;
+    private long offset;
+
+    ConsumeSession(LongFunction<CompletableFuture<Void>> awaitOffset, ServerCallStreamObserver<T> observer,
+                   long offset, BatchReader<T> reader, ToLongFunction<T> offsetOf, Executor executor) {
+        this.awaitOffset = awaitOffset;
+        this.observer = observer;
+        this.offset = offset;
+        this.reader = reader;
+        this.offsetOf = offsetOf;
+        this.executor = executor;
+    }
+
+    void start() {
+        observer.setOnReadyHandler(this::schedule);
+        observer.setOnCancelHandler(this::cancel);
+        schedule();
+    }
+
+    /**
+     * Starts draining on a bidirectional call, whose transport callbacks can only be
+     * set before the call returns its request observer; that code must forward
+     * onReady to {@link #schedule} and cancellation to {@link #cancel}.
+     */
+    void startForwarded() {
+        schedule();
+    }
+
+    void cancel() {
+        done = true;
+        logger.info("Consume stream cancelled by client at offset: " + offset);
+    }
+
+    void schedule() {
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this::drainLoop);
+        }
+    }
+
+    private void drainLoop() {
+        int missed = 1;
+        do {
+            drain();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain() {
+        Throwable failure = parkFailure;
+        if (failure != null) {
+            fail(Status.UNAVAILABLE.withDescription(failure.getMessage()).withCause(failure));
+            return;
+        }
+        while (!done && observer.isReady()) {
+            List<T> batch;
+            try {
+                batch = reader.read(offset);
+            } catch (IOException e) {
+                fail(Status.OUT_OF_RANGE.withDescription(e.getMessage()).withCause(e));
+                return;
+            } catch (Exception e) {
+                fail(Status.INTERNAL.withDescription(e.getMessage()).withCause(e));
+                return;
+            }
+
+            if (batch.isEmpty()) {
+                park();
+                return;
+            }
+            for (T item : batch) {
+                observer.onNext(item);
+            }
+            // compacted logs have gaps, so continue after the last record sent
+            long last = offsetOf.applyAsLong(batch.get(batch.size() - 1));
+            if (last != NO_RECORDS) {
+                offset = Math.max(offset + batch.size(), last + 1);
+            }
+        }
+    }
+
+    private void park() {
+        if (!waiting.compareAndSet(false, true)) {
+            return;
+        }
+        awaitOffset.apply(offset).whenComplete((v, e) -> {
+            if (e != null) {
+                parkFailure = e instanceof CompletionException ? e.getCause() : e;
+            }
+            waiting.set(false);
+            schedule();
+        });
+    }
+
+    private void fail(Status status) {
+        if (done) {
+            return;
+        }
+        done = true;
+        logger.log(Level.WARNING, "Consume stream failed at offset " + offset + ": " + status);
+        observer.onError(status.asRuntimeException());
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.michaelzhao820.distributedlog.internal.server;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.FetchRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.FetchResponse;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.Record;
+import com.github.michaelzhao820.distributedlog.internal.replication.ReplicatedLog;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One Fetch call from a follower. The first request opens a {@link ConsumeSession}
+ * over the leader's uncommitted records, which pushes batches while the transport
+ * is ready; every request, the first included, acknowledges the follower's end of
+ * log to the leader. A session also wakes when the high watermark moves and sends
+ * it on without records, so followers learn about commits that came after their
+ * last batch.
+ */
+class FetchSession implements StreamObserver<FetchRequest> {
+
+    private static final Logger logger = Logger.getLogger(FetchSession.class.getName());
+
+    private final TopicRouter topics;
+    private final ServerCallStreamObserver<FetchResponse> observer;
+    private final Executor executor;
+    private volatile ReplicatedLog leader;
+    private volatile ConsumeSession<FetchResponse> session;
+    private volatile boolean failed;
+    // high watermark last sent; only the drain touches it
+    private long sentHighWatermark = -1;
+
+    FetchSession(TopicRouter topics, ServerCallStreamObserver<FetchResponse> observer, Executor executor) {
+        this.topics = topics;
+        this.observer = observer;
+        this.executor = executor;
+        // a bidirectional call takes its callbacks now, before the first request says what to read
+        observer.setOnReadyHandler(() -> {
+            ConsumeSession<FetchResponse> s = session;
+            if (s != null) {
+                s.schedule();
+            }
+        });
+        observer.setOnCancelHandler(() -> {
+            failed = true;
+            ConsumeSession<FetchResponse> s = session;
+            if (s != null) {
+                s.cancel();
+            }
+        });
+    }
+
+    @Override
+    public void onNext(FetchRequest request) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (leader == null) {
+                open(request);
+                return;
+            }
+            leader.acknowledge(request.getReplicaId(), request.getOffset());
+        } catch (IllegalStateException e) {
+            fail(Status.FAILED_PRECONDITION.withDescription(e.getMessage()));
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.log(Level.FINE, "Fetch stream closed by follower", t);
+    }
+
+    @Override
+    public void onCompleted() {
+        // followers cancel the call to stop; the session ends with it
+    }
+
+    private void open(FetchRequest request) {
+        CommitLog log;
+        try {
+            log = topics.partition(LogServerImpl.topicOf(request.getTopic()), request.getPartition());
+        } catch (NoSuchElementException e) {
+            fail(LogServerImpl.routingStatus(e));
+            return;
+        } catch (Exception e) {
+            fail(Status.INTERNAL.withDescription(e.getMessage()).withCause(e));
+            return;
+        }
+        if (!(log instanceof ReplicatedLog) || !((ReplicatedLog) log).isLeader()) {
+            fail(Status.FAILED_PRECONDITION.withDescription("Partition is not led by this server"));
+            return;
+        }
+        ReplicatedLog replica = (ReplicatedLog) log;
+        replica.acknowledge(request.getReplicaId(), request.getOffset());
+        leader = replica;
+        logger.info("Replica " + request.getReplicaId() + " fetching from offset " + request.getOffset());
+        ConsumeSession<FetchResponse> s = new ConsumeSession<>(offset -> awaitChange(replica, offset), observer,
+                request.getOffset(), offset -> read(replica, offset), FetchSession::lastOffset, executor);
+        session = s;
+        if (failed) {
+            s.cancel();
+            return;
+        }
+        s.startForwarded();
+    }
+
+    private List<FetchResponse> read(ReplicatedLog replica, long offset) throws Exception {
+        List<ByteBuffer> frames = replica.readUncommitted(offset);
+        long hw = replica.highWatermark();
+        if (frames.isEmpty() && hw == sentHighWatermark) {
+            return List.of();
+        }
+        FetchResponse.Builder response = FetchResponse.newBuilder().setHighWatermark(hw);
+        for (ByteBuffer frame : frames) {
+            response.addRecords(Record.parseFrom(frame));
+        }
+        sentHighWatermark = hw;
+        return List.of(response.build());
+    }
+
+    // completes on the next append or the next move of the high watermark
+    private CompletableFuture<Void> awaitChange(ReplicatedLog replica, long offset) {
+        return CompletableFuture.anyOf(replica.awaitAppend(offset), replica.awaitOffset(sentHighWatermark + 1))
+                .thenApply(v -> null);
+    }
+
+    private static long lastOffset(FetchResponse response) {
+        int n = response.getRecordsCount();
+        return n == 0 ? ConsumeSession.NO_RECORDS : response.getRecords(n - 1).getOffset();
+    }
+
+    private void fail(Status status) {
+        failed = true;
+        logger.warning("Fetch stream failed: " + status);
+        observer.onError(status.asRuntimeException());
+    }
+}
@@ -1,13 +1,21 @@
 package com.github.michaelzhao820.distributedlog.internal.server;
 
+import com.github.michaelzhao820.distributedlog.internal.raft.RaftNode;
 import io.grpc.Server;
+import io.grpc.ServerBuilder;
 
 public class GrpcServerBuilder {
-    private final CommitLog commitLog;
+    private final TopicRouter topics;
+    private RaftNode raft;
+    private ServerList servers;
     private int port = 50051;
 
     public GrpcServerBuilder(CommitLog commitLog) {
-        this.commitLog = commitLog;
+        this(TopicRouter.of(commitLog));
+    }
+
+    public GrpcServerBuilder(TopicRouter topics) {
+        this.topics = topics;
     }
 
     public GrpcServerBuilder withPort(int port) {
@@ -15,9 +23,29 @@ public class GrpcServerBuilder {
         return this;
     }
 
+    /**
+     * Also serves the Raft RPCs of a member, whose log the server should route to.
+     */
+    public GrpcServerBuilder withRaft(RaftNode node) {
+        this.raft = node;
+        return this;
+    }
+
+    /**
+     * Reports the cluster's servers through GetServers, for clients that resolve
+     * the cluster from this server.
+     */
+    public GrpcServerBuilder withServers(ServerList servers) {
+        this.servers = servers;
+        return this;
+    }
+
     public Server build() {
-        return io.grpc.ServerBuilder.forPort(port)
-                .addService(new LogServerImpl(commitLog))
-                .build();
+        ServerBuilder<?> builder = ServerBuilder.forPort(port)
+                .addService(new LogServerImpl(topics).withServers(servers).bindZeroCopyService());
+        if (raft != null) {
+            builder.addService(new RaftServerImpl(raft));
+        }
+        return builder.build();
     }
 }
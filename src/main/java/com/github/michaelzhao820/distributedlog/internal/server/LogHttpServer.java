@@ -1,68 +1,258 @@
 package com.github.michaelzhao820.distributedlog.internal.server;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.log.Segment;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class LogHttpServer {
 
     private static final Logger logger = Logger.getLogger(LogHttpServer.class.getName());
+    private static final int DEFAULT_RANGE_RECORDS = 256;
+    private static final long DEFAULT_RANGE_BYTES = 1 << 20;
+    private static final int STREAM_BATCH_RECORDS = 256;
+    private static final long STREAM_BATCH_BYTES = 1 << 20;
+    private static final String OCTET_STREAM = "application/octet-stream";
+    // key of a raw record, base64 encoded
+    static final String KEY_HEADER = "X-Record-Key";
+    static final String OFFSET_HEADER = "X-Record-Offset";
+    static final String TIMESTAMP_HEADER = "X-Record-Timestamp";
 
-    public record ProduceRequest(Log.Record record) {}
+    public enum Codec {
+        // bind whole bodies with ObjectMapper and send responses with a known length
+        BUFFERED,
+        // parse and write JSON token by token against the exchange streams, with
+        // chunked responses, so values are decoded and encoded without extra copies
+        STREAMING
+    }
+
+    // value and key travel as base64; key, offset and timestamp are optional on produce
+    public record Record(byte[] value, byte[] key, long offset, long timestamp) {}
+    public record ProduceRequest(Record record) {}
     public record ProduceResponse(long offset) {}
+    public record ProduceBatchRequest(List<Record> records) {}
+    public record ProduceBatchResponse(long firstOffset, long lastOffset) {}
     public record ConsumeRequest(long offset) {}
-    public record ConsumeResponse(Log.Record record) {}
+    public record ConsumeResponse(Record record) {}
+    // maxRecords and maxBytes default when 0; /consume/stream has no limit then
+    public record ConsumeRangeRequest(long offset, int maxRecords, long maxBytes) {}
+    // nextOffset is where the following range starts
+    public record ConsumeRangeResponse(List<Record> records, long nextOffset) {}
     public record ErrorResponse(String error) {}
 
-    private final Log log;
+    private final CommitLog log;
     private final HttpServer server;
+    private final Codec codec;
+    // shut down by stop() when the server created it
+    private final ExecutorService ownedExecutor;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    public LogHttpServer(Log log, String host, int port) throws IOException {
+    public LogHttpServer(CommitLog log, String host, int port) throws IOException {
+        this(log, host, port, null, Codec.BUFFERED);
+    }
+
+    public LogHttpServer(CommitLog log, String host, int port, Executor executor) throws IOException {
+        this(log, host, port, executor, Codec.BUFFERED);
+    }
+
+    /**
+     * @param executor runs the exchange handlers; null uses a pool with two threads
+     *                 per core, since handlers block on appends and reads
+     */
+    public LogHttpServer(CommitLog log, String host, int port, Executor executor, Codec codec) throws IOException {
         this.log = log;
+        this.codec = codec;
         this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.ownedExecutor = executor == null ? defaultExecutor() : null;
+        server.setExecutor(executor == null ? ownedExecutor : executor);
 
-        server.createContext("/produce", exchange -> {
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                sendJsonResponse(exchange, new ErrorResponse("Method Not Allowed"), 405);
-                return;
+        server.createContext("/produce", exchange -> handle(exchange, "POST", () -> {
+            LogProto.Record record;
+            if (isRaw(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                record = readRawRecord(exchange);
+            } else if (codec == Codec.STREAMING) {
+                record = readProduceRequest(exchange.getRequestBody());
+            } else {
+                record = toProto(objectMapper.readValue(exchange.getRequestBody(), ProduceRequest.class).record());
             }
-            try {
-                var req = objectMapper.readValue(exchange.getRequestBody(), ProduceRequest.class);
-                long offset = this.log.append(req.record().value());
-                sendJsonResponse(exchange, new ProduceResponse(offset), 200);
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Bad request", e);
-                sendJsonResponse(exchange, new ErrorResponse(e.getMessage()), 400);
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Internal server error", e);
-                sendJsonResponse(exchange, new ErrorResponse(e.getMessage()), 500);
+            sendJsonResponse(exchange, new ProduceResponse(this.log.append(record)), 200);
+        }));
+
+        server.createContext("/produce/batch", exchange -> handle(exchange, "POST", () -> {
+            List<LogProto.Record> records;
+            if (isRaw(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                records = readDelimitedRecords(exchange.getRequestBody());
+            } else if (codec == Codec.STREAMING) {
+                records = readProduceBatchRequest(exchange.getRequestBody());
+            } else {
+                var req = objectMapper.readValue(exchange.getRequestBody(), ProduceBatchRequest.class);
+                records = new ArrayList<>();
+                for (Record r : req.records() == null ? List.<Record>of() : req.records()) {
+                    records.add(toProto(r));
+                }
             }
-        });
+            if (records.isEmpty()) {
+                throw new IOException("Batch is empty");
+            }
+            CommitLog.OffsetRange range = this.log.appendBatch(records);
+            sendJsonResponse(exchange, new ProduceBatchResponse(range.first(), range.last()), 200);
+        }));
 
-        server.createContext("/consume", exchange -> {
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                sendJsonResponse(exchange, new ErrorResponse("Method Not Allowed"), 405);
-                return;
+        server.createContext("/consume", exchange -> handle(exchange, "GET", () -> {
+            var req = objectMapper.readValue(exchange.getRequestBody(), ConsumeRequest.class);
+            LogProto.Record record = this.log.read(req.offset());
+            if (isRaw(exchange.getRequestHeaders().getFirst("Accept"))) {
+                sendRawRecord(exchange, record);
+            } else if (codec == Codec.STREAMING) {
+                exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, 0);
+                try (JsonGenerator gen = objectMapper.getFactory().createGenerator(exchange.getResponseBody())) {
+                    gen.writeStartObject();
+                    gen.writeFieldName("record");
+                    writeRecord(gen, record);
+                    gen.writeEndObject();
+                }
+            } else {
+                sendJsonResponse(exchange, new ConsumeResponse(fromProto(record)), 200);
             }
-            try {
-                var req = objectMapper.readValue(exchange.getRequestBody(), ConsumeRequest.class);
-                Log.Record record = this.log.read(req.offset());
-                sendJsonResponse(exchange, new ConsumeResponse(record), 200);
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Bad request", e);
-                sendJsonResponse(exchange, new ErrorResponse(e.getMessage()), 400);
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Internal server error", e);
-                sendJsonResponse(exchange, new ErrorResponse(e.getMessage()), 500);
+        }));
+
+        server.createContext("/consume/range", exchange -> handle(exchange, "GET", () -> {
+            var req = objectMapper.readValue(exchange.getRequestBody(), ConsumeRangeRequest.class);
+            int maxRecords = req.maxRecords() > 0 ? req.maxRecords() : DEFAULT_RANGE_RECORDS;
+            long maxBytes = req.maxBytes() > 0 ? req.maxBytes() : DEFAULT_RANGE_BYTES;
+            List<ByteBuffer> frames = this.log.readRaw(req.offset(), maxRecords, maxBytes);
+            List<Record> records = new ArrayList<>(frames.size());
+            for (ByteBuffer frame : frames) {
+                records.add(fromProto(LogProto.Record.parseFrom(frame)));
             }
-        });
+            long next = records.isEmpty() ? req.offset() : records.get(records.size() - 1).offset() + 1;
+            sendJsonResponse(exchange, new ConsumeRangeResponse(records, next), 200);
+        }));
+
+        server.createContext("/consume/stream", exchange -> handle(exchange, "GET",
+                () -> streamRange(exchange, objectMapper.readValue(exchange.getRequestBody(), ConsumeRangeRequest.class))));
+    }
+
+    private interface Handler {
+        void handle() throws Exception;
+    }
+
+    private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        if (!method.equalsIgnoreCase(exchange.getRequestMethod())) {
+            sendJsonResponse(exchange, new ErrorResponse("Method Not Allowed"), 405);
+            return;
+        }
+        try {
+            handler.handle();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Bad request", e);
+            sendError(exchange, e, 400);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Internal server error", e);
+            sendError(exchange, e, 500);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // a failure after a streamed response has started can only cut it short
+    private void sendError(HttpExchange exchange, Exception e, int status) {
+        if (exchange.getResponseCode() != -1) {
+            return;
+        }
+        try {
+            sendJsonResponse(exchange, new ErrorResponse(e.getMessage()), status);
+        } catch (IOException suppressed) {
+            logger.log(Level.FINE, "Failed to send error response", suppressed);
+        }
+    }
+
+    /**
+     * Streams records from the requested offset until maxRecords or maxBytes is
+     * reached, or the end of the log as it was when each batch was read. Batches
+     * are read one at a time and written straight out, so the response is never
+     * held in memory. JSON responses end with the next offset to read; raw ones
+     * are length-delimited serialized records, copied from the log unparsed.
+     */
+    private void streamRange(HttpExchange exchange, ConsumeRangeRequest req) throws Exception {
+        long remainingRecords = req.maxRecords() > 0 ? req.maxRecords() : Long.MAX_VALUE;
+        long remainingBytes = req.maxBytes() > 0 ? req.maxBytes() : Long.MAX_VALUE;
+        long offset = req.offset();
+        boolean raw = isRaw(exchange.getRequestHeaders().getFirst("Accept"));
+
+        // read the first batch before committing to a status, so a bad offset is a 400
+        List<ByteBuffer> frames = this.log.readRaw(offset, (int) Math.min(remainingRecords, STREAM_BATCH_RECORDS),
+                Math.min(remainingBytes, STREAM_BATCH_BYTES));
+        exchange.getResponseHeaders().add("Content-Type", raw ? OCTET_STREAM : "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0);
+
+        try (OutputStream os = new BufferedOutputStream(exchange.getResponseBody(), 64 << 10)) {
+            JsonGenerator gen = null;
+            CodedOutputStream cos = null;
+            WritableByteChannel channel = null;
+            if (raw) {
+                cos = CodedOutputStream.newInstance(os, 16);
+                channel = Channels.newChannel(os);
+            } else {
+                gen = objectMapper.getFactory().createGenerator(os);
+                gen.writeStartObject();
+                gen.writeArrayFieldStart("records");
+            }
+            while (!frames.isEmpty()) {
+                for (ByteBuffer frame : frames) {
+                    remainingBytes -= frame.remaining();
+                    if (raw) {
+                        cos.writeUInt32NoTag(frame.remaining());
+                        cos.flush();
+                        offset = Math.max(offset, Segment.recordOffset(frame) + 1);
+                        channel.write(frame.duplicate());
+                    } else {
+                        LogProto.Record record = LogProto.Record.parseFrom(frame);
+                        writeRecord(gen, record);
+                        offset = Math.max(offset, record.getOffset() + 1);
+                    }
+                }
+                remainingRecords -= frames.size();
+                if (remainingRecords <= 0 || remainingBytes <= 0) {
+                    break;
+                }
+                frames = this.log.readRaw(offset, (int) Math.min(remainingRecords, STREAM_BATCH_RECORDS),
+                        Math.min(remainingBytes, STREAM_BATCH_BYTES));
+            }
+            if (!raw) {
+                gen.writeEndArray();
+                gen.writeNumberField("nextOffset", offset);
+                gen.writeEndObject();
+                gen.close();
+            }
+        }
     }
 
     public void start() {
@@ -72,13 +262,177 @@ public class LogHttpServer {
 
     public void stop(int delaySeconds) {
         server.stop(delaySeconds);
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
         logger.info("Log HTTP server stopped");
     }
 
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private static ExecutorService defaultExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "log-http-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static boolean isRaw(String contentType) {
+        return contentType != null && contentType.startsWith(OCTET_STREAM);
+    }
+
+    private static LogProto.Record readRawRecord(HttpExchange exchange) throws IOException {
+        LogProto.Record.Builder b = LogProto.Record.newBuilder()
+                .setValue(UnsafeByteOperations.unsafeWrap(exchange.getRequestBody().readAllBytes()));
+        String key = exchange.getRequestHeaders().getFirst(KEY_HEADER);
+        if (key != null) {
+            b.setKey(ByteString.copyFrom(Base64.getDecoder().decode(key)));
+        }
+        return b.build();
+    }
+
+    private static List<LogProto.Record> readDelimitedRecords(InputStream in) throws IOException {
+        List<LogProto.Record> records = new ArrayList<>();
+        LogProto.Record r;
+        while ((r = LogProto.Record.parseDelimitedFrom(in)) != null) {
+            records.add(r);
+        }
+        return records;
+    }
+
+    private void sendRawRecord(HttpExchange exchange, LogProto.Record record) throws IOException {
+        var headers = exchange.getResponseHeaders();
+        headers.add("Content-Type", OCTET_STREAM);
+        headers.add(OFFSET_HEADER, Long.toString(record.getOffset()));
+        headers.add(TIMESTAMP_HEADER, Long.toString(record.getTimestamp()));
+        if (!record.getKey().isEmpty()) {
+            headers.add(KEY_HEADER, Base64.getEncoder().encodeToString(record.getKey().toByteArray()));
+        }
+        exchange.sendResponseHeaders(200, record.getValue().size());
+        try (OutputStream os = exchange.getResponseBody()) {
+            record.getValue().writeTo(os);
+        }
+    }
+
+    private LogProto.Record readProduceRequest(InputStream in) throws IOException {
+        try (JsonParser p = objectMapper.getFactory().createParser(in)) {
+            expect(p, p.nextToken(), JsonToken.START_OBJECT);
+            LogProto.Record record = null;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                p.nextToken();
+                if ("record".equals(field)) {
+                    record = readRecord(p);
+                } else {
+                    p.skipChildren();
+                }
+            }
+            if (record == null) {
+                throw new IOException("Record has no value");
+            }
+            return record;
+        }
+    }
+
+    private List<LogProto.Record> readProduceBatchRequest(InputStream in) throws IOException {
+        List<LogProto.Record> records = new ArrayList<>();
+        try (JsonParser p = objectMapper.getFactory().createParser(in)) {
+            expect(p, p.nextToken(), JsonToken.START_OBJECT);
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                JsonToken t = p.nextToken();
+                if ("records".equals(field) && t == JsonToken.START_ARRAY) {
+                    while (p.nextToken() != JsonToken.END_ARRAY) {
+                        records.add(readRecord(p));
+                    }
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+        return records;
+    }
+
+    // reads the record object the parser is positioned at; the value is decoded from
+    // base64 once and wrapped without another copy
+    private static LogProto.Record readRecord(JsonParser p) throws IOException {
+        expect(p, p.currentToken(), JsonToken.START_OBJECT);
+        LogProto.Record.Builder b = LogProto.Record.newBuilder();
+        boolean hasValue = false;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken t = p.nextToken();
+            if (t == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            if ("value".equals(field)) {
+                b.setValue(UnsafeByteOperations.unsafeWrap(p.getBinaryValue()));
+                hasValue = true;
+            } else if ("key".equals(field)) {
+                b.setKey(UnsafeByteOperations.unsafeWrap(p.getBinaryValue()));
+            } else {
+                // offset and timestamp are assigned by the log
+                p.skipChildren();
+            }
+        }
+        if (!hasValue) {
+            throw new IOException("Record has no value");
+        }
+        return b.build();
+    }
+
+    private static void writeRecord(JsonGenerator gen, LogProto.Record record) throws IOException {
+        gen.writeStartObject();
+        gen.writeFieldName("value");
+        gen.writeBinary(record.getValue().newInput(), record.getValue().size());
+        if (record.getKey().isEmpty()) {
+            gen.writeNullField("key");
+        } else {
+            gen.writeFieldName("key");
+            gen.writeBinary(record.getKey().newInput(), record.getKey().size());
+        }
+        gen.writeNumberField("offset", record.getOffset());
+        gen.writeNumberField("timestamp", record.getTimestamp());
+        gen.writeEndObject();
+    }
+
+    private static void expect(JsonParser p, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but found " + actual + " at " + p.currentLocation());
+        }
+    }
+
+    private static LogProto.Record toProto(Record r) throws IOException {
+        if (r == null || r.value() == null) {
+            throw new IOException("Record has no value");
+        }
+        LogProto.Record.Builder b = LogProto.Record.newBuilder().setValue(ByteString.copyFrom(r.value()));
+        if (r.key() != null) {
+            b.setKey(ByteString.copyFrom(r.key()));
+        }
+        return b.build();
+    }
+
+    private static Record fromProto(LogProto.Record r) {
+        return new Record(r.getValue().toByteArray(), r.getKey().isEmpty() ? null : r.getKey().toByteArray(),
+                r.getOffset(), r.getTimestamp());
+    }
+
     private void sendJsonResponse(HttpExchange exchange, Object obj, int status) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        if (codec == Codec.STREAMING) {
+            exchange.sendResponseHeaders(status, 0);
+            try (var os = exchange.getResponseBody()) {
+                objectMapper.writeValue(os, obj);
+            }
+            return;
+        }
         String json = objectMapper.writeValueAsString(obj);
         byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
-        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
         exchange.sendResponseHeaders(status, bytes.length);
         try (var os = exchange.getResponseBody()) {
             os.write(bytes);
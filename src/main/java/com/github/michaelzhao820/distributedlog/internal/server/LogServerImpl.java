@@ -3,14 +3,41 @@ package com.github.michaelzhao820.distributedlog.internal.server;
 import com.github.michaelzhao820.distributedlog.api.v1.LogGrpc;
 import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ProduceRequest;
 import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ProduceResponse;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ProduceBatchRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ProduceBatchResponse;
 import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ConsumeRequest;
 import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ConsumeResponse;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ConsumeRangeRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ConsumeRangeResponse;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.FetchRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.FetchResponse;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.GetServersRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.GetServersResponse;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.OffsetForTimestampRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.OffsetForTimestampResponse;
 import com.github.michaelzhao820.distributedlog.api.v1.LogProto.Record;
 
+import com.github.michaelzhao820.distributedlog.internal.log.CorruptRecordException;
+import com.github.michaelzhao820.distributedlog.internal.log.Segment;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 import io.grpc.Status;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,41 +47,170 @@ import java.io.IOException;
 public class LogServerImpl extends LogGrpc.LogImplBase {
 
     private static final Logger logger = Logger.getLogger(LogServerImpl.class.getName());
-    private final CommitLog commitLog;
+    private static final int RAW_BATCH_RECORDS = 256;
+    private static final long RAW_BATCH_BYTES = 1 << 20;
+    private static final int PRODUCE_STREAM_WINDOW = 256;
+    // ConsumeRange limits, kept under the 4 MiB default message size of clients
+    private static final int RANGE_MAX_RECORDS = 4096;
+    private static final long RANGE_MAX_BYTES = 1 << 20;
+    private static final MethodDescriptor<ConsumeRequest, ByteBuffer> RAW_CONSUME_STREAM_METHOD =
+            LogGrpc.getConsumeStreamMethod().toBuilder(
+                    LogGrpc.getConsumeStreamMethod().getRequestMarshaller(),
+                    new RawConsumeResponseMarshaller()
+            ).build();
+
+    private final TopicRouter topics;
+    private final Executor streamExecutor;
+    // null unless the server is part of a cluster
+    private volatile ServerList servers;
 
     public LogServerImpl(CommitLog commitLog) {
-        this.commitLog = commitLog;
+        this(TopicRouter.of(commitLog), defaultStreamExecutor());
+    }
+
+    public LogServerImpl(TopicRouter topics) {
+        this(topics, defaultStreamExecutor());
+    }
+
+    public LogServerImpl(CommitLog commitLog, Executor streamExecutor) {
+        this(TopicRouter.of(commitLog), streamExecutor);
+    }
+
+    /**
+     * @param streamExecutor runs ConsumeStream drains and ProduceStream appends; a
+     *                       bounded pool is enough since streams only occupy it
+     *                       while they have work
+     */
+    public LogServerImpl(TopicRouter topics, Executor streamExecutor) {
+        this.topics = topics;
+        this.streamExecutor = streamExecutor;
         logger.info("LogServerImpl initialized");
     }
 
+    /**
+     * Reports the cluster's servers through GetServers, which is UNIMPLEMENTED
+     * otherwise.
+     */
+    public LogServerImpl withServers(ServerList servers) {
+        this.servers = servers;
+        return this;
+    }
+
+    private static ExecutorService defaultStreamExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "log-stream-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Binds this service with ConsumeStream served from stored record bytes, which
+     * are framed straight into the response stream instead of being parsed and
+     * re-serialized. The wire format is unchanged for clients.
+     */
+    public ServerServiceDefinition bindZeroCopyService() {
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(LogGrpc.SERVICE_NAME);
+        for (ServerMethodDefinition<?, ?> method : bindService().getMethods()) {
+            if (!method.getMethodDescriptor().getFullMethodName()
+                    .equals(RAW_CONSUME_STREAM_METHOD.getFullMethodName())) {
+                builder.addMethod(method);
+            }
+        }
+        builder.addMethod(RAW_CONSUME_STREAM_METHOD, ServerCalls.asyncServerStreamingCall(this::consumeStreamRaw));
+        return builder.build();
+    }
+
     @Override
     public void produce(ProduceRequest request, StreamObserver<ProduceResponse> responseObserver) {
         logger.fine("Received produce request: " + request);
+        CompletableFuture<Long> appended;
+        int partition;
         try {
-            long offset = commitLog.append(request.getRecord());
+            String topic = topicOf(request.getTopic());
+            partition = topics.route(topic,
+                    request.hasPartition() ? request.getPartition() : TopicRouter.ANY_PARTITION,
+                    request.getRecord().getKey());
+            appended = topics.partition(topic, partition).appendAsync(request.getRecord());
+        } catch (Exception e) {
+            responseObserver.onError(produceStatus(e, "producing record").asRuntimeException());
+            return;
+        }
+        // answered from whichever thread completes the append, this one is free again
+        appended.whenComplete((offset, e) -> {
+            if (e != null) {
+                responseObserver.onError(produceStatus(e, "producing record").asRuntimeException());
+                return;
+            }
             ProduceResponse response = ProduceResponse.newBuilder()
                     .setOffset(offset)
+                    .setLastOffset(offset)
+                    .setPartition(partition)
                     .build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
             logger.fine("Produce successful, offset: " + offset);
+        });
+    }
+
+    @Override
+    public void produceBatch(ProduceBatchRequest request, StreamObserver<ProduceBatchResponse> responseObserver) {
+        logger.fine("Received produce batch request with " + request.getRecordsCount() + " records");
+        if (request.getRecordsCount() == 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Batch is empty")
+                    .asRuntimeException());
+            return;
+        }
+        CompletableFuture<CommitLog.OffsetRange> appended;
+        int partition;
+        try {
+            String topic = topicOf(request.getTopic());
+            partition = topics.route(topic,
+                    request.hasPartition() ? request.getPartition() : TopicRouter.ANY_PARTITION,
+                    request.getRecords(0).getKey());
+            appended = topics.partition(topic, partition).appendBatchAsync(request.getRecordsList());
         } catch (Exception e) {
-            logger.log(Level.SEVERE, "Error while producing record", e);
-            responseObserver.onError(e);
+            responseObserver.onError(produceStatus(e, "producing batch").asRuntimeException());
+            return;
         }
+        appended.whenComplete((range, e) -> {
+            if (e != null) {
+                responseObserver.onError(produceStatus(e, "producing batch").asRuntimeException());
+                return;
+            }
+            ProduceBatchResponse response = ProduceBatchResponse.newBuilder()
+                    .setFirstOffset(range.first())
+                    .setLastOffset(range.last())
+                    .setPartition(partition)
+                    .build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+            logger.fine("Produce batch successful, offsets: " + range.first() + "-" + range.last());
+        });
     }
 
     @Override
     public void consume(ConsumeRequest request, StreamObserver<ConsumeResponse> responseObserver) {
         logger.fine("Received consume request for offset: " + request.getOffset());
         try {
-            Record record = commitLog.read(request.getOffset());
+            Record record = topics.partition(topicOf(request.getTopic()), request.getPartition())
+                    .read(request.getOffset());
             ConsumeResponse response = ConsumeResponse.newBuilder()
                     .setRecord(record)
                     .build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
             logger.fine("Consume successful for offset: " + request.getOffset());
+        } catch (NoSuchElementException e) {
+            responseObserver.onError(routingStatus(e).asRuntimeException());
+        } catch (CorruptRecordException e) {
+            logger.log(Level.SEVERE, "Corrupt record at offset " + request.getOffset(), e);
+            responseObserver.onError(Status.DATA_LOSS
+                    .withDescription(e.getMessage())
+                    .withCause(e)
+                    .asRuntimeException());
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Error while consuming record", e);
             responseObserver.onError(Status.OUT_OF_RANGE
@@ -70,77 +226,173 @@ public class LogServerImpl extends LogGrpc.LogImplBase {
         }
     }
 
+    @Override
+    public void consumeRange(ConsumeRangeRequest request, StreamObserver<ConsumeRangeResponse> responseObserver) {
+        logger.fine("Received consume range request for offset: " + request.getOffset());
+        int maxRecords = request.getMaxRecords() == 0 ? RANGE_MAX_RECORDS :
+                Math.min(request.getMaxRecords(), RANGE_MAX_RECORDS);
+        long maxBytes = request.getMaxBytes() == 0 ? RANGE_MAX_BYTES : Math.min(request.getMaxBytes(), RANGE_MAX_BYTES);
+        try {
+            List<Record> records = topics.partition(topicOf(request.getTopic()), request.getPartition())
+                    .readRange(request.getOffset(), maxRecords, maxBytes);
+            long next = records.isEmpty() ? request.getOffset() : records.get(records.size() - 1).getOffset() + 1;
+            responseObserver.onNext(ConsumeRangeResponse.newBuilder()
+                    .addAllRecords(records)
+                    .setNextOffset(next)
+                    .build());
+            responseObserver.onCompleted();
+            logger.fine("Consume range successful, offsets: " + request.getOffset() + "-" + (next - 1));
+        } catch (NoSuchElementException e) {
+            responseObserver.onError(routingStatus(e).asRuntimeException());
+        } catch (CorruptRecordException e) {
+            logger.log(Level.SEVERE, "Corrupt record at or after offset " + request.getOffset(), e);
+            responseObserver.onError(Status.DATA_LOSS
+                    .withDescription(e.getMessage())
+                    .withCause(e)
+                    .asRuntimeException());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error while consuming range", e);
+            responseObserver.onError(Status.OUT_OF_RANGE
+                    .withDescription(e.getMessage())
+                    .withCause(e)
+                    .asRuntimeException());
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Unexpected error while consuming range", e);
+            responseObserver.onError(Status.UNKNOWN
+                    .withDescription(e.getMessage())
+                    .withCause(e)
+                    .asRuntimeException());
+        }
+    }
+
+    @Override
+    public void getServers(GetServersRequest request, StreamObserver<GetServersResponse> responseObserver) {
+        ServerList list = servers;
+        if (list == null) {
+            responseObserver.onError(Status.UNIMPLEMENTED
+                    .withDescription("Server is not part of a cluster")
+                    .asRuntimeException());
+            return;
+        }
+        responseObserver.onNext(GetServersResponse.newBuilder().addAllServers(list.servers()).build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void offsetForTimestamp(OffsetForTimestampRequest request,
+                                   StreamObserver<OffsetForTimestampResponse> responseObserver) {
+        logger.fine("Received offset lookup for timestamp: " + request.getTimestamp());
+        try {
+            long offset = topics.partition(topicOf(request.getTopic()), request.getPartition())
+                    .offsetForTimestamp(request.getTimestamp());
+            responseObserver.onNext(OffsetForTimestampResponse.newBuilder()
+                    .setOffset(offset)
+                    .build());
+            responseObserver.onCompleted();
+        } catch (NoSuchElementException e) {
+            responseObserver.onError(routingStatus(e).asRuntimeException());
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error while looking up timestamp", e);
+            responseObserver.onError(Status.INTERNAL
+                    .withDescription(e.getMessage())
+                    .withCause(e)
+                    .asRuntimeException());
+        }
+    }
+
     @Override
     public StreamObserver<ProduceRequest> produceStream(StreamObserver<ProduceResponse> responseObserver) {
         logger.info("Produce stream opened");
-        return new StreamObserver<>() {
-            @Override
-            public void onNext(ProduceRequest produceRequest) {
-                logger.fine("Streaming produce request: " + produceRequest);
-                try {
-                    long offset = commitLog.append(produceRequest.getRecord());
-                    ProduceResponse response = ProduceResponse.newBuilder()
-                            .setOffset(offset)
-                            .build();
-                    responseObserver.onNext(response);
-                    logger.fine("Streaming produce successful, offset: " + offset);
-                } catch (Exception e) {
-                    logger.log(Level.SEVERE, "Error during streaming produce", e);
-                    throw new RuntimeException(e);
-                }
-            }
-
-            @Override
-            public void onError(Throwable throwable) {
-                logger.log(Level.WARNING, "Stream encountered an error", throwable);
-            }
+        return new ProduceSession(topics, (ServerCallStreamObserver<ProduceResponse>) responseObserver,
+                streamExecutor, PRODUCE_STREAM_WINDOW).start();
+    }
 
-            @Override
-            public void onCompleted() {
-                responseObserver.onCompleted();
-                logger.info("Produce stream completed");
-            }
-        };
+    @Override
+    public StreamObserver<FetchRequest> fetch(StreamObserver<FetchResponse> responseObserver) {
+        return new FetchSession(topics, (ServerCallStreamObserver<FetchResponse>) responseObserver, streamExecutor);
     }
 
     @Override
     public void consumeStream(ConsumeRequest request, StreamObserver<ConsumeResponse> responseObserver) {
-        AtomicLong offset = new AtomicLong(request.getOffset());
         logger.info("Consume stream opened starting at offset: " + request.getOffset());
+        CommitLog commitLog = partitionOrFail(request, responseObserver);
+        if (commitLog == null) {
+            return;
+        }
+        new ConsumeSession<>(commitLog::awaitOffset, (ServerCallStreamObserver<ConsumeResponse>) responseObserver,
+                request.getOffset(), offset -> readResponses(commitLog, offset),
+                response -> response.getRecord().getOffset(), streamExecutor).start();
+    }
 
-        new Thread(() -> {
-            try {
-                while (true) {
-                    if (((io.grpc.stub.ServerCallStreamObserver<?>) responseObserver).isCancelled()) {
-                        logger.info("Consume stream cancelled by client at offset: " + offset.get());
-                        break;
-                    }
-
-                    try {
-                        Record record = commitLog.read(offset.get());
-                        if (record == null) {
-                            // offset not available yet, retry
-                            logger.fine("Offset " + offset.get() + " not available yet, retrying...");
-                            Thread.sleep(10);
-                            continue;
-                        }
-
-                        ConsumeResponse response = ConsumeResponse.newBuilder()
-                                .setRecord(record)
-                                .build();
-                        responseObserver.onNext(response);
-                        logger.fine("Streaming consume sent record at offset: " + offset.get());
-                        offset.incrementAndGet(); // increment only after successful send
-                    } catch (Exception e) {
-                        logger.log(Level.SEVERE, "Error during streaming consume at offset: " + offset.get(), e);
-                        responseObserver.onError(e);
-                        break;
-                    }
-                }
-            } finally {
-                responseObserver.onCompleted();
-                logger.info("Consume stream completed for client starting at offset: " + request.getOffset());
-            }
-        }).start();
+    private static List<ConsumeResponse> readResponses(CommitLog commitLog, long offset) throws Exception {
+        List<ByteBuffer> frames = commitLog.readRaw(offset, RAW_BATCH_RECORDS, RAW_BATCH_BYTES);
+        List<ConsumeResponse> responses = new ArrayList<>(frames.size());
+        for (ByteBuffer frame : frames) {
+            responses.add(ConsumeResponse.newBuilder()
+                    .setRecord(Record.parseFrom(frame))
+                    .build());
+        }
+        return responses;
+    }
+
+    private void consumeStreamRaw(ConsumeRequest request, StreamObserver<ByteBuffer> responseObserver) {
+        logger.info("Raw consume stream opened starting at offset: " + request.getOffset());
+        CommitLog commitLog = partitionOrFail(request, responseObserver);
+        if (commitLog == null) {
+            return;
+        }
+        new ConsumeSession<>(commitLog::awaitOffset, (ServerCallStreamObserver<ByteBuffer>) responseObserver,
+                request.getOffset(), offset -> commitLog.readRaw(offset, RAW_BATCH_RECORDS, RAW_BATCH_BYTES),
+                LogServerImpl::frameOffset, streamExecutor).start();
+    }
+
+    // the partition a consume stream reads, or null once the call has failed
+    private CommitLog partitionOrFail(ConsumeRequest request, StreamObserver<?> responseObserver) {
+        try {
+            return topics.partition(topicOf(request.getTopic()), request.getPartition());
+        } catch (NoSuchElementException e) {
+            responseObserver.onError(routingStatus(e).asRuntimeException());
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error while opening consume stream", e);
+            responseObserver.onError(Status.INTERNAL
+                    .withDescription(e.getMessage())
+                    .withCause(e)
+                    .asRuntimeException());
+        }
+        return null;
+    }
+
+    static String topicOf(String topic) {
+        return topic.isEmpty() ? TopicRouter.DEFAULT_TOPIC : topic;
+    }
+
+    // unknown topic or partition, a topic name that cannot be created, or a
+    // partition whose replica here is not the leader
+    static Status routingStatus(RuntimeException e) {
+        Status status = e instanceof NoSuchElementException ? Status.NOT_FOUND
+                : e instanceof IllegalStateException ? Status.FAILED_PRECONDITION
+                : Status.INVALID_ARGUMENT;
+        return status.withDescription(e.getMessage());
+    }
+
+    // routing failures as routingStatus, anything else from the append as INTERNAL
+    static Status produceStatus(Throwable e, String action) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof NoSuchElementException || e instanceof IllegalArgumentException ||
+                e instanceof IllegalStateException) {
+            return routingStatus((RuntimeException) e);
+        }
+        logger.log(Level.SEVERE, "Error while " + action, e);
+        return Status.INTERNAL.withDescription(e.getMessage()).withCause(e);
+    }
+
+    private static long frameOffset(ByteBuffer frame) {
+        try {
+            return Segment.recordOffset(frame);
+        } catch (IOException e) {
+            return -1;
+        }
     }
 }
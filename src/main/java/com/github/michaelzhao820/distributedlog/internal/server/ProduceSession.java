@@ -0,0 +1,199 @@
+package com.github.michaelzhao820.distributedlog.internal.server;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ProduceRequest;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ProduceResponse;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.Record;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One ProduceStream call. The transport thread only queues records; a drain on the
+ * shared executor hands whatever has queued up to appendBatchAsync as one batch and
+ * returns. The batch's completion acknowledges the whole offset range in one
+ * response and starts the next drain, so no thread waits on a write or a commit and
+ * each stream has one batch in flight. Inbound flow control is manual: the client
+ * may have at most {@code window} records in flight, and each acknowledged batch
+ * requests as many more. Requests may name different partitions; a batch ends where
+ * the partition changes, so each response covers offsets of a single partition.
+ */
+class ProduceSession implements StreamObserver<ProduceRequest> {
+
+    private static final Logger logger = Logger.getLogger(ProduceSession.class.getName());
+
+    private final TopicRouter topics;
+    private final ServerCallStreamObserver<ProduceResponse> observer;
+    private final Executor executor;
+    private final int window;
+    private final ConcurrentLinkedQueue<ProduceRequest> pending = new ConcurrentLinkedQueue<>();
+    // first request of the next batch, routed to another partition than the last one
+    private Routed carry;
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean halfClosed;
+    private volatile boolean done;
+    // set by a drain that handed a batch over, cleared once it was acknowledged
+    private volatile boolean inflight;
+
+    private record Routed(String topic, int partition, Record record) {
+        boolean samePartition(Routed other) {
+            return partition == other.partition && topic.equals(other.topic);
+        }
+    }
+
+    ProduceSession(TopicRouter topics, ServerCallStreamObserver<ProduceResponse> observer,
+                   Executor executor, int window) {
+        this.topics = topics;
+        this.observer = observer;
+        this.executor = executor;
+        this.window = window;
+    }
+
+    ProduceSession start() {
+        observer.disableAutoRequest();
+        observer.setOnCancelHandler(() -> done = true);
+        observer.request(window);
+        return this;
+    }
+
+    @Override
+    public void onNext(ProduceRequest request) {
+        if (done) {
+            return;
+        }
+        pending.add(request);
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.log(Level.WARNING, "Produce stream encountered an error", t);
+        done = true;
+        pending.clear();
+    }
+
+    @Override
+    public void onCompleted() {
+        halfClosed = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this::drainLoop);
+        }
+    }
+
+    private void drainLoop() {
+        int missed = 1;
+        do {
+            drain();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain() {
+        // the next batch waits for the acknowledgement of the one in flight
+        if (done || inflight) {
+            return;
+        }
+        List<Record> batch = new ArrayList<>();
+        Routed first = null;
+        try {
+            first = carry != null ? carry : route(pending.poll(), null);
+            carry = null;
+            if (first != null) {
+                batch.add(first.record());
+                ProduceRequest r;
+                while (batch.size() < window && (r = pending.poll()) != null) {
+                    Routed next = route(r, first);
+                    if (!next.samePartition(first)) {
+                        carry = next;
+                        break;
+                    }
+                    batch.add(next.record());
+                }
+            }
+        } catch (NoSuchElementException | IllegalArgumentException e) {
+            fail(LogServerImpl.routingStatus(e));
+            return;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error while routing streaming produce", e);
+            fail(Status.INTERNAL.withDescription(e.getMessage()).withCause(e));
+            return;
+        }
+        if (batch.isEmpty()) {
+            if (halfClosed) {
+                done = true;
+                observer.onCompleted();
+                logger.info("Produce stream completed");
+            }
+            return;
+        }
+
+        CompletableFuture<CommitLog.OffsetRange> appended;
+        try {
+            appended = topics.partition(first.topic(), first.partition()).appendBatchAsync(batch);
+        } catch (Exception e) {
+            fail(LogServerImpl.produceStatus(e, "streaming produce"));
+            return;
+        }
+        inflight = true;
+        int partition = first.partition();
+        int n = batch.size();
+        appended.whenComplete((range, e) -> acknowledge(partition, n, range, e));
+    }
+
+    // only runs while inflight is set, so drains do not emit concurrently
+    private void acknowledge(int partition, int n, CommitLog.OffsetRange range, Throwable e) {
+        if (done) {
+            return;
+        }
+        if (e != null) {
+            fail(LogServerImpl.produceStatus(e, "streaming produce"));
+            return;
+        }
+        observer.onNext(ProduceResponse.newBuilder()
+                .setOffset(range.first())
+                .setLastOffset(range.last())
+                .setPartition(partition)
+                .build());
+        logger.fine("Streaming produce acknowledged offsets: " + range.first() + "-" + range.last());
+        observer.request(n);
+        inflight = false;
+        schedule();
+    }
+
+    // unkeyed records without a partition stick to the partition of the batch they
+    // join, rather than going round-robin one by one and cutting it into singletons
+    private Routed route(ProduceRequest request, Routed batch) throws Exception {
+        if (request == null) {
+            return null;
+        }
+        String topic = LogServerImpl.topicOf(request.getTopic());
+        if (batch != null && !request.hasPartition() && request.getRecord().getKey().isEmpty()
+                && batch.topic().equals(topic)) {
+            return new Routed(topic, batch.partition(), request.getRecord());
+        }
+        int partition = topics.route(topic,
+                request.hasPartition() ? request.getPartition() : TopicRouter.ANY_PARTITION,
+                request.getRecord().getKey());
+        return new Routed(topic, partition, request.getRecord());
+    }
+
+    private void fail(Status status) {
+        done = true;
+        pending.clear();
+        carry = null;
+        observer.onError(status.asRuntimeException());
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.michaelzhao820.distributedlog.internal.server;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.*;
+import com.github.michaelzhao820.distributedlog.api.v1.RaftGrpc;
+import com.github.michaelzhao820.distributedlog.internal.raft.RaftNode;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the Raft RPCs of one {@link RaftNode}, next to the {@link LogServerImpl}
+ * that takes produce and consume requests for it. AppendEntries requests on one
+ * call are handled in the order they arrive, which pipelining relies on.
+ */
+public class RaftServerImpl extends RaftGrpc.RaftImplBase {
+
+    private static final Logger logger = Logger.getLogger(RaftServerImpl.class.getName());
+
+    private final RaftNode node;
+
+    public RaftServerImpl(RaftNode node) {
+        this.node = node;
+    }
+
+    @Override
+    public void requestVote(VoteRequest req, StreamObserver<VoteResponse> responseObserver) {
+        try {
+            responseObserver.onNext(node.handleVote(req));
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to handle vote request from " + req.getCandidateId(), e);
+            responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    @Override
+    public StreamObserver<AppendEntriesRequest> appendEntries(StreamObserver<AppendEntriesResponse> responseObserver) {
+        return new StreamObserver<>() {
+            private boolean failed;
+
+            @Override
+            public void onNext(AppendEntriesRequest req) {
+                if (failed) {
+                    return;
+                }
+                try {
+                    responseObserver.onNext(node.handleAppend(req));
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Failed to append entries from " + req.getLeaderId(), e);
+                    failed = true;
+                    responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.log(Level.FINE, "AppendEntries call closed by leader", t);
+            }
+
+            @Override
+            public void onCompleted() {
+                if (!failed) {
+                    responseObserver.onCompleted();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void getMembership(MembershipRequest req, StreamObserver<MembershipResponse> responseObserver) {
+        responseObserver.onNext(node.membership());
+        responseObserver.onCompleted();
+    }
+}
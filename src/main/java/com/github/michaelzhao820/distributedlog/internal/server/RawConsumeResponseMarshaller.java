@@ -0,0 +1,107 @@
+package com.github.michaelzhao820.distributedlog.internal.server;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ConsumeResponse;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * Marshals an encoded {@code Record}, as stored on disk, into a {@link ConsumeResponse}
+ * on the wire by prefixing the tag and length of the {@code record} field. Clients
+ * see ordinary ConsumeResponse messages.
+ */
+public class RawConsumeResponseMarshaller implements MethodDescriptor.Marshaller<ByteBuffer> {
+
+    private static final int MAX_HEADER_WIDTH = 1 + 5;
+
+    @Override
+    public InputStream stream(ByteBuffer record) {
+        byte[] header = new byte[MAX_HEADER_WIDTH];
+        CodedOutputStream cos = CodedOutputStream.newInstance(header);
+        try {
+            cos.writeTag(ConsumeResponse.RECORD_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            cos.writeUInt32NoTag(record.remaining());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new FrameStream(header, header.length - cos.spaceLeft(), record.duplicate());
+    }
+
+    @Override
+    public ByteBuffer parse(InputStream stream) {
+        try {
+            ConsumeResponse response = ConsumeResponse.parseFrom(stream);
+            return ByteBuffer.wrap(response.getRecord().toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static final class FrameStream extends InputStream implements Drainable, KnownLength {
+        private final byte[] header;
+        private final ByteBuffer body;
+        private int headerPos;
+        private final int headerLen;
+
+        FrameStream(byte[] header, int headerLen, ByteBuffer body) {
+            this.header = header;
+            this.headerLen = headerLen;
+            this.body = body;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int n = available();
+            target.write(header, headerPos, headerLen - headerPos);
+            headerPos = headerLen;
+            if (body.hasArray()) {
+                target.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+                body.position(body.limit());
+            } else {
+                Channels.newChannel(target).write(body);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return headerLen - headerPos + body.remaining();
+        }
+
+        @Override
+        public int read() {
+            if (headerPos < headerLen) {
+                return header[headerPos++] & 0xFF;
+            }
+            return body.hasRemaining() ? body.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (available() == 0) {
+                return -1;
+            }
+            int n = 0;
+            if (headerPos < headerLen) {
+                n = Math.min(len, headerLen - headerPos);
+                System.arraycopy(header, headerPos, b, off, n);
+                headerPos += n;
+            }
+            int m = Math.min(len - n, body.remaining());
+            body.get(b, off + n, m);
+            return n + m;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.michaelzhao820.distributedlog.internal.server;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.ServerInfo;
+
+import java.util.List;
+
+/**
+ * The servers of a cluster as {@code GetServers} reports them.
+ */
+public interface ServerList {
+    /**
+     * Servers that are up, this one included, with the leader flagged.
+     */
+    List<ServerInfo> servers();
+}
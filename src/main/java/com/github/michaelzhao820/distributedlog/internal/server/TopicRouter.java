@@ -0,0 +1,51 @@
+package com.github.michaelzhao820.distributedlog.internal.server;
+
+import com.google.protobuf.ByteString;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Maps a topic and partition to the {@link CommitLog} holding it. Partitions are
+ * independent logs, so appends to different partitions never contend.
+ */
+public interface TopicRouter {
+    // topic of requests that leave it empty
+    String DEFAULT_TOPIC = "default";
+    // partition argument of route() when the request does not name one
+    int ANY_PARTITION = -1;
+
+    /**
+     * Picks the partition of topic an append goes to: partition if it is set, else
+     * one chosen by the hash of key, or round-robin when key is empty. Creates the
+     * topic if it does not exist.
+     */
+    int route(String topic, int partition, ByteString key) throws Exception;
+
+    /**
+     * Returns the log of an existing partition.
+     *
+     * @throws NoSuchElementException if the topic or partition does not exist
+     */
+    CommitLog partition(String topic, int partition) throws Exception;
+
+    /**
+     * Serves a single log as partition 0 of the default topic.
+     */
+    static TopicRouter of(CommitLog log) {
+        return new TopicRouter() {
+            @Override
+            public int route(String topic, int partition, ByteString key) {
+                partition(topic, partition == ANY_PARTITION ? 0 : partition);
+                return 0;
+            }
+
+            @Override
+            public CommitLog partition(String topic, int partition) {
+                if (!DEFAULT_TOPIC.equals(topic) || partition != 0) {
+                    throw new NoSuchElementException("Unknown partition " + topic + "/" + partition);
+                }
+                return log;
+            }
+        };
+    }
+}
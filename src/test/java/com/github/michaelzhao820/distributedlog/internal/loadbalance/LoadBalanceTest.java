@@ -0,0 +1,176 @@
+package com.github.michaelzhao820.distributedlog.internal.loadbalance;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogGrpc;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.*;
+import com.github.michaelzhao820.distributedlog.internal.discovery.Membership;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Log;
+import com.github.michaelzhao820.distributedlog.internal.replication.ReplicatedLog;
+import com.github.michaelzhao820.distributedlog.internal.replication.Replicator;
+import com.github.michaelzhao820.distributedlog.internal.server.LogServerImpl;
+import com.github.michaelzhao820.distributedlog.internal.server.TopicRouter;
+import com.google.protobuf.ByteString;
+import io.grpc.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A leader and two followers, each with a static membership of the other two,
+ * and a client channel resolved from one of the followers.
+ */
+class LoadBalanceTest {
+
+    private static final int SERVERS = 3;
+
+    private final ReplicatedLog[] logs = new ReplicatedLog[SERVERS];
+    private final Server[] servers = new Server[SERVERS];
+    private final Membership[] memberships = new Membership[SERVERS];
+    private final Replicator[] replicators = new Replicator[SERVERS];
+    private final ManagedChannel[] channels = new ManagedChannel[SERVERS];
+    private final AtomicInteger[] consumes = new AtomicInteger[SERVERS];
+    private ManagedChannel client;
+
+    @BeforeEach
+    void setup() throws Exception {
+        Config config = new Config();
+        config.discovery.healthCheckIntervalMs = 50;
+        for (int i = 0; i < SERVERS; i++) {
+            int n = i;
+            consumes[i] = new AtomicInteger();
+            logs[i] = new ReplicatedLog(new Log(Files.createTempDirectory("lb-" + i).toString(), config),
+                    config.replication, i == 0);
+            servers[i] = ServerBuilder.forPort(0)
+                    .addService(ServerInterceptors.intercept(
+                            new LogServerImpl(TopicRouter.of(logs[i])).withServers(() -> memberships[n].servers())
+                                    .bindZeroCopyService(),
+                            countConsumes(consumes[i])))
+                    .build()
+                    .start();
+            channels[i] = ManagedChannelBuilder.forAddress("localhost", servers[i].getPort()).usePlaintext().build();
+        }
+        for (int i = 0; i < SERVERS; i++) {
+            Map<String, String> peers = new LinkedHashMap<>();
+            for (int j = 0; j < SERVERS; j++) {
+                if (j != i) {
+                    peers.put("server-" + j, address(j));
+                }
+            }
+            memberships[i] = new Membership("server-" + i, address(i), peers, logs[i]::isLeader,
+                    config.discovery).start();
+        }
+        for (int i = 1; i < SERVERS; i++) {
+            replicators[i] = new Replicator("server-" + i, channels[0], TopicRouter.DEFAULT_TOPIC, 0, logs[i],
+                    config.replication).start();
+        }
+        for (Membership m : memberships) {
+            await(() -> m.servers().size() == SERVERS);
+        }
+        client = Resolver.forCluster(address(2)).usePlaintext().build();
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        client.shutdownNow();
+        for (int i = 0; i < SERVERS; i++) {
+            if (replicators[i] != null) {
+                replicators[i].close();
+            }
+            memberships[i].close();
+            channels[i].shutdownNow();
+            servers[i].shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            logs[i].close();
+            logs[i].log().remove();
+        }
+    }
+
+    @Test
+    void getServersListsTheClusterWithItsLeader() {
+        GetServersResponse res = LogGrpc.newBlockingStub(channels[1]).getServers(GetServersRequest.getDefaultInstance());
+        assertEquals(SERVERS, res.getServersCount());
+        for (ServerInfo s : res.getServersList()) {
+            assertEquals(s.getId().equals("server-0"), s.getIsLeader(), s.toString());
+        }
+    }
+
+    @Test
+    void producesGoToTheLeaderAndConsumesToFollowers() throws Exception {
+        LogGrpc.LogBlockingStub stub = LogGrpc.newBlockingStub(client).withDeadlineAfter(10, TimeUnit.SECONDS);
+        // followers refuse produce requests, so these only succeed on the leader
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, stub.produce(ProduceRequest.newBuilder().setRecord(record("record-" + i)).build()).getOffset());
+        }
+        await(() -> logs[1].highWatermark() == 10 && logs[2].highWatermark() == 10);
+
+        for (int i = 0; i < 40; i++) {
+            ConsumeResponse res = stub.consume(ConsumeRequest.newBuilder().setOffset(i % 10).build());
+            assertEquals("record-" + (i % 10), res.getRecord().getValue().toStringUtf8());
+        }
+        assertEquals(0, consumes[0].get());
+        assertEquals(40, consumes[1].get() + consumes[2].get());
+        // round-robin once both followers are connected, which they are by now
+        assertTrue(consumes[1].get() >= 10 && consumes[2].get() >= 10, consumes[1] + " / " + consumes[2]);
+    }
+
+    @Test
+    void serversThatFailTheirHealthCheckAreLeftOut() throws Exception {
+        servers[1].shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        await(() -> memberships[0].servers().size() == SERVERS - 1);
+        assertTrue(memberships[0].servers().stream().noneMatch(s -> s.getId().equals("server-1")));
+    }
+
+    @Test
+    void resolvesThroughTheNextBootstrapServerWhenOneIsDown() throws Exception {
+        int closedPort;
+        try (java.net.ServerSocket socket = new java.net.ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        ManagedChannel fallback = Resolver.forCluster("localhost:" + closedPort + "," + address(1))
+                .usePlaintext().build();
+        try {
+            LogGrpc.LogBlockingStub stub = LogGrpc.newBlockingStub(fallback).withDeadlineAfter(10, TimeUnit.SECONDS);
+            assertEquals(0, stub.produce(ProduceRequest.newBuilder().setRecord(record("record")).build()).getOffset());
+        } finally {
+            fallback.shutdownNow();
+        }
+    }
+
+    private String address(int i) {
+        return "localhost:" + servers[i].getPort();
+    }
+
+    private static ServerInterceptor countConsumes(AtomicInteger count) {
+        return new ServerInterceptor() {
+            @Override
+            public <Q, R> ServerCall.Listener<Q> interceptCall(ServerCall<Q, R> call, Metadata headers,
+                                                              ServerCallHandler<Q, R> next) {
+                if (call.getMethodDescriptor().getFullMethodName().equals(LogGrpc.getConsumeMethod().getFullMethodName())) {
+                    count.incrementAndGet();
+                }
+                return next.startCall(call, headers);
+            }
+        };
+    }
+
+    private static LogProto.Record record(String value) {
+        return LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8(value)).build();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the cluster");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -70,4 +70,21 @@ public class IndexTest {
         assertEquals(entries[1].offset(), lastEntry.offset(), "Last offset should match");
         assertEquals(entries[1].pos(), lastEntry.pos(), "Last position should match");
     }
+
+    @Test
+    void testIndexFloor() throws IOException {
+        assertThrows(IOException.class, () -> idx.floor(0));
+
+        // sparse entries for every fourth record, starting at relative offset 2
+        for (int off = 2; off <= 14; off += 4) {
+            idx.write(off, off * 100L);
+        }
+
+        assertThrows(IOException.class, () -> idx.floor(1));
+        assertEquals(new Index.IndexEntry(2, 200L), idx.floor(2));
+        assertEquals(new Index.IndexEntry(2, 200L), idx.floor(5));
+        assertEquals(new Index.IndexEntry(6, 600L), idx.floor(6));
+        assertEquals(new Index.IndexEntry(10, 1000L), idx.floor(13));
+        assertEquals(new Index.IndexEntry(14, 1400L), idx.floor(1000));
+    }
 }
@@ -1,13 +1,26 @@
 package com.github.michaelzhao820.distributedlog.internal.log;
 
 import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.server.CommitLog;
 import com.google.protobuf.ByteString;
 import org.junit.jupiter.api.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -34,6 +47,185 @@ class LogTest {
         }
     }
 
+    @Test
+    void offsetForTimestamp() throws Exception {
+        LogProto.Record record = LogProto.Record.newBuilder()
+                .setValue(ByteString.copyFrom("hello world".getBytes()))
+                .setTimestamp(1)
+                .build();
+
+        // each record fills a 32 byte segment, so the lookup has to pick a segment
+        long[] times = new long[4];
+        for (int i = 0; i < times.length; i++) {
+            long offset = log.append(record);
+            times[i] = log.read(offset).getTimestamp();
+            Thread.sleep(5);
+        }
+        assertTrue(times[0] > 1, "append should replace the producer's timestamp");
+
+        assertEquals(0, log.offsetForTimestamp(0));
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(i, log.offsetForTimestamp(times[i]));
+            if (i > 0) {
+                assertEquals(i, log.offsetForTimestamp(times[i - 1] + 1));
+            }
+        }
+        assertEquals(4, log.offsetForTimestamp(times[3] + 1));
+
+        log.close();
+        log = new Log(tempDir.getAbsolutePath(), config);
+        assertEquals(2, log.offsetForTimestamp(times[2]));
+        assertTrue(log.read(log.append(record)).getTimestamp() >= times[3]);
+    }
+
+    @Test
+    void recoversTornTailAfterCrash() throws Exception {
+        LogProto.Record record = LogProto.Record.newBuilder()
+                .setValue(ByteString.copyFrom("hello world".getBytes()))
+                .build();
+        for (int i = 0; i < 5; i++) {
+            log.append(record);
+        }
+        log.sync();
+
+        // copy the files as a crash would leave them: indexes still padded, no
+        // clean shutdown marker, and the last record only partly written
+        File crashed = Files.createTempDirectory("crash-test").toFile();
+        for (File f : tempDir.listFiles()) {
+            Files.copy(f.toPath(), new File(crashed, f.getName()).toPath());
+        }
+        long activeBase = 0;
+        for (String name : crashed.list()) {
+            if (name.endsWith(".store")) {
+                activeBase = Math.max(activeBase, Long.parseLong(name.substring(0, name.indexOf('.'))));
+            }
+        }
+        File tail = new File(crashed, activeBase + ".store");
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(tail, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        Log recovered = new Log(crashed.getAbsolutePath(), config);
+        try {
+            assertEquals(3, recovered.highestOffset());
+            for (long off = 0; off < 4; off++) {
+                assertEquals(off, recovered.read(off).getOffset());
+            }
+            assertThrows(IOException.class, () -> recovered.read(4));
+            assertEquals(4, recovered.append(record));
+            assertEquals(4, recovered.read(4).getOffset());
+        } finally {
+            recovered.remove();
+        }
+    }
+
+    @Test
+    void cleanShutdownSkipsRecovery() throws IOException {
+        LogProto.Record record = LogProto.Record.newBuilder()
+                .setValue(ByteString.copyFrom("hello world".getBytes()))
+                .build();
+        for (int i = 0; i < 6; i++) {
+            log.append(record);
+        }
+        log.close();
+        File marker = new File(tempDir, Log.CLEAN_SHUTDOWN_FILE);
+        assertTrue(marker.exists());
+
+        config.segment.preloadThreads = 2;
+        log = new Log(tempDir.getAbsolutePath(), config);
+        assertFalse(marker.exists(), "marker must not survive into the next run");
+        assertEquals(0, log.lowestOffset());
+        assertEquals(5, log.highestOffset());
+        for (long off = 0; off < 6; off++) {
+            assertEquals(off, log.read(off).getOffset());
+        }
+    }
+
+    @Test
+    void scrubFindsCorruptFrames() throws IOException {
+        File dir = Files.createTempDirectory("scrub-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1024;
+        c.segment.maxIndexBytes = 5 * Index.ENT_WIDTH;
+        c.segment.checksums = true;
+        Log crcLog = new Log(dir.getAbsolutePath(), c);
+        try {
+            List<LogProto.Record> batch = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                batch.add(LogProto.Record.newBuilder()
+                        .setValue(ByteString.copyFromUtf8("record-" + i))
+                        .build());
+            }
+            crcLog.appendBatch(batch);
+            assertEquals(0, crcLog.scrub());
+
+            // corrupt the last payload byte of the first record in segment 0
+            crcLog.close();
+            try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(new File(dir, "0.store"), "rw")) {
+                raf.seek(0);
+                long len = raf.readLong() & ~Store.CRC_FLAG;
+                long at = Store.LEN_WIDTH + Store.CRC_WIDTH + len - 1;
+                raf.seek(at);
+                int b = raf.read();
+                raf.seek(at);
+                raf.write(b ^ 0xFF);
+            }
+            crcLog = new Log(dir.getAbsolutePath(), c);
+
+            assertEquals(1, crcLog.scrub());
+            Log opened = crcLog;
+            assertThrows(CorruptRecordException.class, () -> opened.read(0));
+            assertThrows(CorruptRecordException.class, () -> opened.readRaw(0, 10, Long.MAX_VALUE));
+            assertEquals(1, crcLog.read(1).getOffset());
+            assertEquals(4, crcLog.readRaw(1, 10, Long.MAX_VALUE).size());
+        } finally {
+            crcLog.remove();
+        }
+    }
+
+    @Test
+    void compressesSealedSegments() throws Exception {
+        File dir = Files.createTempDirectory("compress-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 4096;
+        c.segment.maxIndexBytes = 1024;
+        c.segment.compression = Config.Compression.DEFLATE;
+        c.segment.compressionBlockBytes = 512;
+        Log zLog = new Log(dir.getAbsolutePath(), c);
+        try {
+            List<LogProto.Record> batch = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                batch.add(LogProto.Record.newBuilder()
+                        .setValue(ByteString.copyFromUtf8("{\"user\":\"u" + (i % 7) + "\",\"event\":\"click\"}"))
+                        .build());
+            }
+            zLog.appendBatch(batch);
+
+            File first = new File(dir, "0.zstore");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (new File(dir, "0.store").exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(first.exists());
+            assertFalse(new File(dir, "0.store").exists());
+            assertTrue(first.length() < c.segment.maxStoreBytes / 2);
+
+            for (int i = 0; i < 300; i++) {
+                assertEquals(batch.get(i).getValue(), zLog.read(i).getValue());
+            }
+            List<ByteBuffer> raw = zLog.readRaw(0, 10, Long.MAX_VALUE);
+            assertEquals(10, raw.size());
+            assertEquals(3, LogProto.Record.parseFrom(raw.get(3)).getOffset());
+
+            zLog.close();
+            zLog = new Log(dir.getAbsolutePath(), c);
+            assertEquals(batch.get(0).getValue(), zLog.read(0).getValue());
+            assertEquals(299, zLog.read(299).getOffset());
+        } finally {
+            zLog.remove();
+        }
+    }
+
     @Test
     void appendAndReadRecord() throws IOException {
         LogProto.Record record = LogProto.Record.newBuilder()
@@ -47,6 +239,81 @@ class LogTest {
         assertArrayEquals(record.getValue().toByteArray(), read.getValue().toByteArray());
     }
 
+    @Test
+    void appendBatchRollsSegmentsMidBatch() throws IOException {
+        List<LogProto.Record> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(LogProto.Record.newBuilder()
+                    .setValue(ByteString.copyFromUtf8("record-" + i))
+                    .build());
+        }
+
+        CommitLog.OffsetRange range = log.appendBatch(batch);
+        assertEquals(0, range.first());
+        assertEquals(9, range.last());
+
+        for (int i = 0; i < 10; i++) {
+            LogProto.Record read = log.read(i);
+            assertEquals(i, read.getOffset());
+            assertEquals("record-" + i, read.getValue().toStringUtf8());
+        }
+        assertEquals(10, log.append(batch.get(0)));
+
+        log.close();
+        Log reopened = new Log(tempDir.getAbsolutePath(), config);
+        assertEquals(10, reopened.highestOffset());
+        reopened.close();
+    }
+
+    @Test
+    void readRawReturnsEncodedRecords() throws IOException {
+        File dir = Files.createTempDirectory("raw-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1024;
+        c.segment.readMode = Config.ReadMode.MMAP;
+        Log mapped = new Log(dir.getAbsolutePath(), c);
+        try {
+            for (int i = 0; i < 5; i++) {
+                mapped.append(LogProto.Record.newBuilder()
+                        .setValue(ByteString.copyFromUtf8("record-" + i))
+                        .build());
+            }
+
+            List<ByteBuffer> frames = mapped.readRaw(1, 3, Long.MAX_VALUE);
+            assertEquals(3, frames.size());
+            for (int i = 0; i < 3; i++) {
+                LogProto.Record read = LogProto.Record.parseFrom(frames.get(i));
+                assertEquals(i + 1, read.getOffset());
+                assertEquals("record-" + (i + 1), read.getValue().toStringUtf8());
+            }
+
+            assertEquals(1, mapped.readRaw(0, 5, 1).size(), "at least one record despite maxBytes");
+            assertTrue(mapped.readRaw(5, 5, Long.MAX_VALUE).isEmpty(), "caught up at the tail");
+            assertThrows(IOException.class, () -> mapped.readRaw(6, 5, Long.MAX_VALUE));
+        } finally {
+            mapped.remove();
+        }
+    }
+
+    @Test
+    void awaitOffsetCompletesOnAppend() throws Exception {
+        LogProto.Record record = LogProto.Record.newBuilder()
+                .setValue(ByteString.copyFrom("hello world".getBytes()))
+                .build();
+
+        CompletableFuture<Void> first = log.awaitOffset(0);
+        CompletableFuture<Void> second = log.awaitOffset(1);
+        assertFalse(first.isDone());
+
+        log.append(record);
+        first.get(1, TimeUnit.SECONDS);
+        assertFalse(second.isDone());
+        assertTrue(log.awaitOffset(0).isDone());
+
+        log.close();
+        assertThrows(ExecutionException.class, () -> second.get(1, TimeUnit.SECONDS));
+    }
+
     @Test
     void offsetOutOfRangeThrows() {
         Exception exception = assertThrows(IOException.class, () -> log.read(1));
@@ -68,6 +335,7 @@ class LogTest {
         assertEquals(0, lowest);
         assertEquals(2, highest);
 
+        log.close();
         Log newLog = new Log(tempDir.getAbsolutePath(), config);
         assertEquals(0, newLog.lowestOffset());
         assertEquals(2, newLog.highestOffset());
@@ -118,6 +386,289 @@ class LogTest {
                 | ((b[offset + 6] & 0xFFL) << 8)
                 | (b[offset + 7] & 0xFFL);
     }
+    @Test
+    void failedBatchLeavesNoRecords() throws Exception {
+        File dir = Files.createTempDirectory("failed-batch-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1024;
+        c.segment.maxIndexBytes = 4 * Index.ENT_WIDTH;
+        Log bLog = new Log(dir.getAbsolutePath(), c);
+        try {
+            bLog.append(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("before")).build());
+            List<LogProto.Record> batch = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                batch.add(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("record-" + i)).build());
+            }
+            // the segment the batch rolls into cannot be created
+            File blocked = new File(dir, "4.store");
+            assertTrue(blocked.mkdir());
+            assertThrows(IOException.class, () -> bLog.appendBatch(batch));
+            CompletableFuture<CommitLog.OffsetRange> queued = bLog.appendBatchAsync(batch);
+            assertThrows(ExecutionException.class, queued::get);
+            assertEquals(1, bLog.nextOffset());
+            assertThrows(IOException.class, () -> bLog.read(1));
+
+            assertTrue(blocked.delete());
+            assertEquals(new CommitLog.OffsetRange(1, 6), bLog.appendBatch(batch));
+            assertEquals("record-5", bLog.read(6).getValue().toStringUtf8());
+        } finally {
+            bLog.remove();
+        }
+    }
+
+    @Test
+    void retentionDeletesOldestSegments() throws Exception {
+        File dir = Files.createTempDirectory("retention-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1024;
+        c.segment.maxIndexBytes = 4 * Index.ENT_WIDTH;
+        c.retention.checkIntervalMs = 60_000;
+        Log rLog = new Log(dir.getAbsolutePath(), c);
+        try {
+            List<LogProto.Record> batch = new ArrayList<>();
+            for (int i = 0; i < 22; i++) {
+                batch.add(LogProto.Record.newBuilder()
+                        .setValue(ByteString.copyFromUtf8(String.format("record-%02d", i)))
+                        .build());
+            }
+            // five full segments of four records and an active one with two; the
+            // first is a little smaller since offset 0 is not stored
+            rLog.appendBatch(batch);
+            long segmentBytes = new File(dir, "4.store").length();
+
+            // nothing is set yet
+            assertEquals(0, rLog.enforceRetention());
+
+            c.retention.maxLogBytes = segmentBytes * 3;
+            assertEquals(2, rLog.enforceRetention());
+            assertEquals(8, rLog.lowestOffset());
+            assertFalse(new File(dir, "0.store").exists());
+            assertFalse(new File(dir, "4.index").exists());
+            assertThrows(IOException.class, () -> rLog.read(7));
+            assertEquals(8, rLog.read(8).getOffset());
+
+            c.retention.maxLogBytes = 0;
+            c.retention.maxAgeMs = 1;
+            c.retention.minSegments = 3;
+            Thread.sleep(5);
+            assertEquals(1, rLog.enforceRetention());
+            assertEquals(12, rLog.lowestOffset());
+
+            // the active segment is never deleted
+            c.retention.minSegments = 1;
+            assertEquals(2, rLog.enforceRetention());
+            assertEquals(20, rLog.lowestOffset());
+            assertEquals(22, rLog.append(batch.get(0)));
+        } finally {
+            rLog.remove();
+        }
+    }
+
+    @Test
+    void compactionKeepsNewestRecordPerKey() throws Exception {
+        File dir = Files.createTempDirectory("compaction-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1024;
+        c.segment.maxIndexBytes = 4 * Index.ENT_WIDTH;
+        Log cLog = new Log(dir.getAbsolutePath(), c);
+        try {
+            // keys k0, k1, k2 in turn; offset 5 has no key and 17 deletes k2
+            List<LogProto.Record> batch = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                LogProto.Record.Builder b = LogProto.Record.newBuilder();
+                if (i != 5) {
+                    b.setKey(ByteString.copyFromUtf8("k" + (i % 3)));
+                }
+                if (i != 17) {
+                    b.setValue(ByteString.copyFromUtf8("v" + i));
+                }
+                batch.add(b.build());
+            }
+            cLog.appendBatch(batch);
+
+            // kept: 5, the tombstone 17, and 18 and 19 for k0 and k1
+            assertEquals(16, cLog.compact());
+            assertEquals(0, cLog.compact());
+            assertEquals(4, cLog.lowestOffset());
+            assertEquals("v5", cLog.read(5).getValue().toStringUtf8());
+            assertTrue(cLog.read(17).getValue().isEmpty());
+            assertEquals("v18", cLog.read(18).getValue().toStringUtf8());
+            Log compacted = cLog;
+            assertThrows(IOException.class, () -> compacted.read(4));
+            assertThrows(IOException.class, () -> compacted.read(12));
+
+            // reads from a removed offset carry on at the next record kept
+            assertEquals(List.of(5L), offsets(cLog.readRaw(4, 10, Long.MAX_VALUE)));
+            assertEquals(List.of(17L, 18L, 19L), offsets(cLog.readRaw(6, 10, Long.MAX_VALUE)));
+            assertEquals(List.of(18L, 19L), offsets(cLog.readRaw(18, 10, Long.MAX_VALUE)));
+
+            c.compaction.tombstoneRetentionMs = 0;
+            assertEquals(1, cLog.compact());
+            assertThrows(IOException.class, () -> compacted.read(17));
+
+            cLog.close();
+            cLog = new Log(dir.getAbsolutePath(), c);
+            assertEquals("v5", cLog.read(5).getValue().toStringUtf8());
+            assertEquals(List.of(18L, 19L), offsets(cLog.readRaw(6, 10, Long.MAX_VALUE)));
+            assertEquals(20, cLog.append(batch.get(0)));
+            assertFalse(new File(dir, "16.swap").exists());
+        } finally {
+            cLog.remove();
+        }
+    }
+
+    @Test
+    void appendAsyncAssignsContiguousOffsetsInCallOrder() throws Exception {
+        int threads = 8;
+        int perThread = 200;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<List<Long>>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int n = t;
+            results.add(pool.submit(() -> {
+                List<CompletableFuture<Long>> futures = new ArrayList<>();
+                for (int i = 0; i < perThread; i++) {
+                    futures.add(log.appendAsync(LogProto.Record.newBuilder()
+                            .setValue(ByteString.copyFromUtf8(n + "-" + i)).build()));
+                }
+                List<Long> offsets = new ArrayList<>();
+                for (CompletableFuture<Long> f : futures) {
+                    offsets.add(f.get(10, TimeUnit.SECONDS));
+                }
+                return offsets;
+            }));
+        }
+        Set<Long> all = new HashSet<>();
+        for (int t = 0; t < threads; t++) {
+            List<Long> offsets = results.get(t).get();
+            for (int i = 0; i < perThread; i++) {
+                // one caller's appends keep their order
+                if (i > 0) {
+                    assertTrue(offsets.get(i) > offsets.get(i - 1));
+                }
+                assertEquals(t + "-" + i, log.read(offsets.get(i)).getValue().toStringUtf8());
+                all.add(offsets.get(i));
+            }
+        }
+        pool.shutdown();
+        assertEquals(threads * perThread, all.size());
+        assertEquals(threads * perThread, log.nextOffset());
+
+        CommitLog.OffsetRange range = log.appendBatchAsync(List.of(
+                LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("a")).build(),
+                LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("b")).build())).get();
+        assertEquals(new CommitLog.OffsetRange(threads * perThread, threads * perThread + 1), range);
+
+        log.close();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> log.appendAsync(
+                LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("late")).build()).get());
+        assertInstanceOf(IOException.class, e.getCause());
+        log.reset();
+    }
+
+    @Test
+    void readRangeCrossesSegmentsUntilALimit() throws Exception {
+        // 32 byte segments hold one record each
+        for (int i = 0; i < 10; i++) {
+            log.append(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("range-" + i)).build());
+        }
+        List<LogProto.Record> records = log.readRange(2, 5, Long.MAX_VALUE);
+        assertEquals(5, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(2 + i, records.get(i).getOffset());
+            assertEquals("range-" + (2 + i), records.get(i).getValue().toStringUtf8());
+        }
+
+        assertEquals(3, log.readRange(7, 100, Long.MAX_VALUE).size());
+        // the first record is returned even when it alone exceeds maxBytes
+        assertEquals(1, log.readRange(0, 100, 1).size());
+        assertTrue(log.readRange(10, 100, Long.MAX_VALUE).isEmpty());
+        assertThrows(IOException.class, () -> log.readRange(11, 100, Long.MAX_VALUE));
+    }
+
+    private static List<Long> offsets(List<ByteBuffer> frames) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        for (ByteBuffer frame : frames) {
+            offsets.add(LogProto.Record.parseFrom(frame).getOffset());
+        }
+        return offsets;
+    }
+
+    @Test
+    void appendReplicatedKeepsLeaderOffsets() throws Exception {
+        File dir = Files.createTempDirectory("replicated-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1024;
+        Log follower = new Log(dir.getAbsolutePath(), c);
+        try {
+            List<LogProto.Record> records = new ArrayList<>();
+            for (long off : new long[]{0, 1, 2, 7, 8}) {
+                records.add(LogProto.Record.newBuilder()
+                        .setValue(ByteString.copyFromUtf8("record-" + off))
+                        .setOffset(off)
+                        .setTimestamp(1000 + off)
+                        .build());
+            }
+            follower.appendReplicated(records.subList(0, 3));
+            // offsets 3 to 6 were compacted away on the leader
+            follower.appendReplicated(records.subList(3, 5));
+            assertEquals(9, follower.nextOffset());
+            assertEquals(1007, follower.read(7).getTimestamp());
+            Log behind = follower;
+            assertThrows(IOException.class, () -> behind.appendReplicated(records.subList(4, 5)));
+
+            follower.close();
+            follower = new Log(dir.getAbsolutePath(), c);
+            assertEquals(List.of(7L, 8L), offsets(follower.readRaw(3, 10, Long.MAX_VALUE)));
+            assertEquals("record-2", follower.read(2).getValue().toStringUtf8());
+            assertEquals(9, follower.append(records.get(0)));
+        } finally {
+            follower.remove();
+        }
+    }
+
+    @Test
+    void truncateFromDropsTheSuffix() throws Exception {
+        File dir = Files.createTempDirectory("truncate-from-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 256;
+        Log l = new Log(dir.getAbsolutePath(), c);
+        try {
+            for (int i = 0; i < 40; i++) {
+                l.append(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("old-" + i)).build());
+            }
+            // cut inside a sealed segment, then exactly at a segment boundary
+            l.truncateFrom(25);
+            assertEquals(25, l.nextOffset());
+            assertThrows(IOException.class, () -> l.read(25));
+            assertEquals(25, l.append(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("new-25")).build()));
+            assertEquals("old-24", l.read(24).getValue().toStringUtf8());
+            assertEquals("new-25", l.read(25).getValue().toStringUtf8());
+
+            long boundary = segmentBases(dir).last();
+            assertTrue(boundary > 0 && boundary <= 25);
+            l.truncateFrom(boundary);
+            assertEquals(boundary, l.nextOffset());
+            assertEquals(boundary, l.append(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("again")).build()));
+
+            l.close();
+            Log reopened = new Log(dir.getAbsolutePath(), c);
+            assertEquals(boundary + 1, reopened.nextOffset());
+            assertEquals("again", reopened.read(boundary).getValue().toStringUtf8());
+            reopened.remove();
+        } finally {
+            l.remove();
+        }
+    }
+
+    private static TreeSet<Long> segmentBases(File dir) {
+        TreeSet<Long> bases = new TreeSet<>();
+        for (File f : dir.listFiles((d, name) -> name.endsWith(".store"))) {
+            bases.add(Long.parseLong(f.getName().substring(0, f.getName().indexOf('.'))));
+        }
+        return bases;
+    }
+
     @Test
     void truncateRemovesRecordsBelowOffset() throws IOException {
         LogProto.Record record = LogProto.Record.newBuilder()
@@ -132,4 +683,58 @@ class LogTest {
 
         assertThrows(IOException.class, () -> log.read(0));
     }
+
+    @Test
+    void groupCommitWithConcurrentAppenders() throws Exception {
+        File dir = Files.createTempDirectory("sync-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1024;
+        c.segment.syncPolicy = Config.SyncPolicy.PER_RECORD;
+        Log synced = new Log(dir.getAbsolutePath(), c);
+
+        LogProto.Record record = LogProto.Record.newBuilder()
+                .setValue(ByteString.copyFrom("hello world".getBytes()))
+                .build();
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(pool.submit(() -> synced.append(record)));
+            }
+            Set<Long> offsets = new HashSet<>();
+            for (Future<Long> f : futures) {
+                offsets.add(f.get());
+            }
+            assertEquals(100, offsets.size());
+            for (long off = 0; off < 100; off++) {
+                assertEquals(off, synced.read(off).getOffset());
+            }
+        } finally {
+            pool.shutdown();
+            synced.remove();
+        }
+    }
+
+    @Test
+    void awaitSyncUnderIntervalPolicy() throws IOException {
+        File dir = Files.createTempDirectory("sync-test").toFile();
+        Config c = new Config();
+        c.segment.syncPolicy = Config.SyncPolicy.INTERVAL;
+        c.segment.syncIntervalMs = 5;
+        c.segment.awaitSync = true;
+        Log synced = new Log(dir.getAbsolutePath(), c);
+
+        LogProto.Record record = LogProto.Record.newBuilder()
+                .setValue(ByteString.copyFrom("hello world".getBytes()))
+                .build();
+        try {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(i, synced.append(record));
+            }
+            synced.sync();
+        } finally {
+            synced.remove();
+        }
+    }
 }
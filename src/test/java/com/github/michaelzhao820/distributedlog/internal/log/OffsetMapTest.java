@@ -0,0 +1,36 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffsetMapTest {
+
+    @Test
+    void keepsNewestOffsetPerKey() {
+        OffsetMap map = new OffsetMap(4);
+        long a = OffsetMap.hash(ByteString.copyFromUtf8("a"));
+        long b = OffsetMap.hash(ByteString.copyFromUtf8("b"));
+        assertNotEquals(a, b);
+
+        assertEquals(-1, map.put(a, 1));
+        assertEquals(-1, map.put(b, 2));
+        assertEquals(1, map.put(a, 3));
+        assertEquals(3, map.get(a));
+        assertEquals(2, map.get(b));
+        assertEquals(-1, map.get(OffsetMap.hash(ByteString.copyFromUtf8("c"))));
+    }
+
+    @Test
+    void growsPastInitialCapacity() {
+        OffsetMap map = new OffsetMap(4);
+        for (int i = 0; i < 10_000; i++) {
+            map.put(OffsetMap.hash(ByteString.copyFromUtf8("key-" + i)), i);
+        }
+        assertEquals(10_000, map.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, map.get(OffsetMap.hash(ByteString.copyFromUtf8("key-" + i))));
+        }
+    }
+}
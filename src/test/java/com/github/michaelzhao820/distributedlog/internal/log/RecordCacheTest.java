@@ -0,0 +1,110 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordCacheTest {
+
+    private static final LogProto.Record RECORD = LogProto.Record.newBuilder()
+            .setValue(ByteString.copyFrom(new byte[100]))
+            .build();
+
+    private RecordCache cache(Config.Eviction eviction, long maxBytes) {
+        Config.Cache c = new Config.Cache();
+        c.maxBytes = maxBytes;
+        c.eviction = eviction;
+        // ten records per segment
+        return RecordCache.create(c, off -> off - off % 10);
+    }
+
+    @Test
+    void evictsToStayWithinBudget() {
+        for (Config.Eviction eviction : Config.Eviction.values()) {
+            RecordCache cache = cache(eviction, 2000);
+            for (long off = 0; off < 100; off++) {
+                cache.put(off, RECORD);
+            }
+            RecordCache.Stats stats = cache.stats();
+            assertTrue(stats.bytes() <= 2000, eviction + " over budget: " + stats.bytes());
+            assertTrue(stats.evictions() > 0, eviction + " never evicted");
+            assertEquals(100, stats.entries() + stats.evictions(), eviction.toString());
+
+            assertNotNull(cache.get(99), eviction + " lost the newest record");
+            assertNull(cache.get(0), eviction + " kept the oldest record");
+            assertEquals(1, cache.stats().hits());
+            assertEquals(1, cache.stats().misses());
+        }
+    }
+
+    @Test
+    void lruKeepsRecentlyReadRecords() {
+        RecordCache cache = cache(Config.Eviction.LRU, 3 * 170);
+        cache.put(0, RECORD);
+        cache.put(1, RECORD);
+        cache.put(2, RECORD);
+        cache.get(0);
+        cache.put(3, RECORD);
+
+        assertNotNull(cache.get(0));
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    void clockGivesReferencedRecordsASecondChance() {
+        RecordCache cache = cache(Config.Eviction.CLOCK, 3 * 170);
+        cache.put(0, RECORD);
+        cache.put(1, RECORD);
+        cache.put(2, RECORD);
+        cache.get(0);
+        cache.put(3, RECORD);
+
+        assertNotNull(cache.get(0));
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    void invalidateBelowDropsTruncatedOffsets() {
+        for (Config.Eviction eviction : Config.Eviction.values()) {
+            RecordCache cache = cache(eviction, 1 << 20);
+            for (long off = 0; off < 30; off++) {
+                cache.put(off, RECORD);
+            }
+            cache.invalidateBelow(20);
+            assertNull(cache.get(19), eviction.toString());
+            assertNotNull(cache.get(20), eviction.toString());
+            assertEquals(10, cache.stats().entries(), eviction.toString());
+        }
+    }
+
+    @Test
+    void logWritesThroughAndInvalidatesOnTruncate() throws IOException {
+        File dir = Files.createTempDirectory("cache-test").toFile();
+        Config c = new Config();
+        c.segment.maxStoreBytes = 32;
+        c.cache.maxBytes = 1 << 20;
+        Log log = new Log(dir.getAbsolutePath(), c);
+        try {
+            for (int i = 0; i < 4; i++) {
+                log.append(RECORD);
+            }
+            assertEquals(3, log.read(3).getOffset());
+            assertEquals(1, log.cacheStats().hits());
+            assertEquals(0, log.cacheStats().misses());
+
+            log.truncate(1);
+            assertThrows(IOException.class, () -> log.read(0));
+
+            log.reset();
+            assertEquals(0, log.cacheStats().entries());
+        } finally {
+            log.remove();
+        }
+    }
+}
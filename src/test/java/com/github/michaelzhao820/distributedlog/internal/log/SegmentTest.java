@@ -56,6 +56,7 @@ class SegmentTest {
             assertEquals(16 + i, off);
 
             LogProto.Record got = s.read(off);
+            assertEquals(off, got.getOffset());
             assertArrayEquals(want.getValue().toByteArray(), got.getValue().toByteArray());
         }
 
@@ -77,4 +78,204 @@ class SegmentTest {
         Segment s3 = new Segment(tempDir.getAbsolutePath(), 16, c);
         assertFalse(s3.isMaxed(), "New segment should not be maxed");
     }
-}
\ No newline at end of file
+
+    @Test
+    void testRemovingReplacedSegmentKeepsCleanedFiles() throws IOException {
+        Config c = new Config();
+        c.segment.maxIndexBytes = 1024;
+        Segment s = new Segment(tempDir.getAbsolutePath(), 0, c);
+        for (int i = 0; i < 4; i++) {
+            s.append(LogProto.Record.newBuilder()
+                    .setValue(com.google.protobuf.ByteString.copyFromUtf8("record-" + i))
+                    .build());
+        }
+        assertEquals(2, s.writeCleaned(r -> r.getOffset() % 2 == 1));
+        Segment cleaned = s.installCleaned();
+
+        // a holder of the old segment, such as retention, removes it late
+        s.remove();
+        assertEquals("record-3", cleaned.read(3).getValue().toStringUtf8());
+        assertTrue(new File(tempDir, "0.store").exists());
+        cleaned.close();
+    }
+
+    @Test
+    void testAppendOverridesProducerOffset() throws IOException {
+        LogProto.Record sent = LogProto.Record.newBuilder()
+                .setValue(com.google.protobuf.ByteString.copyFromUtf8("hello world"))
+                .setOffset(1_000_000)
+                .setTimestamp(1)
+                .setKey(com.google.protobuf.ByteString.copyFromUtf8("key"))
+                .setTerm(3)
+                .build();
+
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1024;
+        c.segment.maxIndexBytes = 1024;
+        Segment s = new Segment(tempDir.getAbsolutePath(), 0, c);
+        s.append(sent);
+        s.append(java.util.List.of(sent, sent), 0);
+
+        java.util.List<java.nio.ByteBuffer> frames = new java.util.ArrayList<>();
+        assertEquals(3, s.readFrames(0, 3, Long.MAX_VALUE, frames));
+        for (int off = 0; off < 3; off++) {
+            LogProto.Record got = s.read(off);
+            assertEquals(off, got.getOffset());
+            assertEquals(sent.getValue(), got.getValue());
+            assertNotEquals(1, got.getTimestamp());
+            // stored bytes hold each field once, as the rebuilt record would
+            byte[] want = sent.toBuilder().setOffset(off).setTimestamp(got.getTimestamp()).build().toByteArray();
+            byte[] stored = new byte[frames.get(off).remaining()];
+            frames.get(off).duplicate().get(stored);
+            assertArrayEquals(want, stored);
+        }
+        s.close();
+    }
+
+    @Test
+    void testSparseIndex() throws IOException {
+        LogProto.Record want = LogProto.Record.newBuilder()
+                .setValue(com.google.protobuf.ByteString.copyFromUtf8("hello world"))
+                .build();
+
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1 << 20;
+        c.segment.maxIndexBytes = 1024;
+        c.segment.indexIntervalRecords = 4;
+
+        Segment s = new Segment(tempDir.getAbsolutePath(), 16, c);
+        for (int i = 0; i < 6; i++) {
+            s.append(want);
+        }
+        s.append(java.util.Collections.nCopies(5, want), 0);
+        assertEquals(27, s.getNextOffset());
+
+        for (long off = 16; off < 27; off++) {
+            assertEquals(off, s.read(off).getOffset());
+        }
+        assertThrows(EOFException.class, () -> s.read(27));
+
+        java.util.List<java.nio.ByteBuffer> frames = new java.util.ArrayList<>();
+        assertEquals(5, s.readFrames(18, 5, Long.MAX_VALUE, frames));
+        assertEquals(18, LogProto.Record.parseFrom(frames.get(0)).getOffset());
+        assertEquals(22, LogProto.Record.parseFrom(frames.get(4)).getOffset());
+
+        // a byte budget of two frames stops the scan early
+        long frameBytes = frames.get(0).remaining() + 8;
+        frames.clear();
+        assertEquals(2, s.readFrames(19, 10, frameBytes * 2 + 1, frames));
+        s.close();
+
+        // nextOffset is recovered by walking the frames after the last entry
+        Segment reopened = new Segment(tempDir.getAbsolutePath(), 16, c);
+        assertEquals(27, reopened.getNextOffset());
+        assertEquals(26, reopened.read(26).getOffset());
+        assertEquals(27, reopened.append(want));
+        reopened.close();
+
+        // 11 records at one entry per 4 is 3 entries instead of 11
+        assertEquals(Index.ENT_WIDTH * 3, new File(tempDir, "16.index").length());
+    }
+
+    @Test
+    void testSparseIndexByBytes() throws IOException {
+        LogProto.Record want = LogProto.Record.newBuilder()
+                .setValue(com.google.protobuf.ByteString.copyFrom(new byte[100]))
+                .build();
+
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1 << 20;
+        c.segment.maxIndexBytes = 1024;
+        c.segment.indexIntervalBytes = 1000;
+
+        Segment s = new Segment(tempDir.getAbsolutePath(), 0, c);
+        for (int i = 0; i < 100; i++) {
+            s.append(want);
+        }
+        for (long off = 0; off < 100; off++) {
+            assertEquals(off, s.read(off).getOffset());
+        }
+        s.close();
+        long entries = new File(tempDir, "0.index").length() / Index.ENT_WIDTH;
+        assertTrue(entries > 1 && entries < 20, "Expected one entry per ~1000 bytes, got " + entries);
+    }
+
+    @Test
+    void testOffsetForTimestamp() throws IOException {
+        LogProto.Record want = LogProto.Record.newBuilder()
+                .setValue(com.google.protobuf.ByteString.copyFromUtf8("hello world"))
+                .build();
+
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1 << 20;
+        // room for two time index entries; later timestamps are found by scanning
+        c.segment.maxIndexBytes = TimeIndex.ENT_WIDTH * 2;
+        c.segment.indexIntervalRecords = 1000;
+
+        Segment s = new Segment(tempDir.getAbsolutePath(), 0, c);
+        assertEquals(-1, s.offsetForTimestamp(0));
+        for (long ts = 100; ts <= 500; ts += 100) {
+            s.append(want, ts);
+            s.append(want, ts);
+        }
+        // a clock going backwards does not break the ordering
+        assertEquals(10, s.append(want, 50));
+        assertEquals(500, s.read(10).getTimestamp());
+
+        assertEquals(0, s.offsetForTimestamp(0));
+        assertEquals(2, s.offsetForTimestamp(101));
+        assertEquals(2, s.offsetForTimestamp(200));
+        assertEquals(6, s.offsetForTimestamp(350));
+        assertEquals(8, s.offsetForTimestamp(500));
+        assertEquals(-1, s.offsetForTimestamp(501));
+        s.close();
+
+        Segment reopened = new Segment(tempDir.getAbsolutePath(), 0, c);
+        assertEquals(500, reopened.getMaxTimestamp());
+        assertEquals(4, reopened.offsetForTimestamp(300));
+        reopened.remove();
+        assertFalse(new File(tempDir, "0.timeindex").exists());
+    }
+
+    @Test
+    void testRecoverRebuildsIndexAndTruncatesTornTail() throws IOException {
+        LogProto.Record want = LogProto.Record.newBuilder()
+                .setValue(com.google.protobuf.ByteString.copyFromUtf8("hello world"))
+                .build();
+
+        Config c = new Config();
+        c.segment.maxStoreBytes = 1024;
+        c.segment.maxIndexBytes = 1024;
+
+        Segment s = new Segment(tempDir.getAbsolutePath(), 16, c);
+        for (int i = 0; i < 6; i++) {
+            s.append(want);
+        }
+        s.sync();
+
+        // the last two index entries never reached disk and the last record is torn
+        File crashed = new File(tempDir, "crashed");
+        assertTrue(crashed.mkdir());
+        for (String suffix : new String[]{".store", ".index", ".timeindex"}) {
+            java.nio.file.Files.copy(new File(tempDir, "16" + suffix).toPath(),
+                    new File(crashed, "16" + suffix).toPath());
+        }
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(new File(crashed, "16.index"), "rw")) {
+            raf.seek(4L * Index.ENT_WIDTH);
+            raf.write(new byte[2 * Index.ENT_WIDTH]);
+        }
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(new File(crashed, "16.store"), "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+        s.close();
+
+        Segment recovered = new Segment(crashed.getAbsolutePath(), 16, c, true);
+        assertEquals(21, recovered.getNextOffset());
+        for (long off = 16; off < 21; off++) {
+            assertEquals(off, recovered.read(off).getOffset());
+        }
+        assertEquals(21, recovered.append(want));
+        assertEquals(21, recovered.read(21).getOffset());
+        recovered.close();
+    }
+}
@@ -31,6 +31,56 @@ class StoreTest {
         s.close();
     }
 
+    @Test
+    void testStoreAppendReadMapped() throws IOException {
+        File tempFile = Files.createTempFile("store_mmap_read_test", null).toFile();
+        tempFile.deleteOnExit();
+
+        Config c = new Config();
+        c.segment.readMode = Config.ReadMode.MMAP;
+        Store s = new Store(tempFile, c);
+
+        testAppend(s);
+        testRead(s);
+        testReadAt(s);
+
+        // records appended after the first mapping must still be visible
+        s.append(WRITE);
+        assertArrayEquals(WRITE, s.read(WIDTH * 3));
+        s.close();
+
+        s = new Store(tempFile, c);
+        testRead(s);
+        s.close();
+    }
+
+    @Test
+    void testStoreMappedTailReads() throws IOException {
+        File tempFile = Files.createTempFile("store_mmap_tail_test", null).toFile();
+        tempFile.deleteOnExit();
+
+        Config c = new Config();
+        c.segment.readMode = Config.ReadMode.MMAP;
+        Store s = new Store(tempFile, c);
+
+        // a reader following the appends, over more than one growth of the mapping
+        byte[] p = new byte[64 << 10];
+        long[] positions = new long[100];
+        for (int i = 0; i < positions.length; i++) {
+            p[0] = (byte) i;
+            positions[i] = s.append(p).pos();
+            assertEquals((byte) i, s.read(positions[i])[0]);
+            assertEquals((byte) i, s.slice(positions[i] + LEN_WIDTH, 1).get(0));
+        }
+        Store.Span span = s.scan(0, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(positions.length, span.frames());
+        assertEquals(s.getSize(), span.end());
+        for (int i = 0; i < positions.length; i++) {
+            assertEquals((byte) i, s.read(positions[i])[0]);
+        }
+        s.close();
+    }
+
     private void testAppend(Store s) {
         long expectedPos = 0;
         for (int i = 1; i < 4; i++) {
@@ -66,6 +116,147 @@ class StoreTest {
         }
     }
 
+    @Test
+    void testStoreAppendEncoder() throws IOException {
+        File tempFile = Files.createTempFile("store_encoder_test", null).toFile();
+        tempFile.deleteOnExit();
+
+        Store s = new Store(tempFile);
+        Store.FrameEncoder frame = new Store.FrameEncoder() {
+            @Override
+            public int encodedSize() {
+                return WRITE.length;
+            }
+
+            @Override
+            public void encode(com.google.protobuf.CodedOutputStream out) throws IOException {
+                out.writeRawBytes(WRITE);
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            assertEquals(WIDTH * i, s.append(frame));
+        }
+        testRead(s);
+        testReadAt(s);
+
+        // sealing drops the write buffer but the store stays appendable
+        s.seal();
+        assertEquals(WIDTH * 3, s.append(frame));
+        assertArrayEquals(WRITE, s.read(WIDTH * 3));
+        s.close();
+
+        s = new Store(tempFile);
+        testRead(s);
+        s.close();
+    }
+
+    @Test
+    void testStoreEncoderSizeMismatchLeavesNoFrame() throws IOException {
+        File tempFile = Files.createTempFile("store_encoder_mismatch_test", null).toFile();
+        tempFile.deleteOnExit();
+
+        Store s = new Store(tempFile);
+        for (int len : new int[]{WRITE.length, 256 << 10}) {
+            // predicts one byte more than it writes, for a frame within and beyond the write buffer
+            byte[] p = new byte[len];
+            assertThrows(RuntimeException.class, () -> s.append(new Store.FrameEncoder() {
+                @Override
+                public int encodedSize() {
+                    return p.length + 1;
+                }
+
+                @Override
+                public void encode(com.google.protobuf.CodedOutputStream out) throws IOException {
+                    out.writeRawBytes(p);
+                }
+            }));
+            assertEquals(0, s.getSize());
+        }
+        testAppend(s);
+        testRead(s);
+        s.close();
+        assertEquals(WIDTH * 3, tempFile.length());
+    }
+
+    @Test
+    void testStoreChecksums() throws IOException {
+        File tempFile = Files.createTempFile("store_crc_test", null).toFile();
+        tempFile.deleteOnExit();
+
+        // a plain frame written before checksums were turned on
+        Store plain = new Store(tempFile);
+        plain.append(WRITE);
+        plain.close();
+
+        for (Config.ReadMode mode : Config.ReadMode.values()) {
+            Config c = new Config();
+            c.segment.readMode = mode;
+            c.segment.checksums = true;
+            Store s = new Store(tempFile, c);
+            if (mode == Config.ReadMode.FILE) {
+                Store.AppendResult result = s.append(WRITE);
+                assertEquals(WIDTH + Store.CRC_WIDTH, result.n());
+            }
+            assertArrayEquals(WRITE, s.read(0));
+            assertArrayEquals(WRITE, s.read(WIDTH));
+            assertTrue(s.scrub().isEmpty());
+            s.close();
+        }
+
+        // flip one payload byte of the checksummed frame
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(tempFile, "rw")) {
+            long at = WIDTH + LEN_WIDTH + Store.CRC_WIDTH + 2;
+            raf.seek(at);
+            int b = raf.read();
+            raf.seek(at);
+            raf.write(b ^ 0x01);
+        }
+
+        Config c = new Config();
+        c.segment.checksums = true;
+        Store s = new Store(tempFile, c);
+        assertArrayEquals(WRITE, s.read(0));
+        assertThrows(CorruptRecordException.class, () -> s.read(WIDTH));
+        assertEquals(java.util.List.of(WIDTH), s.scrub());
+        s.close();
+
+        c.segment.verifyChecksums = false;
+        Store unverified = new Store(tempFile, c);
+        assertEquals(WRITE.length, unverified.read(WIDTH).length);
+        unverified.close();
+    }
+
+    @Test
+    void testStoreCompressed() throws IOException {
+        File tempFile = Files.createTempFile("store_compress_test", null).toFile();
+        tempFile.deleteOnExit();
+        File zFile = new File(tempFile.getPath() + ".z");
+        zFile.deleteOnExit();
+
+        Store plain = new Store(tempFile);
+        for (int i = 0; i < 20; i++) {
+            plain.append(WRITE);
+        }
+        for (Config.Compression codec : Config.Compression.values()) {
+            // blocks smaller than a frame, so most frames span two blocks
+            BlockFile.write(plain.inputStream(), zFile, codec, 16);
+
+            Store s = Store.compressed(zFile, new Config());
+            assertTrue(s.isCompressed());
+            assertEquals(plain.getSize(), s.getSize());
+            for (int i = 0; i < 20; i++) {
+                assertArrayEquals(WRITE, s.read(WIDTH * i));
+            }
+            testReadAt(s);
+            assertEquals(new Store.Span(20, WIDTH * 20), s.scan(0, Long.MAX_VALUE, Long.MAX_VALUE));
+            assertEquals(new Store.Span(3, WIDTH * 5), s.scan(WIDTH * 2, 3, Long.MAX_VALUE));
+            assertArrayEquals(plain.inputStream().readAllBytes(), s.inputStream().readAllBytes());
+            assertThrows(RuntimeException.class, () -> s.append(WRITE));
+            s.close();
+        }
+        plain.close();
+    }
+
     @Test
     void testStoreClose() throws IOException {
         File tempFile = Files.createTempFile("store_close_test", null).toFile();
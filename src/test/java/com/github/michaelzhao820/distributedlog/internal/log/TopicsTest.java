@@ -0,0 +1,87 @@
+package com.github.michaelzhao820.distributedlog.internal.log;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.server.TopicRouter;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TopicsTest {
+
+    private String dir;
+    private Config config;
+    private Topics topics;
+
+    @BeforeEach
+    void setup() throws Exception {
+        dir = Files.createTempDirectory("topics-test").toString();
+        config = new Config();
+        config.segment.maxStoreBytes = 1024;
+        config.segment.maxIndexBytes = 1024;
+        config.topics.defaultPartitions = 4;
+        topics = new Topics(dir, config);
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        topics.remove();
+    }
+
+    @Test
+    void routesByKeyAndRoundRobin() throws Exception {
+        ByteString key = ByteString.copyFromUtf8("user-42");
+        int keyed = topics.route("events", TopicRouter.ANY_PARTITION, key);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(keyed, topics.route("events", TopicRouter.ANY_PARTITION, key));
+        }
+        assertEquals(4, topics.get("events").partitions());
+
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            seen.add(topics.route("events", TopicRouter.ANY_PARTITION, ByteString.EMPTY));
+        }
+        assertEquals(Set.of(0, 1, 2, 3), seen);
+
+        assertEquals(2, topics.route("events", 2, key));
+        assertThrows(NoSuchElementException.class, () -> topics.route("events", 4, key));
+        assertThrows(NoSuchElementException.class, () -> topics.partition("missing", 0));
+        assertThrows(IllegalArgumentException.class, () -> topics.route("../etc", 0, key));
+    }
+
+    @Test
+    void partitionsAreIndependentLogs() throws Exception {
+        topics.create("events", 2);
+        Log p0 = topics.partition("events", 0);
+        Log p1 = topics.partition("events", 1);
+        assertEquals(0, p0.append(record("a")));
+        assertEquals(1, p0.append(record("b")));
+        assertEquals(0, p1.append(record("c")));
+        assertEquals("c", p1.read(0).getValue().toStringUtf8());
+    }
+
+    @Test
+    void reopensTopicsWithTheirPartitions() throws Exception {
+        topics.create("events", 2).partition(1).append(record("kept"));
+        topics.close();
+
+        // a larger default must not repartition a topic that already has data
+        config.topics.defaultPartitions = 8;
+        topics = new Topics(dir, config);
+        assertEquals(List.of("events"), topics.names());
+        assertEquals(2, topics.get("events").partitions());
+        assertEquals("kept", topics.partition("events", 1).read(0).getValue().toStringUtf8());
+    }
+
+    private static LogProto.Record record(String value) {
+        return LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8(value)).build();
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.michaelzhao820.distributedlog.internal.raft;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogGrpc;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.*;
+import com.github.michaelzhao820.distributedlog.api.v1.RaftGrpc;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.server.LogServerImpl;
+import com.github.michaelzhao820.distributedlog.internal.server.RaftServerImpl;
+import com.github.michaelzhao820.distributedlog.internal.server.TopicRouter;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs a three member group in one JVM, each member behind its own in-process
+ * server, and kills members by shutting their server down and closing them.
+ */
+class RaftClusterTest {
+
+    private static final int MEMBERS = 3;
+
+    private final String prefix = InProcessServerBuilder.generateName();
+    private final AtomicReferenceArray<RaftNode> nodes = new AtomicReferenceArray<>(MEMBERS);
+    private final Server[] servers = new Server[MEMBERS];
+    private final Path[] dirs = new Path[MEMBERS];
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private Config config;
+
+    @BeforeEach
+    void setup() throws Exception {
+        config = new Config();
+        config.segment.maxStoreBytes = 4096;
+        config.segment.maxIndexBytes = 4096;
+        config.raft.electionTimeoutMs = 300;
+        config.raft.heartbeatMs = 50;
+        config.raft.commitTimeoutMs = 2_000;
+        for (int i = 0; i < MEMBERS; i++) {
+            dirs[i] = Files.createTempDirectory("raft-" + i);
+            start(i);
+        }
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        for (int i = 0; i < MEMBERS; i++) {
+            if (nodes.get(i) != null) {
+                kill(i);
+            }
+        }
+        for (ManagedChannel c : channels) {
+            c.shutdownNow();
+        }
+        for (Path dir : dirs) {
+            delete(dir.toFile());
+        }
+    }
+
+    @Test
+    void membersAgreeOnOneLeader() throws Exception {
+        RaftNode leader = awaitLeader();
+        for (int i = 0; i < MEMBERS; i++) {
+            RaftNode node = nodes.get(i);
+            await(() -> leader.id().equals(node.leaderId()));
+            MembershipResponse m = RaftGrpc.newBlockingStub(channel(i)).getMembership(MembershipRequest.getDefaultInstance());
+            assertEquals(leader.id(), m.getLeaderId());
+            assertEquals(leader.term(), m.getTerm());
+            assertEquals(node == leader ? MembershipResponse.Role.LEADER : MembershipResponse.Role.FOLLOWER, m.getRole());
+            assertEquals(MEMBERS, m.getMembersCount());
+        }
+
+        int follower = (index(leader) + 1) % MEMBERS;
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> LogGrpc.newBlockingStub(channel(follower))
+                .produce(ProduceRequest.newBuilder().setRecord(record("misdirected")).build()));
+        assertEquals(Status.Code.FAILED_PRECONDITION, e.getStatus().getCode());
+    }
+
+    @Test
+    void entriesCommitOnAMajority() throws Exception {
+        RaftNode leader = awaitLeader();
+        ProduceBatchRequest.Builder batch = ProduceBatchRequest.newBuilder();
+        for (int i = 0; i < 100; i++) {
+            batch.addRecords(record("record-" + i));
+        }
+        ProduceBatchResponse res = LogGrpc.newBlockingStub(channel(index(leader))).produceBatch(batch.build());
+        long first = res.getFirstOffset();
+        assertEquals(first + 99, res.getLastOffset());
+
+        for (int i = 0; i < MEMBERS; i++) {
+            RaftNode node = nodes.get(i);
+            await(() -> node.commitEnd() == first + 100);
+            // consumers see the records alone, not the entry the leader started its term with
+            ConsumeRangeResponse range = LogGrpc.newBlockingStub(channel(i))
+                    .consumeRange(ConsumeRangeRequest.newBuilder().setMaxRecords(200).build());
+            assertEquals(100, range.getRecordsCount());
+            assertEquals(first + 100, range.getNextOffset());
+            for (int j = 0; j < 100; j++) {
+                assertEquals(leader.read(first + j), range.getRecords(j));
+                assertEquals("record-" + j, range.getRecords(j).getValue().toStringUtf8());
+            }
+        }
+
+        // one member down still leaves a majority
+        kill((index(leader) + 1) % MEMBERS);
+        assertEquals(first + 100, leader.append(record("with-two")));
+    }
+
+    @Test
+    void newLeaderCommitsEntriesOfEarlierTerms() throws Exception {
+        Path dir = Files.createTempDirectory("raft-new-term");
+        // entries a leader of term 1 sent without ever seeing them committed
+        RaftNode follower = new RaftNode("solo", dir.toString(), config, Map.of());
+        follower.handleAppend(append(1, -1, 0, entries(1, 0, 3), 0));
+        assertEquals(0, follower.commitEnd());
+        follower.close();
+
+        // alone, the member elects itself and commits them behind an entry of its own term
+        RaftNode leader = new RaftNode("solo", dir.toString(), config, Map.of()).start();
+        try {
+            await(() -> leader.commitEnd() == 4);
+            assertTrue(leader.isLeader());
+            assertEquals("term-1-2", leader.read(2).getValue().toStringUtf8());
+            assertTrue(leader.log().read(3).getElection());
+            assertEquals(leader.term(), leader.log().read(3).getTerm());
+
+            // which consumers never see
+            assertThrows(IOException.class, () -> leader.read(3));
+            assertEquals(3, leader.readRange(0, 10, Long.MAX_VALUE).size());
+            assertEquals(List.of(), leader.readRaw(3, 10, Long.MAX_VALUE));
+            assertFalse(leader.awaitOffset(3).isDone());
+            leader.append(record("after"));
+            List<java.nio.ByteBuffer> after = leader.readRaw(3, 10, Long.MAX_VALUE);
+            assertEquals(1, after.size());
+            assertEquals("after", LogProto.Record.parseFrom(after.get(0)).getValue().toStringUtf8());
+        } finally {
+            leader.close();
+            delete(dir.toFile());
+        }
+    }
+
+    @Test
+    void failoverUnderLoadKeepsAcknowledgedWrites() throws Exception {
+        awaitLeader();
+        Map<Long, String> acked = new ConcurrentHashMap<>();
+        AtomicInteger sequence = new AtomicInteger();
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        CountDownLatch stop = new CountDownLatch(1);
+        for (int p = 0; p < 4; p++) {
+            producers.execute(() -> {
+                while (stop.getCount() > 0) {
+                    RaftNode leader = currentLeader();
+                    if (leader == null) {
+                        sleep(10);
+                        continue;
+                    }
+                    String value = "value-" + sequence.getAndIncrement();
+                    try {
+                        acked.put(leader.append(record(value)), value);
+                    } catch (Exception e) {
+                        // not the leader any more, or closed under us
+                        sleep(20);
+                    }
+                }
+            });
+        }
+        try {
+            await(() -> acked.size() >= 300);
+            RaftNode old = currentLeader();
+            assertNotNull(old);
+            long oldTerm = old.term();
+            kill(index(old));
+
+            int atKill = acked.size();
+            await(() -> acked.size() >= atKill + 300);
+            RaftNode leader = currentLeader();
+            assertNotEquals(old.id(), leader.id());
+            assertTrue(leader.term() > oldTerm);
+        } finally {
+            stop.countDown();
+            producers.shutdown();
+            assertTrue(producers.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        RaftNode leader = awaitLeader();
+        long end = leader.commitEnd();
+        for (Map.Entry<Long, String> e : acked.entrySet()) {
+            assertTrue(e.getKey() < end);
+            assertEquals(e.getValue(), leader.read(e.getKey()).getValue().toStringUtf8());
+        }
+
+        // the old leader rejoins and ends up with the same log, whatever it had
+        // appended that never committed
+        int killed = -1;
+        for (int i = 0; i < MEMBERS; i++) {
+            if (nodes.get(i) == null) {
+                killed = i;
+            }
+        }
+        start(killed);
+        RaftNode rejoined = nodes.get(killed);
+        await(() -> rejoined.commitEnd() >= end);
+        for (long off = 0; off < end; off++) {
+            assertEquals(leader.log().read(off), rejoined.log().read(off));
+        }
+    }
+
+    @Test
+    void followerDropsConflictingEntries() throws Exception {
+        Path dir = Files.createTempDirectory("raft-follower");
+        RaftNode follower = new RaftNode("follower", dir.toString(), config, Map.of());
+        try {
+            AppendEntriesResponse res = follower.handleAppend(append(1, -1, 0, entries(1, 0, 5), 2));
+            assertTrue(res.getSuccess());
+            assertEquals(5, res.getMatchOffset());
+
+            // a new leader never had offsets 2 to 4 of term 1
+            res = follower.handleAppend(append(2, 1, 1, entries(2, 2, 2), 2));
+            assertTrue(res.getSuccess());
+            assertEquals(4, follower.log().nextOffset());
+            assertEquals(1, follower.log().read(1).getTerm());
+            assertEquals(2, follower.log().read(3).getTerm());
+
+            // a gap is refused with the offset to continue from
+            res = follower.handleAppend(append(2, 9, 2, List.of(), 2));
+            assertFalse(res.getSuccess());
+            assertEquals(4, res.getNextOffset());
+
+            // requests from an older term are refused outright
+            res = follower.handleAppend(append(1, 3, 2, List.of(), 4));
+            assertFalse(res.getSuccess());
+            assertEquals(2, res.getTerm());
+            assertEquals(2, follower.commitEnd());
+        } finally {
+            follower.close();
+            delete(dir.toFile());
+        }
+    }
+
+    private void start(int i) throws Exception {
+        Map<String, ManagedChannel> peers = new LinkedHashMap<>();
+        for (int j = 0; j < MEMBERS; j++) {
+            if (j != i) {
+                peers.put("node-" + j, channel(j));
+            }
+        }
+        RaftNode node = new RaftNode("node-" + i, dirs[i].toString(), config, peers);
+        servers[i] = InProcessServerBuilder.forName(prefix + i)
+                .addService(new RaftServerImpl(node))
+                .addService(new LogServerImpl(TopicRouter.of(node)).bindZeroCopyService())
+                .build()
+                .start();
+        nodes.set(i, node.start());
+    }
+
+    private void kill(int i) throws Exception {
+        servers[i].shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        nodes.getAndSet(i, null).close();
+    }
+
+    private ManagedChannel channel(int i) {
+        ManagedChannel c = InProcessChannelBuilder.forName(prefix + i).build();
+        channels.add(c);
+        return c;
+    }
+
+    private int index(RaftNode node) {
+        for (int i = 0; i < MEMBERS; i++) {
+            if (nodes.get(i) == node) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(node.id() + " is not running");
+    }
+
+    private RaftNode currentLeader() {
+        for (int i = 0; i < MEMBERS; i++) {
+            RaftNode node = nodes.get(i);
+            if (node != null && node.isLeader()) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private RaftNode awaitLeader() throws InterruptedException {
+        await(() -> currentLeader() != null);
+        return currentLeader();
+    }
+
+    private static AppendEntriesRequest append(long term, long prev, long prevTerm, List<LogProto.Record> entries,
+                                               long commit) {
+        return AppendEntriesRequest.newBuilder()
+                .setTerm(term)
+                .setLeaderId("leader")
+                .setPrevLogOffset(prev)
+                .setPrevLogTerm(prevTerm)
+                .addAllEntries(entries)
+                .setCommitOffset(commit)
+                .build();
+    }
+
+    private static List<LogProto.Record> entries(long term, long from, int n) {
+        List<LogProto.Record> entries = new ArrayList<>();
+        for (long off = from; off < from + n; off++) {
+            entries.add(record("term-" + term + "-" + off).toBuilder().setOffset(off).setTerm(term).build());
+        }
+        return entries;
+    }
+
+    private static LogProto.Record record(String value) {
+        return LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8(value)).build();
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the group");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,213 @@
+package com.github.michaelzhao820.distributedlog.internal.replication;
+
+import com.github.michaelzhao820.distributedlog.api.v1.LogGrpc;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto.*;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Log;
+import com.github.michaelzhao820.distributedlog.internal.server.LogServerImpl;
+import com.github.michaelzhao820.distributedlog.internal.server.TopicRouter;
+import com.google.protobuf.ByteString;
+import io.grpc.*;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationTest {
+
+    private static final int REPLICAS = 3;
+    // stream threads per server, fewer than the produce streams of the stream test
+    private static final int STREAM_THREADS = 2;
+
+    private final List<ReplicatedLog> logs = new ArrayList<>();
+    private final List<Server> servers = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<LogGrpc.LogBlockingStub> stubs = new ArrayList<>();
+    private final Replicator[] replicators = new Replicator[REPLICAS];
+    private final List<ExecutorService> streamPools = new ArrayList<>();
+    private Config config;
+
+    @BeforeEach
+    void setup() throws Exception {
+        config = new Config();
+        config.segment.maxStoreBytes = 1024;
+        config.segment.maxIndexBytes = 1024;
+        config.replication.acks = 2;
+        config.replication.ackTimeoutMs = 1_000;
+        config.replication.retryBackoffMs = 50;
+
+        for (int i = 0; i < REPLICAS; i++) {
+            Log log = new Log(Files.createTempDirectory("replica-" + i).toString(), config);
+            ReplicatedLog replica = new ReplicatedLog(log, config.replication, i == 0);
+            ExecutorService streamPool = Executors.newFixedThreadPool(STREAM_THREADS);
+            streamPools.add(streamPool);
+            Server server = ServerBuilder.forPort(0)
+                    .addService(new LogServerImpl(TopicRouter.of(replica), streamPool).bindZeroCopyService())
+                    .build()
+                    .start();
+            ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                    .usePlaintext()
+                    .build();
+            logs.add(replica);
+            servers.add(server);
+            channels.add(channel);
+            stubs.add(LogGrpc.newBlockingStub(channel).withDeadlineAfter(10, TimeUnit.SECONDS));
+        }
+        for (int i = 1; i < REPLICAS; i++) {
+            startFollower(i);
+        }
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        for (Replicator r : replicators) {
+            if (r != null) {
+                r.close();
+            }
+        }
+        for (ManagedChannel c : channels) {
+            c.shutdownNow();
+        }
+        for (Server s : servers) {
+            s.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        for (ReplicatedLog l : logs) {
+            l.close();
+            l.log().remove();
+        }
+        for (ExecutorService pool : streamPools) {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void produceStreamsDoNotHoldStreamThreadsWhileWaitingForCommit() throws Exception {
+        // each stream waits for followers whose fetches run on the same stream threads
+        int streams = STREAM_THREADS * 3;
+        int perStream = 50;
+        LogGrpc.LogStub stub = LogGrpc.newStub(channels.get(0)).withDeadlineAfter(10, TimeUnit.SECONDS);
+        CountDownLatch done = new CountDownLatch(streams);
+        AtomicInteger acked = new AtomicInteger();
+        List<Throwable> errors = new java.util.concurrent.CopyOnWriteArrayList<>();
+        for (int s = 0; s < streams; s++) {
+            StreamObserver<ProduceRequest> requests = stub.produceStream(new StreamObserver<>() {
+                @Override
+                public void onNext(ProduceResponse res) {
+                    acked.addAndGet((int) (res.getLastOffset() - res.getOffset() + 1));
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    errors.add(t);
+                    done.countDown();
+                }
+
+                @Override
+                public void onCompleted() {
+                    done.countDown();
+                }
+            });
+            for (int i = 0; i < perStream; i++) {
+                requests.onNext(ProduceRequest.newBuilder().setRecord(record("stream-" + s + "-" + i)).build());
+            }
+            requests.onCompleted();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of(), errors);
+        assertEquals(streams * perStream, acked.get());
+        assertTrue(logs.get(0).highWatermark() >= streams * perStream);
+    }
+
+    @Test
+    void followersCopyRecordsWithLeaderOffsets() throws Exception {
+        ProduceBatchRequest.Builder batch = ProduceBatchRequest.newBuilder();
+        for (int i = 0; i < 50; i++) {
+            batch.addRecords(record("record-" + i));
+        }
+        ProduceBatchResponse res = stubs.get(0).produceBatch(batch.build());
+        assertEquals(49, res.getLastOffset());
+        // acks = 2, so at least one follower has every record once the produce returns
+        assertTrue(logs.get(1).nextOffset() == 50 || logs.get(2).nextOffset() == 50);
+        assertEquals(50, logs.get(0).highWatermark());
+
+        for (int i = 1; i < REPLICAS; i++) {
+            ReplicatedLog follower = logs.get(i);
+            await(() -> follower.highWatermark() == 50);
+            for (long off = 0; off < 50; off++) {
+                LogProto.Record leader = logs.get(0).read(off);
+                ConsumeResponse copy = stubs.get(i).consume(ConsumeRequest.newBuilder().setOffset(off).build());
+                assertEquals(leader, copy.getRecord());
+            }
+        }
+    }
+
+    @Test
+    void readsStopAtTheHighWatermark() throws Exception {
+        replicators[1].close();
+        replicators[2].close();
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class,
+                () -> stubs.get(0).produce(ProduceRequest.newBuilder().setRecord(record("pending")).build()));
+        assertTrue(e.getStatus().getDescription().contains("did not reach 2 replicas"), e.getMessage());
+
+        // the record is in the leader's log but not committed, so consumers cannot see it
+        assertEquals(1, logs.get(0).nextOffset());
+        assertEquals(0, logs.get(0).highWatermark());
+        assertThrows(StatusRuntimeException.class,
+                () -> stubs.get(0).consume(ConsumeRequest.newBuilder().setOffset(0).build()));
+
+        startFollower(1);
+        await(() -> logs.get(0).highWatermark() == 1);
+        assertEquals("pending", stubs.get(0).consume(ConsumeRequest.newBuilder().setOffset(0).build())
+                .getRecord().getValue().toStringUtf8());
+    }
+
+    @Test
+    void followerCatchesUpAfterReconnecting() throws Exception {
+        replicators[2].close();
+        for (int i = 0; i < 30; i++) {
+            stubs.get(0).produce(ProduceRequest.newBuilder().setRecord(record("record-" + i)).build());
+        }
+        assertEquals(0, logs.get(2).nextOffset());
+
+        startFollower(2);
+        await(() -> logs.get(2).nextOffset() == 30);
+        assertEquals("record-29", logs.get(2).log().read(29).getValue().toStringUtf8());
+    }
+
+    @Test
+    void followersRejectProduce() {
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class,
+                () -> stubs.get(1).produce(ProduceRequest.newBuilder().setRecord(record("misdirected")).build()));
+        assertEquals(Status.Code.FAILED_PRECONDITION, e.getStatus().getCode());
+    }
+
+    private void startFollower(int i) {
+        replicators[i] = new Replicator("replica-" + i, channels.get(0), TopicRouter.DEFAULT_TOPIC, 0,
+                logs.get(i), config.replication).start();
+    }
+
+    private static LogProto.Record record(String value) {
+        return LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8(value)).build();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for replicas");
+            Thread.sleep(10);
+        }
+    }
+}
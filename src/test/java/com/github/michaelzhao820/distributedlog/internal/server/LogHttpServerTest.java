@@ -0,0 +1,218 @@
+package com.github.michaelzhao820.distributedlog.internal.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
+import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Log;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogHttpServerTest {
+
+    private Log commitLog;
+    private LogHttpServer server;
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @BeforeEach
+    void setup() throws Exception {
+        Config config = new Config();
+        config.segment.maxStoreBytes = 1024;
+        config.segment.maxIndexBytes = 1024;
+        commitLog = new Log(Files.createTempDirectory("http-test").toString(), config);
+        server = new LogHttpServer(commitLog, "localhost", 0);
+        server.start();
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        server.stop(0);
+        commitLog.remove();
+    }
+
+    @Test
+    void produceAndConsume() throws Exception {
+        var produced = call("POST", "/produce",
+                new LogHttpServer.ProduceRequest(record("hello")), LogHttpServer.ProduceResponse.class);
+        assertEquals(0, produced.offset());
+
+        var consumed = call("GET", "/consume",
+                new LogHttpServer.ConsumeRequest(0), LogHttpServer.ConsumeResponse.class);
+        assertEquals("hello", new String(consumed.record().value(), StandardCharsets.UTF_8));
+        assertEquals(0, consumed.record().offset());
+
+        HttpResponse<String> missing = send("GET", "/consume", new LogHttpServer.ConsumeRequest(5));
+        assertEquals(400, missing.statusCode());
+        HttpResponse<String> wrongMethod = send("GET", "/produce", new LogHttpServer.ConsumeRequest(0));
+        assertEquals(405, wrongMethod.statusCode());
+    }
+
+    @Test
+    void produceBatchAndConsumeRange() throws Exception {
+        List<LogHttpServer.Record> records = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            records.add(record("record-" + i));
+        }
+        var batch = call("POST", "/produce/batch",
+                new LogHttpServer.ProduceBatchRequest(records), LogHttpServer.ProduceBatchResponse.class);
+        assertEquals(0, batch.firstOffset());
+        assertEquals(49, batch.lastOffset());
+
+        // ranges stop at segment boundaries, so page through with nextOffset
+        List<String> values = new ArrayList<>();
+        long next = 0;
+        while (next < 50) {
+            var range = call("GET", "/consume/range",
+                    new LogHttpServer.ConsumeRangeRequest(next, 20, 0), LogHttpServer.ConsumeRangeResponse.class);
+            assertFalse(range.records().isEmpty());
+            assertTrue(range.records().size() <= 20);
+            for (LogHttpServer.Record r : range.records()) {
+                values.add(new String(r.value(), StandardCharsets.UTF_8));
+            }
+            next = range.nextOffset();
+        }
+        assertEquals(50, values.size());
+        assertEquals("record-49", values.get(49));
+
+        var tail = call("GET", "/consume/range",
+                new LogHttpServer.ConsumeRangeRequest(50, 0, 0), LogHttpServer.ConsumeRangeResponse.class);
+        assertTrue(tail.records().isEmpty());
+        assertEquals(50, tail.nextOffset());
+    }
+
+    @Test
+    void streamingCodecMatchesBuffered() throws Exception {
+        restart(LogHttpServer.Codec.STREAMING);
+        var produced = call("POST", "/produce", new LogHttpServer.ProduceRequest(
+                new LogHttpServer.Record("hello".getBytes(StandardCharsets.UTF_8), "k".getBytes(StandardCharsets.UTF_8), 0, 0)),
+                LogHttpServer.ProduceResponse.class);
+        assertEquals(0, produced.offset());
+        var batch = call("POST", "/produce/batch",
+                new LogHttpServer.ProduceBatchRequest(List.of(record("a"), record("b"))), LogHttpServer.ProduceBatchResponse.class);
+        assertEquals(1, batch.firstOffset());
+        assertEquals(2, batch.lastOffset());
+
+        var consumed = call("GET", "/consume",
+                new LogHttpServer.ConsumeRequest(0), LogHttpServer.ConsumeResponse.class);
+        assertEquals("hello", new String(consumed.record().value(), StandardCharsets.UTF_8));
+        assertEquals("k", new String(consumed.record().key(), StandardCharsets.UTF_8));
+        assertTrue(consumed.record().timestamp() > 0);
+
+        assertEquals(400, send("POST", "/produce", new LogHttpServer.ProduceRequest(null)).statusCode());
+        assertEquals(400, send("GET", "/consume", new LogHttpServer.ConsumeRequest(5)).statusCode());
+    }
+
+    @Test
+    void streamConsumesAcrossSegments() throws Exception {
+        restart(LogHttpServer.Codec.STREAMING);
+        List<LogHttpServer.Record> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            records.add(record("record-" + i));
+        }
+        call("POST", "/produce/batch", new LogHttpServer.ProduceBatchRequest(records), LogHttpServer.ProduceBatchResponse.class);
+
+        // unlike /consume/range, one response covers every segment
+        var all = call("GET", "/consume/stream",
+                new LogHttpServer.ConsumeRangeRequest(0, 0, 0), LogHttpServer.ConsumeRangeResponse.class);
+        assertEquals(100, all.records().size());
+        assertEquals("record-99", new String(all.records().get(99).value(), StandardCharsets.UTF_8));
+        assertEquals(100, all.nextOffset());
+
+        var some = call("GET", "/consume/stream",
+                new LogHttpServer.ConsumeRangeRequest(10, 30, 0), LogHttpServer.ConsumeRangeResponse.class);
+        assertEquals(30, some.records().size());
+        assertEquals(10, some.records().get(0).offset());
+        assertEquals(40, some.nextOffset());
+
+        assertEquals(400, send("GET", "/consume/stream", new LogHttpServer.ConsumeRangeRequest(500, 0, 0)).statusCode());
+    }
+
+    @Test
+    void rawBytes() throws Exception {
+        byte[] value = new byte[4096];
+        new java.util.Random(1).nextBytes(value);
+        HttpResponse<String> produced = client.send(HttpRequest.newBuilder(uri("/produce"))
+                .header("Content-Type", "application/octet-stream")
+                .header(LogHttpServer.KEY_HEADER, Base64.getEncoder().encodeToString("k".getBytes(StandardCharsets.UTF_8)))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(value))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, produced.statusCode(), produced.body());
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (int i = 1; i <= 3; i++) {
+            LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("raw-" + i)).build().writeDelimitedTo(batch);
+        }
+        HttpResponse<String> batched = client.send(HttpRequest.newBuilder(uri("/produce/batch"))
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(batch.toByteArray()))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(3, mapper.readValue(batched.body(), LogHttpServer.ProduceBatchResponse.class).lastOffset());
+
+        HttpResponse<byte[]> consumed = client.send(HttpRequest.newBuilder(uri("/consume"))
+                .header("Accept", "application/octet-stream")
+                .method("GET", HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(new LogHttpServer.ConsumeRequest(0))))
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, consumed.statusCode());
+        assertArrayEquals(value, consumed.body());
+        assertEquals("0", consumed.headers().firstValue(LogHttpServer.OFFSET_HEADER).orElseThrow());
+        assertEquals("k", new String(Base64.getDecoder().decode(
+                consumed.headers().firstValue(LogHttpServer.KEY_HEADER).orElseThrow()), StandardCharsets.UTF_8));
+
+        HttpResponse<InputStream> streamed = client.send(HttpRequest.newBuilder(uri("/consume/stream"))
+                .header("Accept", "application/octet-stream")
+                .method("GET", HttpRequest.BodyPublishers.ofString(
+                        mapper.writeValueAsString(new LogHttpServer.ConsumeRangeRequest(1, 0, 0))))
+                .build(), HttpResponse.BodyHandlers.ofInputStream());
+        List<LogProto.Record> records = new ArrayList<>();
+        try (InputStream in = streamed.body()) {
+            LogProto.Record r;
+            while ((r = LogProto.Record.parseDelimitedFrom(in)) != null) {
+                records.add(r);
+            }
+        }
+        assertEquals(3, records.size());
+        assertEquals("raw-3", records.get(2).getValue().toStringUtf8());
+        assertEquals(3, records.get(2).getOffset());
+    }
+
+    private void restart(LogHttpServer.Codec codec) throws Exception {
+        server.stop(0);
+        server = new LogHttpServer(commitLog, "localhost", 0, null, codec);
+        server.start();
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.port() + path);
+    }
+
+    private static LogHttpServer.Record record(String value) {
+        return new LogHttpServer.Record(value.getBytes(StandardCharsets.UTF_8), null, 0, 0);
+    }
+
+    private <T> T call(String method, String path, Object body, Class<T> type) throws Exception {
+        HttpResponse<String> response = send(method, path, body);
+        assertEquals(200, response.statusCode(), response.body());
+        return mapper.readValue(response.body(), type);
+    }
+
+    private HttpResponse<String> send(String method, String path, Object body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri(path))
+                .method(method, HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
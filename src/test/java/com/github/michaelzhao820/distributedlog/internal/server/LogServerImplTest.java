@@ -5,6 +5,7 @@ import com.github.michaelzhao820.distributedlog.api.v1.LogProto;
 import com.github.michaelzhao820.distributedlog.api.v1.LogProto.*;
 import com.github.michaelzhao820.distributedlog.internal.log.Log;
 import com.github.michaelzhao820.distributedlog.internal.log.Config;
+import com.github.michaelzhao820.distributedlog.internal.log.Topics;
 import com.google.protobuf.ByteString;
 import io.grpc.*;
 import io.grpc.inprocess.InProcessChannelBuilder;
@@ -30,6 +31,9 @@ class LogServerImplTest {
     private LogGrpc.LogBlockingStub blockingStub;
     private LogGrpc.LogStub asyncStub;
     private Path tempDir;
+    private Log commitLog;
+    private Server extraServer;
+    private ManagedChannel extraChannel;
 
     @BeforeEach
     void setup() throws IOException {
@@ -40,7 +44,7 @@ class LogServerImplTest {
 
         // Create a temporary directory for the log
         tempDir = Files.createTempDirectory("server-test");
-        Log commitLog = new Log(tempDir.toString(), config);
+        commitLog = new Log(tempDir.toString(), config);
 
         String serverName = InProcessServerBuilder.generateName();
         server = InProcessServerBuilder.forName(serverName)
@@ -61,6 +65,8 @@ class LogServerImplTest {
     void teardown() throws IOException {
         if (channel != null) channel.shutdownNow();
         if (server != null) server.shutdownNow();
+        if (extraChannel != null) extraChannel.shutdownNow();
+        if (extraServer != null) extraServer.shutdownNow();
 
         // Delete the temporary directory
         if (tempDir != null) {
@@ -88,6 +94,84 @@ class LogServerImplTest {
         assertEquals(produceRes.getOffset(), consumeRes.getRecord().getOffset());
     }
 
+    @Test
+    void testProduceBatch() {
+        ProduceBatchRequest.Builder req = ProduceBatchRequest.newBuilder();
+        for (int i = 0; i < 5; i++) {
+            req.addRecords(LogProto.Record.newBuilder()
+                    .setValue(ByteString.copyFromUtf8("batch-" + i))
+                    .build());
+        }
+
+        ProduceBatchResponse res = blockingStub.produceBatch(req.build());
+        assertEquals(0, res.getFirstOffset());
+        assertEquals(4, res.getLastOffset());
+
+        for (int i = 0; i < 5; i++) {
+            ConsumeResponse consumeRes = blockingStub.consume(
+                    ConsumeRequest.newBuilder().setOffset(i).build()
+            );
+            assertEquals("batch-" + i, consumeRes.getRecord().getValue().toStringUtf8());
+        }
+    }
+
+    @Test
+    void testConsumeRange() {
+        // 1 KiB segments, so the range spans several of them
+        ProduceBatchRequest.Builder req = ProduceBatchRequest.newBuilder();
+        for (int i = 0; i < 100; i++) {
+            req.addRecords(LogProto.Record.newBuilder()
+                    .setValue(ByteString.copyFromUtf8("range-" + i))
+                    .build());
+        }
+        blockingStub.produceBatch(req.build());
+
+        List<String> values = new ArrayList<>();
+        long offset = 30;
+        while (true) {
+            ConsumeRangeResponse res = blockingStub.consumeRange(
+                    ConsumeRangeRequest.newBuilder().setOffset(offset).setMaxRecords(25).build());
+            if (res.getRecordsCount() == 0) {
+                assertEquals(offset, res.getNextOffset());
+                break;
+            }
+            assertTrue(res.getRecordsCount() <= 25);
+            for (LogProto.Record r : res.getRecordsList()) {
+                assertEquals(30 + values.size(), r.getOffset());
+                values.add(r.getValue().toStringUtf8());
+            }
+            offset = res.getNextOffset();
+        }
+        assertEquals(70, values.size());
+        for (int i = 0; i < 70; i++) {
+            assertEquals("range-" + (30 + i), values.get(i));
+        }
+
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> blockingStub.consumeRange(
+                ConsumeRangeRequest.newBuilder().setOffset(101).build()));
+        assertEquals(Status.Code.OUT_OF_RANGE, e.getStatus().getCode());
+    }
+
+    @Test
+    void testOffsetForTimestamp() {
+        long before = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            blockingStub.produce(ProduceRequest.newBuilder()
+                    .setRecord(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("r" + i)))
+                    .build());
+        }
+
+        long first = blockingStub.offsetForTimestamp(OffsetForTimestampRequest.newBuilder()
+                .setTimestamp(before)
+                .build()).getOffset();
+        assertEquals(0, first);
+
+        long end = blockingStub.offsetForTimestamp(OffsetForTimestampRequest.newBuilder()
+                .setTimestamp(System.currentTimeMillis() + 60_000)
+                .build()).getOffset();
+        assertEquals(3, end);
+    }
+
     @Test
     void testConsumePastBoundary() {
         LogProto.Record record = LogProto.Record.newBuilder()
@@ -111,14 +195,17 @@ class LogServerImplTest {
     @Test
     void testProduceConsumeStream() throws Exception {
         CountDownLatch produceLatch = new CountDownLatch(2);
-        List<ProduceResponse> produceResponses = new ArrayList<>();
+        List<Long> acked = new ArrayList<>();
 
         StreamObserver<ProduceRequest> produceReqObs =
                 asyncStub.produceStream(new StreamObserver<>() {
                     @Override
                     public void onNext(ProduceResponse value) {
-                        produceResponses.add(value);
-                        produceLatch.countDown();
+                        // acks may cover several records
+                        for (long o = value.getOffset(); o <= value.getLastOffset(); o++) {
+                            acked.add(o);
+                            produceLatch.countDown();
+                        }
                     }
                     @Override public void onError(Throwable t) { fail(t); }
                     @Override public void onCompleted() {}
@@ -132,8 +219,7 @@ class LogServerImplTest {
         produceReqObs.onCompleted();
 
         assertTrue(produceLatch.await(1, TimeUnit.SECONDS));
-        assertEquals(0, produceResponses.get(0).getOffset());
-        assertEquals(1, produceResponses.get(1).getOffset());
+        assertEquals(List.of(0L, 1L), acked);
 
         CountDownLatch consumeLatch = new CountDownLatch(2);
         List<LogProto.Record> consumed = new ArrayList<>();
@@ -155,4 +241,204 @@ class LogServerImplTest {
         assertEquals("first message", consumed.get(0).getValue().toStringUtf8());
         assertEquals("second message", consumed.get(1).getValue().toStringUtf8());
     }
+
+    @Test
+    void testTopicPartitions() throws Exception {
+        Config config = new Config();
+        config.topics.defaultPartitions = 3;
+        Topics topics = new Topics(tempDir.resolve("topics").toString(), config);
+        String serverName = InProcessServerBuilder.generateName();
+        extraServer = InProcessServerBuilder.forName(serverName)
+                .directExecutor()
+                .addService(new LogServerImpl(topics))
+                .build()
+                .start();
+        extraChannel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+        LogGrpc.LogBlockingStub stub = LogGrpc.newBlockingStub(extraChannel);
+
+        LogProto.Record keyed = LogProto.Record.newBuilder()
+                .setKey(ByteString.copyFromUtf8("user-1"))
+                .setValue(ByteString.copyFromUtf8("v1"))
+                .build();
+        ProduceResponse first = stub.produce(ProduceRequest.newBuilder().setTopic("orders").setRecord(keyed).build());
+        ProduceResponse second = stub.produce(ProduceRequest.newBuilder().setTopic("orders").setRecord(keyed).build());
+        assertEquals(first.getPartition(), second.getPartition());
+        assertEquals(first.getOffset() + 1, second.getOffset());
+
+        ProduceResponse pinned = stub.produce(ProduceRequest.newBuilder()
+                .setTopic("orders").setPartition(2)
+                .setRecord(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("p2")))
+                .build());
+        assertEquals(2, pinned.getPartition());
+        ConsumeResponse consumed = stub.consume(ConsumeRequest.newBuilder()
+                .setTopic("orders").setPartition(2).setOffset(pinned.getOffset()).build());
+        assertEquals("p2", consumed.getRecord().getValue().toStringUtf8());
+
+        StatusRuntimeException missing = assertThrows(StatusRuntimeException.class, () -> stub.consume(
+                ConsumeRequest.newBuilder().setTopic("orders").setPartition(3).build()));
+        assertEquals(Status.Code.NOT_FOUND, missing.getStatus().getCode());
+        StatusRuntimeException invalid = assertThrows(StatusRuntimeException.class, () -> stub.produce(
+                ProduceRequest.newBuilder().setTopic("a/b").setRecord(keyed).build()));
+        assertEquals(Status.Code.INVALID_ARGUMENT, invalid.getStatus().getCode());
+
+        // the single-log server only has the default topic
+        assertEquals(Status.Code.NOT_FOUND, assertThrows(StatusRuntimeException.class, () -> blockingStub.consume(
+                ConsumeRequest.newBuilder().setTopic("orders").build())).getStatus().getCode());
+        topics.close();
+    }
+
+    @Test
+    void testConsumeRangeStopsAtTheEndOfALogWithoutRawReads() throws Exception {
+        // only read(), which fails past the last record like an unreplicated offset
+        List<LogProto.Record> held = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            held.add(LogProto.Record.newBuilder().setOffset(i).setValue(ByteString.copyFromUtf8("held-" + i)).build());
+        }
+        CommitLog minimal = new CommitLog() {
+            @Override
+            public long append(LogProto.Record record) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public LogProto.Record read(long offset) throws IOException {
+                if (offset >= held.size()) {
+                    throw new IOException("Offset out of range: " + offset);
+                }
+                return held.get((int) offset);
+            }
+
+            @Override
+            public long offsetForTimestamp(long timestamp) {
+                return 0;
+            }
+        };
+        String serverName = InProcessServerBuilder.generateName();
+        extraServer = InProcessServerBuilder.forName(serverName)
+                .addService(new LogServerImpl(minimal))
+                .build()
+                .start();
+        extraChannel = InProcessChannelBuilder.forName(serverName).build();
+        LogGrpc.LogBlockingStub stub = LogGrpc.newBlockingStub(extraChannel);
+
+        ConsumeRangeResponse res = stub.consumeRange(ConsumeRangeRequest.newBuilder().setOffset(1).build());
+        assertEquals(held.subList(1, 3), res.getRecordsList());
+        assertEquals(3, res.getNextOffset());
+        assertEquals(Status.Code.OUT_OF_RANGE, assertThrows(StatusRuntimeException.class, () ->
+                stub.consumeRange(ConsumeRangeRequest.newBuilder().setOffset(3).build())).getStatus().getCode());
+    }
+
+    @Test
+    void testProduceStreamReportsAppendFailure() throws Exception {
+        CommitLog failing = new CommitLog() {
+            @Override
+            public long append(LogProto.Record record) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public LogProto.Record read(long offset) throws IOException {
+                throw new IOException("not found");
+            }
+
+            @Override
+            public long offsetForTimestamp(long timestamp) {
+                return 0;
+            }
+        };
+        String serverName = InProcessServerBuilder.generateName();
+        extraServer = InProcessServerBuilder.forName(serverName)
+                .addService(new LogServerImpl(failing))
+                .build()
+                .start();
+        extraChannel = InProcessChannelBuilder.forName(serverName).build();
+
+        CountDownLatch errorLatch = new CountDownLatch(1);
+        List<Throwable> errors = new ArrayList<>();
+        StreamObserver<ProduceRequest> produceReqObs =
+                LogGrpc.newStub(extraChannel).produceStream(new StreamObserver<>() {
+                    @Override public void onNext(ProduceResponse value) {}
+                    @Override
+                    public void onError(Throwable t) {
+                        errors.add(t);
+                        errorLatch.countDown();
+                    }
+                    @Override public void onCompleted() {}
+                });
+        produceReqObs.onNext(ProduceRequest.newBuilder()
+                .setRecord(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8("lost")))
+                .build());
+
+        assertTrue(errorLatch.await(1, TimeUnit.SECONDS));
+        assertEquals(Status.Code.INTERNAL, Status.fromThrowable(errors.get(0)).getCode());
+    }
+
+    @Test
+    void testConsumeStreamTailsNewRecords() throws Exception {
+        CountDownLatch consumeLatch = new CountDownLatch(2);
+        List<LogProto.Record> consumed = new ArrayList<>();
+
+        asyncStub.consumeStream(
+                ConsumeRequest.newBuilder().setOffset(0).build(),
+                new StreamObserver<>() {
+                    @Override
+                    public void onNext(ConsumeResponse value) {
+                        consumed.add(value.getRecord());
+                        consumeLatch.countDown();
+                    }
+                    @Override public void onError(Throwable t) {}
+                    @Override public void onCompleted() {}
+                }
+        );
+
+        // the subscriber is parked at the tail before anything is produced
+        for (String value : List.of("first", "second")) {
+            blockingStub.produce(ProduceRequest.newBuilder()
+                    .setRecord(LogProto.Record.newBuilder().setValue(ByteString.copyFromUtf8(value)))
+                    .build());
+        }
+
+        assertTrue(consumeLatch.await(1, TimeUnit.SECONDS));
+        assertEquals("first", consumed.get(0).getValue().toStringUtf8());
+        assertEquals("second", consumed.get(1).getValue().toStringUtf8());
+    }
+
+    @Test
+    void testZeroCopyConsumeStream() throws Exception {
+        ProduceBatchRequest.Builder req = ProduceBatchRequest.newBuilder();
+        for (int i = 0; i < 3; i++) {
+            req.addRecords(LogProto.Record.newBuilder()
+                    .setValue(ByteString.copyFromUtf8("raw-" + i))
+                    .build());
+        }
+        blockingStub.produceBatch(req.build());
+
+        String serverName = InProcessServerBuilder.generateName();
+        extraServer = InProcessServerBuilder.forName(serverName)
+                .addService(new LogServerImpl(commitLog).bindZeroCopyService())
+                .build()
+                .start();
+        extraChannel = InProcessChannelBuilder.forName(serverName).build();
+
+        CountDownLatch consumeLatch = new CountDownLatch(3);
+        List<LogProto.Record> consumed = new ArrayList<>();
+        LogGrpc.newStub(extraChannel).consumeStream(
+                ConsumeRequest.newBuilder().setOffset(0).build(),
+                new StreamObserver<>() {
+                    @Override
+                    public void onNext(ConsumeResponse value) {
+                        consumed.add(value.getRecord());
+                        consumeLatch.countDown();
+                    }
+                    @Override public void onError(Throwable t) {}
+                    @Override public void onCompleted() {}
+                }
+        );
+
+        assertTrue(consumeLatch.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("raw-" + i, consumed.get(i).getValue().toStringUtf8());
+            assertEquals(i, consumed.get(i).getOffset());
+        }
+    }
 }